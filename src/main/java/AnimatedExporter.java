@@ -0,0 +1,239 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes a short animated GIF of a picture: the background, overlay and the
+ * stamps below the text are shown first, then the text fades in, and then the
+ * stamps above the text appear one at a time, layer by layer, in the order in
+ * which they were placed. The layers below the text are drawn once, and the
+ * text once; each frame is made by drawing onto the previous one. Only the
+ * rectangle of pixels that changed from the previous frame is encoded, as a
+ * GIF sub-frame that is left in place over the earlier frames, so a stamp
+ * costs only about as much as its own area.
+ * <p>
+ * The layers are copied from the panel when the exporter is made, so write()
+ * can be called on any thread.
+ */
+public class AnimatedExporter {
+
+    /**
+     * The number of frames in which the text fades in.
+     */
+    public static final int FADE_FRAMES = 8;
+
+    /**
+     * The time for which each frame of the fade is shown.
+     */
+    public static final int FADE_DELAY_MS = 80;
+
+    /**
+     * The time between the appearance of one stamp and the next.
+     */
+    public static final int STAMP_DELAY_MS = 300;
+
+    /**
+     * The time for which the finished picture is shown before the animation
+     * starts again.
+     */
+    public static final int HOLD_DELAY_MS = 3000;
+
+    private final BufferedImage base;
+    private final BufferedImage textLayer;
+    private final List<ImageItem> stamps;
+
+    /**
+     * Copy the layers of the picture shown by panel. Must be called on the
+     * thread that owns the panel.
+     */
+    public AnimatedExporter(DrawPanel panel) {
+        base = panel.renderBaseLayer();
+        textLayer = panel.renderTextLayer();
+        stamps = new ArrayList<>();
+        for (StampLayer layer : panel.getLayers())
+            if (layer.isVisible() && !layer.isBelowText())
+                stamps.addAll(layer.getItems());
+    }
+
+    /**
+     * Write the animation to file as a GIF that plays forever.
+     *
+     * @return the number of frames.
+     */
+    public int write(File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext())
+            throw new IOException("No GIF writer is available.");
+        ImageWriter writer = writers.next();
+        int w = base.getWidth();
+        int h = base.getHeight();
+        BufferedImage frame = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        BufferedImage previous = new BufferedImage(w, h,
+                BufferedImage.TYPE_INT_RGB);
+        int[] framePixels = pixels(frame);
+        int[] previousPixels = pixels(previous);
+        int[] basePixels = pixels(base);
+        int frames = 0;
+        file.delete();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null)
+                throw new IOException("Can't write to " + file);
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+
+            System.arraycopy(basePixels, 0, framePixels, 0, framePixels.length);
+            writeFrame(writer, frame, new Rectangle(0, 0, w, h),
+                    FADE_DELAY_MS, true);
+            frames++;
+            for (int i = 1; i <= FADE_FRAMES; i++) {
+                System.arraycopy(framePixels, 0, previousPixels, 0,
+                        framePixels.length);
+                // Each step of the fade starts again from the base, so the
+                // text is not blended over itself.
+                System.arraycopy(basePixels, 0, framePixels, 0,
+                        framePixels.length);
+                Graphics2D g = frame.createGraphics();
+                g.setComposite(AlphaComposite.getInstance(
+                        AlphaComposite.SRC_OVER, (float) i / FADE_FRAMES));
+                g.drawImage(textLayer, 0, 0, null);
+                g.dispose();
+                boolean last = i == FADE_FRAMES;
+                writeChange(writer, frame, framePixels, previousPixels, w, h,
+                        last && stamps.isEmpty()
+                                ? HOLD_DELAY_MS : last ? STAMP_DELAY_MS
+                                : FADE_DELAY_MS);
+                frames++;
+            }
+            for (int i = 0; i < stamps.size(); i++) {
+                System.arraycopy(framePixels, 0, previousPixels, 0,
+                        framePixels.length);
+                Graphics2D g = frame.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+                stamps.get(i).draw(g);
+                g.dispose();
+                writeChange(writer, frame, framePixels, previousPixels, w, h,
+                        i == stamps.size() - 1
+                                ? HOLD_DELAY_MS : STAMP_DELAY_MS);
+                frames++;
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return frames;
+    }
+
+    /**
+     * Write the part of frame that differs from the previous frame. If
+     * nothing changed, a single pixel is written so that the timing of the
+     * animation is kept.
+     */
+    private static void writeChange(ImageWriter writer, BufferedImage frame,
+                                    int[] now, int[] before, int w, int h,
+                                    int delay) throws IOException {
+        Rectangle r = changedArea(now, before, w, h);
+        writeFrame(writer, frame, r == null ? new Rectangle(0, 0, 1, 1) : r,
+                delay, false);
+    }
+
+    /**
+     * Return the smallest rectangle that holds every pixel that differs
+     * between now and before, or null if they are the same.
+     */
+    static Rectangle changedArea(int[] now, int[] before, int w, int h) {
+        int top = -1;
+        int bottom = -1;
+        int left = w;
+        int right = -1;
+        for (int y = 0; y < h; y++) {
+            int p = y * w;
+            int x0 = 0;
+            while (x0 < w && now[p + x0] == before[p + x0])
+                x0++;
+            if (x0 == w)
+                continue; // the row is unchanged
+            int x1 = w - 1;
+            while (now[p + x1] == before[p + x1])
+                x1--;
+            if (top < 0)
+                top = y;
+            bottom = y;
+            left = Math.min(left, x0);
+            right = Math.max(right, x1);
+        }
+        return top < 0 ? null
+                : new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Write the area r of frame as one GIF frame, placed at its position in
+     * the picture and left in place when the next frame is drawn.
+     */
+    private static void writeFrame(ImageWriter writer, BufferedImage frame,
+                                   Rectangle r, int delayMs, boolean first)
+            throws IOException {
+        BufferedImage sub = frame.getSubimage(r.x, r.y, r.width, r.height);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata meta = writer.getDefaultImageMetadata(
+                ImageTypeSpecifier.createFromRenderedImage(sub), param);
+        String format = meta.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(format);
+
+        IIOMetadataNode gce = child(root, "GraphicControlExtension");
+        gce.setAttribute("disposalMethod", "doNotDispose");
+        gce.setAttribute("userInputFlag", "FALSE");
+        gce.setAttribute("transparentColorFlag", "FALSE");
+        gce.setAttribute("transparentColorIndex", "0");
+        gce.setAttribute("delayTime", Integer.toString(delayMs / 10));
+
+        IIOMetadataNode desc = child(root, "ImageDescriptor");
+        desc.setAttribute("imageLeftPosition", Integer.toString(r.x));
+        desc.setAttribute("imageTopPosition", Integer.toString(r.y));
+        desc.setAttribute("imageWidth", Integer.toString(r.width));
+        desc.setAttribute("imageHeight", Integer.toString(r.height));
+        desc.setAttribute("interlaceFlag", "FALSE");
+
+        if (first) {
+            IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+            app.setAttribute("applicationID", "NETSCAPE");
+            app.setAttribute("authenticationCode", "2.0");
+            app.setUserObject(new byte[]{1, 0, 0}); // loop forever
+            child(root, "ApplicationExtensions").appendChild(app);
+        }
+        meta.setFromTree(format, root);
+        writer.writeToSequence(new IIOImage(sub, null, meta), param);
+    }
+
+    /**
+     * Return the child of root with the given name, adding it if necessary.
+     */
+    private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++)
+            if (root.item(i).getNodeName().equals(name))
+                return (IIOMetadataNode) root.item(i);
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
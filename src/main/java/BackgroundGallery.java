@@ -0,0 +1,338 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * A directory of images that can be used as backgrounds. The directory is
+ * indexed on a background thread when the gallery is started, and is then
+ * watched with a WatchService so that images that are added, changed or
+ * removed are reported to the listener. A file is only looked at again once
+ * it has had no events for SETTLE_MS, so a large file that is being copied
+ * in is decoded once, when it is complete, and a file whose size and
+ * modification time have not changed is not decoded at all. The index, which
+ * holds the size, modification time and a small thumbnail of each image, is
+ * saved in the program's data directory when it changes, so after a restart
+ * only the files that have changed since the last run have to be decoded
+ * again. Each thumbnail is kept as PNG bytes, which are encoded only once.
+ */
+public class BackgroundGallery {
+
+    /**
+     * The maximum width or height of the thumbnails.
+     */
+    public static final int THUMBNAIL_SIZE = 40;
+
+    /**
+     * The time, in milliseconds, for which a file must have had no events
+     * before it is looked at.
+     */
+    public static final long SETTLE_MS = 500;
+
+    private static final int INDEX_MAGIC = 0x5347414C; // "SGAL"
+
+    /**
+     * Receives the changes to a gallery. Its methods are called on the Event
+     * Dispatch Thread.
+     */
+    public interface Listener {
+        void imageAdded(Entry entry);
+
+        void imageRemoved(Entry entry);
+    }
+
+    /**
+     * Describes one image in the gallery.
+     */
+    public static class Entry {
+        public final File FILE;
+        public final long SIZE;
+        public final long MODIFIED;
+        public final BufferedImage THUMBNAIL;
+        private final byte[] png; // THUMBNAIL, as it is stored in the index
+
+        Entry(File file, long size, long modified, BufferedImage thumbnail,
+              byte[] png) {
+            FILE = file;
+            SIZE = size;
+            MODIFIED = modified;
+            THUMBNAIL = thumbnail;
+            this.png = png;
+        }
+
+        /**
+         * Return the name of the file without its extension.
+         */
+        public String getName() {
+            String name = FILE.getName();
+            int dot = name.lastIndexOf('.');
+            return dot > 0 ? name.substring(0, dot) : name;
+        }
+    }
+
+    private final File directory;
+    private final File indexFile;
+    private final Listener listener;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private volatile WatchService watcher;
+    private boolean changed; // since the index was saved
+
+    /**
+     * Create a gallery for directory, whose changes will be reported to
+     * listener. Nothing happens until start() is called.
+     */
+    public BackgroundGallery(File directory, Listener listener) {
+        this.directory = directory;
+        this.listener = listener;
+        indexFile = new File(Util.getAppDataDirectory(), "gallery.index");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Start a daemon thread that indexes the directory and then watches it
+     * for changes.
+     */
+    public void start() {
+        Thread t = new Thread(this::run, "BackgroundGallery watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stop watching the directory. The listener gets no further calls.
+     */
+    public synchronized void stop() {
+        try {
+            if (watcher != null)
+                watcher.close();
+        } catch (IOException ignored) {
+        }
+        watcher = null;
+    }
+
+    private void run() {
+        try {
+            WatchService ws = FileSystems.getDefault().newWatchService();
+            synchronized (this) {
+                watcher = ws;
+                directory.toPath().register(ws,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            // Register before scanning, so no change can fall between them.
+            rescan(loadIndex());
+            // Files with events, in the order of their latest event.
+            LinkedHashMap<File, Long> pending = new LinkedHashMap<>();
+            while (true) {
+                WatchKey key = pending.isEmpty() ? ws.take()
+                        : ws.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    boolean overflow = false;
+                    for (WatchEvent<?> evt : key.pollEvents()) {
+                        if (evt.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            File file = directory.toPath()
+                                    .resolve((Path) evt.context()).toFile();
+                            pending.remove(file);
+                            pending.put(file, System.currentTimeMillis());
+                        }
+                    }
+                    if (overflow) {
+                        pending.clear();
+                        rescan(new HashMap<>(entries));
+                    }
+                    if (!key.reset())
+                        break; // the directory is gone
+                }
+                long settled = System.currentTimeMillis() - SETTLE_MS;
+                Iterator<Map.Entry<File, Long>> it = pending.entrySet()
+                        .iterator();
+                while (it.hasNext()) {
+                    Map.Entry<File, Long> p = it.next();
+                    if (p.getValue() > settled)
+                        break;
+                    it.remove();
+                    update(p.getKey());
+                }
+                saveIndex();
+            }
+        } catch (IOException | InterruptedException
+                 | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    /**
+     * Compare the directory with the given index entries and report every
+     * difference, decoding only the images that are new or have changed.
+     */
+    private void rescan(HashMap<String, Entry> known) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        HashMap<String, Entry> previous = new HashMap<>(known);
+        for (File f : files) {
+            Entry old = previous.remove(f.getName());
+            if (old != null && old.SIZE == f.length()
+                    && old.MODIFIED == f.lastModified()) {
+                if (!entries.containsKey(f.getName()))
+                    add(old);
+            } else
+                update(f);
+        }
+        for (Entry gone : previous.values())
+            remove(gone.FILE.getName());
+        saveIndex();
+    }
+
+    /**
+     * Bring the entry for file up to date after it was created, changed or
+     * deleted. Nothing is done if its size and modification time are those
+     * of its entry.
+     */
+    private void update(File file) {
+        String name = file.getName();
+        Entry old = entries.get(name);
+        boolean isFile = file.isFile();
+        long size = file.length();
+        long modified = file.lastModified();
+        if (old != null && isFile && old.SIZE == size
+                && old.MODIFIED == modified)
+            return;
+        if (old != null)
+            remove(name);
+        if (!isFile || !isImageName(name))
+            return;
+        BufferedImage thumb;
+        try {
+            thumb = ThumbnailCache.decodeSubsampled(file, THUMBNAIL_SIZE);
+        } catch (IOException e) {
+            thumb = null; // perhaps still being written; wait for MODIFY
+        }
+        if (thumb == null)
+            return;
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(thumb, "PNG", png);
+        } catch (IOException e) {
+            return;
+        }
+        add(new Entry(file, size, modified, thumb, png.toByteArray()));
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.FILE.getName(), entry);
+        changed = true;
+        SwingUtilities.invokeLater(() -> {
+            if (watcher != null)
+                listener.imageAdded(entry);
+        });
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry == null)
+            return;
+        changed = true;
+        SwingUtilities.invokeLater(() -> {
+            if (watcher != null)
+                listener.imageRemoved(entry);
+        });
+    }
+
+    private static boolean isImageName(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".png") || n.endsWith(".jpg") || n.endsWith(".jpeg")
+                || n.endsWith(".gif") || n.endsWith(".bmp");
+    }
+
+    /**
+     * Read the saved index, if it belongs to this directory.
+     */
+    private HashMap<String, Entry> loadIndex() {
+        HashMap<String, Entry> index = new HashMap<>();
+        if (!indexFile.exists())
+            return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC
+                    || !in.readUTF().equals(directory.getAbsolutePath()))
+                return index;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] png = new byte[in.readInt()];
+                in.readFully(png);
+                BufferedImage thumb = ImageIO.read(new ByteArrayInputStream(png));
+                if (thumb != null)
+                    index.put(name, new Entry(new File(directory, name), size,
+                            modified, thumb, png));
+            }
+        } catch (IOException e) {
+            index.clear(); // damaged; everything will be decoded again
+        }
+        return index;
+    }
+
+    /**
+     * Write the index, if it has changed since it was last written. The
+     * thumbnails are written as the PNG bytes that the entries keep.
+     */
+    private void saveIndex() {
+        if (!changed)
+            return;
+        changed = false;
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeUTF(directory.getAbsolutePath());
+            ArrayList<Entry> list = new ArrayList<>(entries.values());
+            out.writeInt(list.size());
+            for (Entry e : list) {
+                out.writeUTF(e.FILE.getName());
+                out.writeLong(e.SIZE);
+                out.writeLong(e.MODIFIED);
+                out.writeInt(e.png.length);
+                out.write(e.png);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            tmp.renameTo(indexFile);
+        }
+    }
+}
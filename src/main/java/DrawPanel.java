@@ -3,137 +3,818 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A panel that can display a background image, a gradient over the image that
  * changes from almost transparent at the top to almost opaque at the bottom, a
- * multiline text, and a list of small images on top of everything else. The
- * small images are placed by clicking with the mouse. The image that is placed
+ * multiline text, and small images ("stamps"), which are kept in layers (see
+ * StampLayer) that are drawn below or above the text. The stamps are placed
+ * by clicking with the mouse, in the current layer. The image that is placed
  * is determined by the currentDrawImage property; if this property is null,
  * then clicking an existing image with the mouse will remove that image.
+ * Turning the mouse wheel changes the size of the images that will be placed;
+ * turning it while holding down the shift key rotates them instead.
+ * <p>
+ * If an EditJournal is attached with setJournal(), every change to the
+ * picture is recorded in it. Code that changes the TextItem directly should
+ * call textChanged() afterwards, so that the change is recorded.
+ * <p>
+ * The picture can be larger than the panel (see setPictureSize()). It is
+ * shown through a Viewport: holding down the control key while turning the
+ * mouse wheel zooms, and dragging with the right mouse button pans. When the
+ * view is not the picture at its actual size, it is painted from a
+ * TilePyramid, which keeps rendered tiles for each zoom level; changes to
+ * the picture drop only the tiles that they affect.
+ * <p>
+ * While the panel is being resized, or while images are being added or
+ * removed in quick succession, it is painted in a faster, lower-quality draft
+ * mode. Once things have been quiet for REFINE_DELAY milliseconds, it is
+ * repainted once at full quality. copyImage() always uses full quality.
  */
 public class DrawPanel extends JPanel {
 
+    /**
+     * The time, in milliseconds, after the last resize or edit at which the
+     * panel is repainted at full quality.
+     */
+    public static final int REFINE_DELAY = 200;
+
+    /**
+     * Edits that follow the previous one by less than this many milliseconds
+     * count as a burst, and are painted in draft mode.
+     */
+    private static final int BURST_INTERVAL = 150;
+
     private TextItem text = new TextItem();
 
     private Image backgroundImage = null;
+    private final MemoryGovernor.Background BACKGROUND_MEMORY =
+            MemoryGovernor.getShared().newBackground();
+    private String backgroundSource = null;
+    private final OverlayKernel OVERLAY_KERNEL = new OverlayKernel();
+    private GradientPaint overlayPaint; // cached for on-screen painting
+    private int overlayPaintLength;
+    private Color overlayPaintColor;
+    private boolean overlayPaintHorizontal;
     private Color borderColor = Color.DARK_GRAY;
     private int borderThickness = 3;
     private Color gradientOverlayColor = Color.WHITE;
     private boolean horizontalOverlay = false;
     private BufferedImage currentDrawImage;
+    private double currentScale = 1;
+    private double currentAngle = 0;
+
+    private final ArrayList<StampLayer> LAYERS = new ArrayList<>(
+            StampLayer.defaultLayers());
+    private StampLayer currentLayer = LAYERS.get(1);
+    private EditJournal journal;
 
-    private final ArrayList<ImageItem> IMAGES = new ArrayList<>();
+    private Dimension pictureSize; // null if it is the size of the panel
+    private final Viewport VIEWPORT = new Viewport();
+    private TilePyramid tiles; // made when the view is first zoomed or panned
+    private Point panStart; // the mouse position while panning
+
+    private boolean draft;
+    private boolean draftAllowed = true;
+    private long lastEditTime;
+    private final Timer REFINE_TIMER = new Timer(REFINE_DELAY, evt -> {
+        draft = false;
+        repaint();
+    });
 
     public DrawPanel() {
         setPreferredSize(new Dimension(800, 600));
         setBackground(Color.DARK_GRAY);
         setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
         setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+        REFINE_TIMER.setRepeats(false);
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent evt) {
+                startDraft();
+                if (pictureSize == null && tiles != null)
+                    tiles.invalidate();
+            }
+        });
         addMouseListener(new MouseAdapter() {
             final AudioClip CLINK = Util.getSound("resources/sounds/clink.wav");
             final AudioClip LASE = Util.getSound("resources/sounds/lase.wav");
 
             public void mousePressed(MouseEvent evt) {
-                int x = evt.getX();
-                int y = evt.getY();
+                if (SwingUtilities.isRightMouseButton(evt)) {
+                    panStart = evt.getPoint();
+                    return;
+                }
+                int x = (int) Math.floor(VIEWPORT.toPictureX(evt.getX()));
+                int y = (int) Math.floor(VIEWPORT.toPictureY(evt.getY()));
                 if (currentDrawImage != null) {
                     if (CLINK != null)
                         CLINK.play();
-                    IMAGES.add(new ImageItem(currentDrawImage, x, y));
-                    repaint();
+                    ImageItem item = new ImageItem(currentDrawImage, x, y,
+                            currentScale, currentAngle);
+                    if (!currentLayer.isVisible())
+                        setLayerVisible(currentLayer, true);
+                    currentLayer.add(item);
+                    if (journal != null)
+                        journal.stampAdded(LAYERS.indexOf(currentLayer), item,
+                                DrawPanel.this);
+                    edited();
+                    pictureChanged(item.getBounds());
                 } else {
-                    for (int i = IMAGES.size() - 1; i >= 0; i--)
-                        if (IMAGES.get(i).contains(x, y)) {
+                    // Erase the topmost visible stamp under the mouse.
+                    for (int l = LAYERS.size() - 1; l >= 0; l--) {
+                        StampLayer layer = LAYERS.get(l);
+                        int i = layer.isVisible() ? layer.find(x, y) : -1;
+                        if (i >= 0) {
                             if (LASE != null)
                                 LASE.play();
-                            IMAGES.remove(i);
-                            repaint();
+                            Rectangle bounds = layer.getItems().get(i).getBounds();
+                            layer.remove(i);
+                            if (journal != null)
+                                journal.stampRemoved(LAYERS.indexOf(layer), i,
+                                        DrawPanel.this);
+                            edited();
+                            pictureChanged(bounds);
                             break;
                         }
+                    }
                 }
             }
+
+            public void mouseReleased(MouseEvent evt) {
+                panStart = null;
+            }
+        });
+        addMouseMotionListener(new MouseMotionAdapter() {
+            public void mouseDragged(MouseEvent evt) {
+                if (panStart == null)
+                    return;
+                VIEWPORT.pan(evt.getX() - panStart.x, evt.getY() - panStart.y);
+                panStart = evt.getPoint();
+                viewportChanged();
+            }
+        });
+        addMouseWheelListener(evt -> {
+            int clicks = evt.getWheelRotation();
+            if (evt.isControlDown())
+                zoomBy(clicks, evt.getX(), evt.getY());
+            else if (evt.isShiftDown())
+                setCurrentAngle(currentAngle + clicks * Math.PI / 12);
+            else
+                setCurrentScale(currentScale * Math.pow(2,
+                        -clicks / (double) TransformCache.SCALE_STEPS_PER_OCTAVE));
         });
     }
 
+    /**
+     * Called when an image has been added or removed. If the previous edit
+     * was very recent, switches to draft mode until the burst is over.
+     */
+    private void edited() {
+        long now = System.currentTimeMillis();
+        if (now - lastEditTime < BURST_INTERVAL)
+            startDraft();
+        lastEditTime = now;
+    }
+
+    /**
+     * Paint in draft mode until REFINE_DELAY milliseconds after the last call
+     * of this method.
+     */
+    private void startDraft() {
+        if (!draftAllowed)
+            return;
+        draft = true;
+        REFINE_TIMER.restart();
+    }
+
+    /**
+     * Set whether the panel switches to draft mode during resizes and bursts
+     * of edits. When it doesn't, it is always painted at full quality and its
+     * refine timer never runs, so how it paints doesn't depend on timing.
+     */
+    public void setDraftAllowed(boolean allowed) {
+        draftAllowed = allowed;
+        if (!allowed) {
+            REFINE_TIMER.stop();
+            draft = false;
+        }
+    }
+
+    /**
+     * Return true if the panel is currently painted in draft mode.
+     */
+    public boolean isDraft() {
+        return draft;
+    }
+
     protected void paintComponent(Graphics g1) {
         super.paintComponent(g1);
         Graphics2D g2 = (Graphics2D) g1;
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
+        if (VIEWPORT.isIdentity() && pictureSize == null) {
+            paintScene(g2, null, draft);
+            return;
+        }
+        g2.setColor(Color.GRAY);
+        g2.fillRect(0, 0, getWidth(), getHeight());
+        if (tiles == null) {
+            tiles = new TilePyramid((g, target) -> {
+                g.setColor(getBackground());
+                g.fillRect(0, 0, getPictureWidth(), getPictureHeight());
+                paintScene(g, target, false);
+            });
+        }
+        if (!tiles.paint(g2, VIEWPORT, getWidth(), getHeight(),
+                getPictureWidth(), getPictureHeight()))
+            repaint(); // some tiles are still to be rendered
+    }
+
+    /**
+     * Drop the tiles when the panel is taken off the screen, so that the
+     * MemoryGovernor no longer holds them or the panel. They are made again
+     * if the panel is shown again.
+     */
+    public void removeNotify() {
+        super.removeNotify();
+        if (tiles != null) {
+            tiles.dispose();
+            tiles = null;
+        }
+    }
+
+    /**
+     * Called when part of the picture has changed, or all of it if area is
+     * null. Drops the tiles that show that part, and repaints.
+     */
+    private void pictureChanged(Rectangle area) {
+        if (tiles != null) {
+            if (area == null)
+                tiles.invalidate();
+            else
+                tiles.invalidate(area);
+        }
+        repaint();
+    }
+
+    /**
+     * Return the width of the picture, which is the width of the panel unless
+     * a size was set with setPictureSize().
+     */
+    public int getPictureWidth() {
+        return pictureSize == null ? getWidth() : pictureSize.width;
+    }
+
+    public int getPictureHeight() {
+        return pictureSize == null ? getHeight() : pictureSize.height;
+    }
+
+    /**
+     * Make the picture a fixed size, which can be larger than the panel, or
+     * make it follow the size of the panel again if size is null. Fires a
+     * property change event for the property "pictureSize".
+     */
+    public void setPictureSize(Dimension size) {
+        if (size != null && (size.width <= 0 || size.height <= 0))
+            throw new IllegalArgumentException("Bad picture size.");
+        Dimension old = pictureSize;
+        pictureSize = size == null ? null : new Dimension(size);
+        if (journal != null)
+            journal.pictureSizeChanged(pictureSize, this);
+        firePropertyChange("pictureSize", old, getPictureSize());
+        pictureChanged(null);
+    }
+
+    /**
+     * Return the fixed size of the picture, or null if it is the size of the
+     * panel.
+     */
+    public Dimension getPictureSize() {
+        return pictureSize == null ? null : new Dimension(pictureSize);
+    }
+
+    /**
+     * Return the viewport through which the picture is shown. Call repaint()
+     * after changing it. Changes made through the panel fire a property
+     * change event for the property "viewport".
+     */
+    public Viewport getViewport() {
+        return VIEWPORT;
+    }
+
+    /**
+     * Zoom in (clicks < 0) or out (clicks > 0) around the point (x,y) of the
+     * panel.
+     */
+    public void zoomBy(int clicks, int x, int y) {
+        VIEWPORT.zoomBy(clicks, x, y);
+        viewportChanged();
+    }
+
+    /**
+     * Show the picture at its actual size, from its top left corner.
+     */
+    public void resetView() {
+        VIEWPORT.reset();
+        viewportChanged();
+    }
+
+    private void viewportChanged() {
+        firePropertyChange("viewport", null, VIEWPORT);
+        repaint();
+    }
+
+    /**
+     * Paint everything except the plain background color. In draft mode,
+     * antialiasing is turned off and images are scaled with nearest-neighbor
+     * interpolation, which is much faster for a large panel. If g2 draws on
+     * an image, target is that image, otherwise null; on the screen, the
+     * stamp layers are painted from their cached rasters.
+     */
+    private void paintScene(Graphics2D g2, BufferedImage target, boolean draft) {
+        if (draft) {
+            g2.setRenderingHint(RenderingHints.KEY_RENDERING,
+                    RenderingHints.VALUE_RENDER_SPEED);
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        } else
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+        paintBase(g2, target);
+        paintLayers(g2, target, true);
+        text.draw(g2, getPictureWidth() / 2, getPictureHeight() / 2);
+        paintLayers(g2, target, false);
+    }
+
+    /**
+     * Draw the layers below the text: the background image and the gradient
+     * overlay. When target is the TYPE_INT_RGB image that g2 draws on, and it
+     * holds the whole picture, the overlay is blended straight into its
+     * pixels by OverlayKernel; otherwise it is filled with a GradientPaint,
+     * which is kept until the size or the overlay changes.
+     */
+    private void paintBase(Graphics2D g2, BufferedImage target) {
+        int width = getPictureWidth();
+        int height = getPictureHeight();
         if (backgroundImage != null)
-            g2.drawImage(backgroundImage, 0, 0, getWidth(), getHeight(), this);
-        if (gradientOverlayColor != null) {
+            g2.drawImage(backgroundImage, 0, 0, width, height, this);
+        if (gradientOverlayColor == null)
+            return;
+        if (target != null && OverlayKernel.canBlend(target)
+                && target.getWidth() == width && target.getHeight() == height
+                && g2.getTransform().isIdentity()) {
+            OVERLAY_KERNEL.blend(target, gradientOverlayColor,
+                    horizontalOverlay);
+            return;
+        }
+        int length = horizontalOverlay ? width : height;
+        if (overlayPaint == null || overlayPaintLength != length
+                || !gradientOverlayColor.equals(overlayPaintColor)
+                || overlayPaintHorizontal != horizontalOverlay) {
             int r = gradientOverlayColor.getRed();
             int b = gradientOverlayColor.getBlue();
             int g = gradientOverlayColor.getGreen();
-            Color startColor = new Color(r, g, b, 50);
-            Color endColor = new Color(r, g, b, 200);
-            if (horizontalOverlay)
-                g2.setPaint(new GradientPaint(0, 0, startColor, getWidth(), 0,
-                        endColor, false));
+            Color startColor = new Color(r, g, b, OverlayKernel.START_ALPHA);
+            Color endColor = new Color(r, g, b, OverlayKernel.END_ALPHA);
+            overlayPaint = horizontalOverlay
+                    ? new GradientPaint(0, 0, startColor, length, 0, endColor, false)
+                    : new GradientPaint(0, 0, startColor, 0, length, endColor, false);
+            overlayPaintLength = length;
+            overlayPaintColor = gradientOverlayColor;
+            overlayPaintHorizontal = horizontalOverlay;
+        }
+        g2.setPaint(overlayPaint);
+        g2.fillRect(0, 0, width, height);
+    }
+
+    /**
+     * Paint the visible layers that are drawn below the text, or those that
+     * are drawn above it. Layers are only painted from their rasters when
+     * target is null; a picture that is drawn once gets the stamps directly,
+     * and if g2 is clipped, as it is for a tile, only the stamps that touch
+     * the clip.
+     */
+    private void paintLayers(Graphics2D g2, BufferedImage target,
+                             boolean belowText) {
+        Rectangle clip = target == null ? null : g2.getClipBounds();
+        if (clip != null)
+            clip.grow(1, 1); // for pixels that interpolation spreads
+        for (StampLayer layer : LAYERS) {
+            if (!layer.isVisible() || layer.isBelowText() != belowText)
+                continue;
+            if (target == null)
+                layer.paint(g2, getPictureWidth(), getPictureHeight());
+            else if (clip != null)
+                layer.draw(g2, clip);
             else
-                g2.setPaint(new GradientPaint(0, 0, startColor, 0, getHeight(),
-                        endColor, false));
-            g2.fillRect(0, 0, getWidth(), getHeight());
+                layer.draw(g2);
         }
-        text.draw(g2, getWidth() / 2, getHeight() / 2);
-        for (ImageItem img : IMAGES)
-            img.draw(g2);
     }
 
+    /**
+     * Set the background image. Since the image does not say where it came
+     * from, it can't be recorded in the journal; use the two-parameter
+     * version of this method or setBackgroundSource() when that matters.
+     */
     public void setBackgroundImage(Image backgroundImage) {
+        setBackgroundImage(backgroundImage, null);
+    }
+
+    /**
+     * Set the background image, which was loaded from source. The source is
+     * a string of the form "resource:path" or "file:path", as accepted by
+     * loadBackground(). A BufferedImage is counted against the shared
+     * MemoryGovernor's budget, and may be replaced by a smaller copy. Fires
+     * a property change event for the property "backgroundSource".
+     */
+    public void setBackgroundImage(Image backgroundImage, String source) {
+        if (backgroundImage instanceof BufferedImage || backgroundImage == null)
+            backgroundImage = BACKGROUND_MEMORY.admit(
+                    (BufferedImage) backgroundImage);
+        else
+            BACKGROUND_MEMORY.admit(null); // not a raster that can be counted
+        String old = backgroundSource;
         this.backgroundImage = backgroundImage;
-        repaint();
+        this.backgroundSource = backgroundImage == null ? null : source;
+        if (journal != null && backgroundSource != null)
+            journal.backgroundImageChanged(backgroundSource, this);
+        firePropertyChange("backgroundSource", old, backgroundSource);
+        pictureChanged(null);
+    }
+
+    /**
+     * Load the background image from source (see loadBackground()) and use
+     * it as the background of this panel.
+     */
+    public void setBackgroundSource(String source) {
+        setBackgroundImage(loadBackground(source), source);
+    }
+
+    public String getBackgroundSource() {
+        return backgroundSource;
+    }
+
+    public Image getBackgroundImage() {
+        return backgroundImage;
+    }
+
+    /**
+     * Load an image from a source string of the form "resource:path", for an
+     * image resource, or "file:path", for an image file.
+     *
+     * @return the image, or null if it can't be loaded.
+     */
+    public static Image loadBackground(String source) {
+        if (source.startsWith("resource:"))
+            return Util.getBufferedImageResource(source.substring(9));
+        if (source.startsWith("file:")) {
+            try {
+                return RegionDecoder.read(new File(source.substring(5)));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public void setBackground(Color bg) {
+        super.setBackground(bg);
+        if (journal != null)
+            journal.backgroundColorChanged(bg, this);
     }
 
     public void setBorderColor(Color borderColor) {
+        Color old = this.borderColor;
         this.borderColor = borderColor;
         setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
+        if (journal != null)
+            journal.borderChanged(borderColor, this);
+        firePropertyChange("borderColor", old, borderColor);
         repaint();
     }
 
+    public Color getBorderColor() {
+        return borderColor;
+    }
+
     public void setGradientOverlayColor(Color gradientOverlayColor) {
+        Color old = this.gradientOverlayColor;
         this.gradientOverlayColor = gradientOverlayColor;
-        repaint();
+        if (journal != null)
+            journal.overlayChanged(gradientOverlayColor, horizontalOverlay, this);
+        firePropertyChange("gradientOverlayColor", old, gradientOverlayColor);
+        pictureChanged(null);
+    }
+
+    public Color getGradientOverlayColor() {
+        return gradientOverlayColor;
+    }
+
+    public void setHorizontalOverlay(boolean horizontalOverlay) {
+        boolean old = this.horizontalOverlay;
+        this.horizontalOverlay = horizontalOverlay;
+        if (journal != null)
+            journal.overlayChanged(gradientOverlayColor, horizontalOverlay, this);
+        firePropertyChange("horizontalOverlay", old, horizontalOverlay);
+        pictureChanged(null);
+    }
+
+    public boolean isHorizontalOverlay() {
+        return horizontalOverlay;
+    }
+
+    /**
+     * Attach a journal in which all further changes to the picture will be
+     * recorded, or detach the current one if journal is null.
+     */
+    public void setJournal(EditJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Must be called after the properties of the TextItem have been changed.
+     * Records the change in the journal, if there is one, fires a property
+     * change event for the property "text", and repaints.
+     */
+    public void textChanged() {
+        if (journal != null)
+            journal.textChanged(text, this);
+        firePropertyChange("text", null, text);
+        pictureChanged(null);
+    }
+
+    /**
+     * Return the stamps of all of the visible layers, in the order in which
+     * they are drawn. The list is a copy.
+     */
+    public List<ImageItem> getImageItems() {
+        ArrayList<ImageItem> items = new ArrayList<>();
+        for (StampLayer layer : LAYERS)
+            if (layer.isVisible())
+                items.addAll(layer.getItems());
+        return items;
+    }
+
+    /**
+     * Replace all of the stamps with items, which are put in the layer above
+     * the text; the other layers are emptied. This is not recorded in the
+     * journal.
+     */
+    public void setImageItems(List<ImageItem> items) {
+        for (StampLayer layer : LAYERS)
+            layer.setItems(Collections.<ImageItem>emptyList());
+        LAYERS.get(1).setItems(items);
+        pictureChanged(null);
+    }
+
+    /**
+     * Return the stamp layers, in the order in which they are drawn: the
+     * layer below the text, the layer above it, and then the layers that
+     * have been added. The list can't be modified.
+     */
+    public List<StampLayer> getLayers() {
+        return Collections.unmodifiableList(LAYERS);
+    }
+
+    /**
+     * Replace all of the layers. The list must start with a layer below the
+     * text and one above it, as returned by StampLayer.defaultLayers(). This
+     * is not recorded in the journal.
+     */
+    public void setLayers(List<StampLayer> layers) {
+        if (layers.size() < 2 || !layers.get(0).isBelowText()
+                || layers.get(1).isBelowText())
+            throw new IllegalArgumentException("Missing the default layers.");
+        for (StampLayer layer : LAYERS)
+            if (!layers.contains(layer))
+                layer.discardRaster();
+        LAYERS.clear();
+        LAYERS.addAll(layers);
+        setCurrentLayer(LAYERS.get(1));
+        pictureChanged(null);
+    }
+
+    /**
+     * Add an empty layer, drawn above all of the others, and make it the
+     * current layer. Fires a property change event for the property
+     * "layerAdded", whose new value is the layer.
+     */
+    public StampLayer addLayer(String name) {
+        StampLayer layer = new StampLayer(name, false);
+        LAYERS.add(layer);
+        if (journal != null)
+            journal.layerAdded(name, this);
+        firePropertyChange("layerAdded", null, layer);
+        setCurrentLayer(layer);
+        return layer;
+    }
+
+    /**
+     * Remove a layer that was added with addLayer(), with its stamps. The
+     * layers below and above the text can't be removed. Fires a property
+     * change event for the property "layerRemoved", whose old value is the
+     * position the layer had in getLayers().
+     */
+    public void removeLayer(StampLayer layer) {
+        int index = LAYERS.indexOf(layer);
+        if (index < 2)
+            throw new IllegalArgumentException("Can't remove that layer.");
+        LAYERS.remove(index);
+        layer.discardRaster();
+        if (journal != null)
+            journal.layerRemoved(index, this);
+        firePropertyChange("layerRemoved", Integer.valueOf(index), null);
+        if (currentLayer == layer)
+            setCurrentLayer(LAYERS.get(1));
+        pictureChanged(null);
     }
 
+    /**
+     * Show or hide one of the layers of this panel. Fires a property change
+     * event for the property "layerVisible", whose new value is the layer.
+     */
+    public void setLayerVisible(StampLayer layer, boolean visible) {
+        int index = LAYERS.indexOf(layer);
+        if (index < 0 || layer.isVisible() == visible)
+            return;
+        layer.setVisible(visible);
+        if (journal != null)
+            journal.layerVisibilityChanged(index, visible, this);
+        firePropertyChange("layerVisible", null, layer);
+        pictureChanged(null);
+    }
+
+    /**
+     * Set the layer in which stamps are placed when the user clicks the
+     * panel. Fires a property change event for the property "currentLayer".
+     */
+    public void setCurrentLayer(StampLayer layer) {
+        if (!LAYERS.contains(layer))
+            throw new IllegalArgumentException("Not a layer of this panel.");
+        StampLayer old = currentLayer;
+        currentLayer = layer;
+        firePropertyChange("currentLayer", old, layer);
+    }
+
+    public StampLayer getCurrentLayer() {
+        return currentLayer;
+    }
+
+    /**
+     * Set the image that will be placed when the user clicks the panel, or
+     * null to make clicks erase images. Fires a property change event for
+     * the property "currentDrawImage".
+     */
     public void setCurrentDrawImage(BufferedImage currentDrawImage) {
+        BufferedImage old = this.currentDrawImage;
         this.currentDrawImage = currentDrawImage;
+        firePropertyChange("currentDrawImage", old, currentDrawImage);
+    }
+
+    public BufferedImage getCurrentDrawImage() {
+        return currentDrawImage;
+    }
+
+    /**
+     * Set the scale factor for images that are placed from now on. The value
+     * is limited to the range supported by the TransformCache.
+     */
+    public void setCurrentScale(double currentScale) {
+        this.currentScale = TransformCache.bucketScale(
+                TransformCache.scaleBucket(currentScale));
+    }
+
+    public double getCurrentScale() {
+        return currentScale;
+    }
+
+    /**
+     * Set the rotation, in radians, for images that are placed from now on.
+     */
+    public void setCurrentAngle(double currentAngle) {
+        this.currentAngle = TransformCache.bucketAngle(
+                TransformCache.angleBucket(currentAngle));
+    }
+
+    public double getCurrentAngle() {
+        return currentAngle;
     }
 
     public TextItem getTextItem() {
         return text;
     }
 
+    /**
+     * Return a copy of the layers of the picture that lie below the text: the
+     * background color, background image, gradient overlay and the stamps
+     * below the text. Together with
+     * renderStampLayer(), this lets many pictures that differ only in their
+     * text be made without redrawing the rest (see TemplateRenderer).
+     */
+    public BufferedImage renderBaseLayer() {
+        BufferedImage base = new BufferedImage(getPictureWidth(), getPictureHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = base.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getPictureWidth(), getPictureHeight());
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        paintBase(g, base);
+        paintLayers(g, base, true);
+        g.dispose();
+        return base;
+    }
+
+    /**
+     * Return a transparent image holding only the text.
+     */
+    public BufferedImage renderTextLayer() {
+        BufferedImage layer = new BufferedImage(getPictureWidth(), getPictureHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = layer.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        text.draw(g, getPictureWidth() / 2, getPictureHeight() / 2);
+        g.dispose();
+        return layer;
+    }
+
+    /**
+     * Return a transparent image holding only the stamps that are drawn
+     * above the text, or null if there are none.
+     */
+    public BufferedImage renderStampLayer() {
+        boolean empty = true;
+        for (StampLayer layer : LAYERS)
+            if (layer.isVisible() && !layer.isBelowText()
+                    && !layer.getItems().isEmpty())
+                empty = false;
+        if (empty)
+            return null;
+        BufferedImage layer = new BufferedImage(getPictureWidth(), getPictureHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = layer.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        paintLayers(g, layer, false);
+        g.dispose();
+        return layer;
+    }
+
     /**
      * Create and return a BufferedImage containing the same picture that is
      * shown in this panel.
      */
     public BufferedImage copyImage() {
-        BufferedImage copy = new BufferedImage(getWidth(), getHeight(),
+        BufferedImage copy = new BufferedImage(getPictureWidth(), getPictureHeight(),
                 BufferedImage.TYPE_INT_RGB);
-        Graphics g = copy.createGraphics();
-        paintComponent(g);
-        g.dispose();
+        paintInto(copy);
         return copy;
     }
 
+    /**
+     * Draw the picture into target, which should be the size of the panel;
+     * for example, the image of an OffHeapCanvas.
+     */
+    public void paintInto(BufferedImage target) {
+        Graphics2D g = target.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getPictureWidth(), getPictureHeight());
+        paintScene(g, target, false);
+        g.dispose();
+    }
+
     /**
      * Return this panel to its default state. (The text will be "Hello World",
      * on a gray background.)
      */
     public void clear() {
+        EditJournal saveJournal = journal;
+        if (journal != null)
+            journal.cleared(this);
+        journal = null; // the clear record covers all of the changes below
         text = new TextItem();
-        backgroundImage = null;
+        backgroundImage = BACKGROUND_MEMORY.admit(null);
+        backgroundSource = null;
         setBackground(Color.DARK_GRAY);
         gradientOverlayColor = Color.WHITE;
         horizontalOverlay = false;
         borderThickness = 3;
         setBorderColor(Color.DARK_GRAY);
-        IMAGES.clear();
-        repaint();
+        setLayers(StampLayer.defaultLayers());
+        pictureSize = null;
+        VIEWPORT.reset();
+        currentScale = 1;
+        currentAngle = 0;
+        journal = saveJournal;
+        firePropertyChange("cleared", false, true);
+        pictureChanged(null);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,655 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the edits that are made to a DrawPanel, so that the
+ * picture survives a crash of the program. Each edit is encoded as a record
+ * (length, body, CRC32) and handed to a background writer thread, which writes
+ * every record that is waiting in one FileChannel write followed by a single
+ * force() ("group commit"), so the Event Dispatch Thread never waits for the
+ * disk. A torn record at the end of the file, left by a crash in the middle of
+ * a write, fails its checksum and is ignored.
+ * <p>
+ * From time to time the journal is compacted: the current state of the panel
+ * is written to a checkpoint file, which replaces the old one atomically, and
+ * the journal is truncated. Both files start with a generation number, which
+ * each compaction increases. A journal whose generation is older than the
+ * checkpoint's is already contained in the checkpoint (the program stopped
+ * before it could truncate it) and is not replayed. Recovery reads the
+ * checkpoint and then the journal through memory-mapped buffers and rebuilds
+ * the stamp layers off-screen before handing them to the panel in one step.
+ * <p>
+ * Stamps are recorded by the names that a StampCatalog gives them, so a stamp
+ * can only be recovered if the catalog still knows its name. A stamp without
+ * a name is still recorded, with an empty one, because removals are recorded
+ * by position; it is left out of the recovered picture.
+ */
+public class EditJournal {
+
+    /**
+     * The number of records appended to the journal after which it is
+     * compacted into a new checkpoint.
+     */
+    public static final int COMPACT_INTERVAL = 100000;
+
+    private static final int JOURNAL_MAGIC = 0x534A4E4C; // "SJNL"
+    private static final int CHECKPOINT_MAGIC = 0x53434B50; // "SCKP"
+    private static final int VERSION = 2; // 1 had no generation number
+
+    static final byte OP_CLEAR = 1;
+    static final byte OP_STAMP_ADD = 2;
+    static final byte OP_STAMP_REMOVE = 3;
+    static final byte OP_TEXT = 4;
+    static final byte OP_BACKGROUND_IMAGE = 5;
+    static final byte OP_BACKGROUND_COLOR = 6;
+    static final byte OP_OVERLAY = 7;
+    static final byte OP_BORDER = 8;
+    static final byte OP_LAYER_ADD = 9;
+    static final byte OP_LAYER_REMOVE = 10;
+    static final byte OP_LAYER_VISIBLE = 11;
+    static final byte OP_PICTURE_SIZE = 12;
+
+    /**
+     * The layer of stamps recorded without one, by older versions of the
+     * program: the layer above the text.
+     */
+    private static final int DEFAULT_LAYER = 1;
+
+    /**
+     * The image of a recorded stamp that can't be recovered, which holds its
+     * place in its layer while the journal is replayed.
+     */
+    private static final BufferedImage PLACEHOLDER = new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_ARGB);
+
+    private final File journalFile;
+    private final File checkpointFile;
+    private final StampCatalog stamps;
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileChannel channel;
+    private int recordsSinceCheckpoint;
+    private long generation; // used by the writer thread after recovery
+    private byte[] lastStampName; // used only during recovery
+    private BufferedImage lastStamp;
+    private volatile boolean closed;
+
+    /**
+     * Open (or create) the journal and checkpoint in the given directory,
+     * naming stamps with the given catalog. The journal is not recovered until
+     * recover() is called.
+     */
+    public EditJournal(File directory, StampCatalog stamps) {
+        this.stamps = stamps;
+        journalFile = new File(directory, "session.journal");
+        checkpointFile = new File(directory, "session.checkpoint");
+        writer = new Thread(this::writeLoop, "EditJournal writer");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Restore the state recorded in the checkpoint and journal into panel and
+     * start accepting new records. If the journal was not empty, the writer
+     * thread first compacts it into a new checkpoint. Should be called on the
+     * Event Dispatch Thread, before the panel is shown and before a journal is
+     * attached to it.
+     *
+     * @return the number of records that were replayed.
+     */
+    public int recover(DrawPanel panel) throws IOException {
+        List<StampLayer> layers = StampLayer.defaultLayers();
+        long checkpointGeneration = readGeneration(checkpointFile,
+                CHECKPOINT_MAGIC);
+        long journalGeneration = readGeneration(journalFile, JOURNAL_MAGIC);
+        generation = Math.max(0, checkpointGeneration);
+        int count = 0;
+        if (checkpointGeneration >= 0)
+            count += replay(checkpointFile, CHECKPOINT_MAGIC, panel, layers);
+        int journaled = 0;
+        if (journalGeneration >= generation)
+            journaled = replay(journalFile, JOURNAL_MAGIC, panel, layers);
+        count += journaled;
+        int lost = removePlaceholders(layers);
+        panel.setLayers(layers);
+        channel = FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (journaled > 0 || lost > 0 || checkpointGeneration < 0) {
+            // The old journal is only truncated once the checkpoint that
+            // replaces it is safely on disk.
+            queue.add(compaction(snapshot(panel)));
+        } else {
+            channel.truncate(0);
+            channel.write(header(JOURNAL_MAGIC, generation));
+        }
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        return count;
+    }
+
+    /**
+     * Wait for all pending records to reach the disk, then stop the writer
+     * thread. Records made after this call are discarded.
+     */
+    public void close() {
+        if (closed || !writer.isAlive())
+            return;
+        queue.add(() -> closed = true);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Record that item was added to the layer at the given position in the
+     * panel's list of layers.
+     */
+    public void stampAdded(int layer, ImageItem item, DrawPanel panel) {
+        append(panel, encodeStamp(new RecordBuffer(), layer, item,
+                stampName(item)));
+    }
+
+    public void stampRemoved(int layer, int index, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_STAMP_REMOVE).writeInt(index)
+                .writeInt(layer).end());
+    }
+
+    public void layerAdded(String name, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_LAYER_ADD).writeString(name)
+                .end());
+    }
+
+    public void layerRemoved(int layer, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_LAYER_REMOVE).writeInt(layer)
+                .end());
+    }
+
+    public void layerVisibilityChanged(int layer, boolean visible,
+                                       DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_LAYER_VISIBLE).writeInt(layer)
+                .writeBoolean(visible).end());
+    }
+
+    /**
+     * Record the fixed size of the picture, or null if it follows the size
+     * of the panel.
+     */
+    public void pictureSizeChanged(Dimension size, DrawPanel panel) {
+        append(panel, encodePictureSize(new RecordBuffer(), size));
+    }
+
+    public void textChanged(TextItem text, DrawPanel panel) {
+        append(panel, encodeText(new RecordBuffer(), text));
+    }
+
+    public void backgroundImageChanged(String source, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_BACKGROUND_IMAGE)
+                .writeString(source).end());
+    }
+
+    public void backgroundColorChanged(Color color, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_BACKGROUND_COLOR)
+                .writeInt(color.getRGB()).end());
+    }
+
+    public void overlayChanged(Color color, boolean horizontal, DrawPanel panel) {
+        append(panel, encodeOverlay(new RecordBuffer(), color, horizontal));
+    }
+
+    public void borderChanged(Color color, DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_BORDER).writeInt(color.getRGB())
+                .end());
+    }
+
+    public void cleared(DrawPanel panel) {
+        append(panel, new RecordBuffer().begin(OP_CLEAR).end());
+    }
+
+    private void append(DrawPanel panel, RecordBuffer record) {
+        if (channel == null || closed)
+            return;
+        final ByteBuffer bytes = record.toByteBuffer();
+        queue.add(() -> {
+            try {
+                channel.write(bytes);
+            } catch (IOException e) {
+                closed = true;
+            }
+        });
+        if (++recordsSinceCheckpoint >= COMPACT_INTERVAL) {
+            recordsSinceCheckpoint = 0;
+            queue.add(compaction(snapshot(panel)));
+        }
+    }
+
+    /**
+     * Return a task for the writer thread that replaces the checkpoint with
+     * state and then empties the journal. Both get the next generation, so
+     * if the program stops between the two steps, the old journal is known
+     * to be in the checkpoint already.
+     */
+    private Runnable compaction(final ByteBuffer state) {
+        return () -> {
+            try {
+                long next = generation + 1;
+                writeCheckpointFile(state, next);
+                channel.truncate(0);
+                channel.position(0);
+                channel.write(header(JOURNAL_MAGIC, next));
+                generation = next;
+            } catch (IOException e) {
+                closed = true;
+            }
+        };
+    }
+
+    /**
+     * Runs on the writer thread. Takes every task that is waiting, runs them
+     * all (they append to the channel), then forces the channel once.
+     */
+    private void writeLoop() {
+        ArrayList<Runnable> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Runnable task : batch)
+                    task.run();
+                batch.clear();
+                if (channel.isOpen())
+                    channel.force(false);
+            }
+        } catch (InterruptedException | IOException ignored) {
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Encode the complete current state of panel as the records of a
+     * checkpoint.
+     */
+    private ByteBuffer snapshot(DrawPanel panel) {
+        RecordBuffer out = new RecordBuffer();
+        out.begin(OP_BACKGROUND_COLOR).writeInt(panel.getBackground().getRGB())
+                .end();
+        if (panel.getBackgroundSource() != null)
+            out.begin(OP_BACKGROUND_IMAGE)
+                    .writeString(panel.getBackgroundSource()).end();
+        encodeOverlay(out, panel.getGradientOverlayColor(),
+                panel.isHorizontalOverlay());
+        out.begin(OP_BORDER).writeInt(panel.getBorderColor().getRGB()).end();
+        if (panel.getPictureSize() != null)
+            encodePictureSize(out, panel.getPictureSize());
+        encodeText(out, panel.getTextItem());
+        List<StampLayer> layers = panel.getLayers();
+        for (int i = 0; i < layers.size(); i++) {
+            StampLayer layer = layers.get(i);
+            if (i >= 2)
+                out.begin(OP_LAYER_ADD).writeString(layer.getName()).end();
+            if (!layer.isVisible())
+                out.begin(OP_LAYER_VISIBLE).writeInt(i).writeBoolean(false)
+                        .end();
+            for (ImageItem item : layer.getItems())
+                encodeStamp(out, i, item, stampName(item));
+        }
+        return out.toByteBuffer();
+    }
+
+    private void writeCheckpointFile(ByteBuffer state, long generation)
+            throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(header(CHECKPOINT_MAGIC, generation));
+            while (state.hasRemaining())
+                ch.write(state);
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int replay(File file, int magic, DrawPanel panel,
+                       List<StampLayer> layers) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel ch = raf.getChannel()) {
+            if (ch.size() < 8)
+                return 0;
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    ch.size());
+            if (buf.getInt() != magic)
+                return 0;
+            int version = buf.getInt();
+            if (version < 1 || version > VERSION)
+                return 0;
+            if (version >= 2) {
+                if (buf.remaining() < 8)
+                    return 0;
+                buf.getLong(); // the generation
+            }
+            CRC32 crc = new CRC32();
+            int count = 0;
+            while (buf.remaining() >= 8) {
+                int length = buf.getInt();
+                if (length < 1 || length > buf.remaining() - 4)
+                    break; // torn record at the end of the file
+                ByteBuffer body = buf.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body);
+                body.rewind();
+                buf.position(buf.position() + length);
+                if ((int) crc.getValue() != buf.getInt())
+                    break;
+                apply(body, panel, layers);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Return the generation of a journal or checkpoint file: 0 for a file
+     * written before there were generations, or -1 if the file is missing
+     * or isn't one.
+     */
+    private static long readGeneration(File file, int magic)
+            throws IOException {
+        if (!file.exists())
+            return -1;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 8 || raf.readInt() != magic)
+                return -1;
+            int version = raf.readInt();
+            if (version < 1 || version > VERSION)
+                return -1;
+            if (version == 1)
+                return 0;
+            return raf.length() < 16 ? -1 : raf.readLong();
+        }
+    }
+
+    /**
+     * Take the placeholders of stamps that could not be recovered out of
+     * layers.
+     *
+     * @return the number of stamps that were taken out.
+     */
+    private static int removePlaceholders(List<StampLayer> layers) {
+        int removed = 0;
+        for (StampLayer layer : layers) {
+            ArrayList<ImageItem> kept = new ArrayList<>();
+            for (ImageItem item : layer.getItems())
+                if (item.getImage() != PLACEHOLDER)
+                    kept.add(item);
+            if (kept.size() < layer.getItems().size()) {
+                removed += layer.getItems().size() - kept.size();
+                layer.setItems(kept);
+            }
+        }
+        return removed;
+    }
+
+    private void apply(ByteBuffer body, DrawPanel panel,
+                       List<StampLayer> layers) {
+        byte op = body.get();
+        switch (op) {
+            case OP_CLEAR:
+                panel.clear();
+                layers.clear();
+                layers.addAll(StampLayer.defaultLayers());
+                break;
+            case OP_STAMP_ADD: {
+                BufferedImage image = readStamp(body);
+                int x = body.getInt();
+                int y = body.getInt();
+                double scale = body.getDouble();
+                double angle = body.getDouble();
+                int layer = body.hasRemaining() ? body.getInt() : DEFAULT_LAYER;
+                if (layer >= 0 && layer < layers.size())
+                    layers.get(layer).add(new ImageItem(image != null ? image
+                            : PLACEHOLDER, x, y, scale, angle));
+                break;
+            }
+            case OP_STAMP_REMOVE: {
+                int index = body.getInt();
+                int layer = body.hasRemaining() ? body.getInt() : DEFAULT_LAYER;
+                if (layer >= 0 && layer < layers.size() && index >= 0
+                        && index < layers.get(layer).getItems().size())
+                    layers.get(layer).remove(index);
+                break;
+            }
+            case OP_LAYER_ADD:
+                layers.add(new StampLayer(readString(body), false));
+                break;
+            case OP_LAYER_REMOVE: {
+                int layer = body.getInt();
+                if (layer >= 2 && layer < layers.size())
+                    layers.remove(layer);
+                break;
+            }
+            case OP_LAYER_VISIBLE: {
+                int layer = body.getInt();
+                if (layer >= 0 && layer < layers.size())
+                    layers.get(layer).setVisible(body.get() != 0);
+                break;
+            }
+            case OP_TEXT: {
+                TextItem text = panel.getTextItem();
+                text.setText(readString(body));
+                int rgb = body.getInt();
+                boolean hasColor = body.get() != 0;
+                text.setColor(hasColor ? new Color(rgb, true) : null);
+                text.setLineHeightMultiplier(body.getDouble());
+                text.setBold(body.get() != 0);
+                text.setItalic(body.get() != 0);
+                text.setFontSize(body.getInt());
+                text.setFontName(readString(body));
+                text.setJustify(body.getInt());
+                if (body.hasRemaining()) {
+                    text.setShadow(body.get() != 0);
+                    text.setOutline(body.get() != 0);
+                }
+                break;
+            }
+            case OP_BACKGROUND_IMAGE:
+                panel.setBackgroundSource(readString(body));
+                break;
+            case OP_BACKGROUND_COLOR:
+                panel.setBackground(new Color(body.getInt(), true));
+                panel.setBackgroundImage(null);
+                break;
+            case OP_OVERLAY: {
+                boolean hasColor = body.get() != 0;
+                int rgb = body.getInt();
+                panel.setGradientOverlayColor(hasColor ? new Color(rgb, true)
+                        : null);
+                panel.setHorizontalOverlay(body.get() != 0);
+                break;
+            }
+            case OP_BORDER:
+                panel.setBorderColor(new Color(body.getInt(), true));
+                break;
+            case OP_PICTURE_SIZE: {
+                int width = body.getInt();
+                int height = body.getInt();
+                panel.setPictureSize(width > 0 && height > 0
+                        ? new Dimension(width, height) : null);
+                break;
+            }
+            default:
+                break; // written by a newer version; skip it
+        }
+    }
+
+    private static RecordBuffer encodeStamp(RecordBuffer b, int layer,
+                                            ImageItem item, String name) {
+        return b.begin(OP_STAMP_ADD).writeString(name)
+                .writeInt(item.getCenterX()).writeInt(item.getCenterY())
+                .writeDouble(item.getScale()).writeDouble(item.getAngle())
+                .writeInt(layer).end();
+    }
+
+    private static RecordBuffer encodeText(RecordBuffer b, TextItem text) {
+        Color c = text.getColor();
+        return b.begin(OP_TEXT).writeString(text.getText())
+                .writeInt(c == null ? 0 : c.getRGB())
+                .writeBoolean(c != null)
+                .writeDouble(text.getLineHeightMultiplier())
+                .writeBoolean(text.isBold()).writeBoolean(text.isItalic())
+                .writeInt(text.getFontSize()).writeString(text.getFontName())
+                .writeInt(text.getJustify()).writeBoolean(text.hasShadow())
+                .writeBoolean(text.hasOutline()).end();
+    }
+
+    private static RecordBuffer encodeOverlay(RecordBuffer b, Color color,
+                                              boolean horizontal) {
+        return b.begin(OP_OVERLAY).writeBoolean(color != null)
+                .writeInt(color == null ? 0 : color.getRGB())
+                .writeBoolean(horizontal).end();
+    }
+
+    private static RecordBuffer encodePictureSize(RecordBuffer b,
+                                                  Dimension size) {
+        return b.begin(OP_PICTURE_SIZE).writeInt(size == null ? 0 : size.width)
+                .writeInt(size == null ? 0 : size.height).end();
+    }
+
+    /**
+     * Return the name under which the stamp of item is recorded, which is
+     * empty if the catalog has no name for it.
+     */
+    private String stampName(ImageItem item) {
+        String name = stamps.getStampName(item.getImage());
+        return name == null ? "" : name;
+    }
+
+    private static ByteBuffer header(int magic, long generation) {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        b.putInt(magic).putInt(VERSION).putLong(generation).flip();
+        return b;
+    }
+
+    /**
+     * Read a stamp name and return the image the catalog has for it. Stamps
+     * tend to be repeated many times in a row, so the last name is
+     * remembered and compared byte by byte to avoid decoding it again.
+     */
+    private BufferedImage readStamp(ByteBuffer b) {
+        int n = b.getInt();
+        if (lastStampName != null && n == lastStampName.length) {
+            int p = b.position();
+            int i = 0;
+            while (i < n && b.get(p + i) == lastStampName[i])
+                i++;
+            if (i == n) {
+                b.position(p + n);
+                return lastStamp;
+            }
+        }
+        lastStampName = new byte[n];
+        b.get(lastStampName);
+        lastStamp = stamps.getStampImage(new String(lastStampName,
+                StandardCharsets.UTF_8));
+        return lastStamp;
+    }
+
+    private static String readString(ByteBuffer b) {
+        int n = b.getInt();
+        byte[] bytes = new byte[n];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A growable byte array into which records are encoded. A record is
+     * started with begin(), which leaves room for its length, and finished
+     * with end(), which fills in the length and appends the checksum.
+     */
+    private static final class RecordBuffer {
+        private byte[] buf = new byte[64];
+        private int size;
+        private int start;
+
+        RecordBuffer begin(byte op) {
+            start = size;
+            writeInt(0);
+            ensure(1);
+            buf[size++] = op;
+            return this;
+        }
+
+        RecordBuffer end() {
+            int length = size - start - 4;
+            int save = size;
+            size = start;
+            writeInt(length);
+            size = save;
+            CRC32 crc = new CRC32();
+            crc.update(buf, start + 4, length);
+            return writeInt((int) crc.getValue());
+        }
+
+        RecordBuffer writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+            return this;
+        }
+
+        RecordBuffer writeDouble(double v) {
+            long bits = Double.doubleToLongBits(v);
+            writeInt((int) (bits >>> 32));
+            return writeInt((int) bits);
+        }
+
+        RecordBuffer writeBoolean(boolean v) {
+            ensure(1);
+            buf[size++] = (byte) (v ? 1 : 0);
+            return this;
+        }
+
+        RecordBuffer writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+            return this;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+        }
+    }
+}
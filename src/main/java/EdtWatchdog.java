@@ -0,0 +1,308 @@
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.AbstractButton;
+import javax.swing.Action;
+
+/**
+ * Watches the Event Dispatch Thread for events that take so long to handle
+ * that the program stops responding. The watchdog is an EventQueue that is
+ * pushed onto the system event queue, so it sees every event as it is
+ * dispatched; a background thread looks at the event that is being
+ * dispatched several times per threshold. When one has run for longer than
+ * the threshold, the stack of the Event Dispatch Thread is captured at that
+ * moment and written to a log file, with the type of the event, its action
+ * command if it has one, and the class it was sent to. When the event
+ * finally finishes, its total duration is written too, with a fuller
+ * description (for a button or menu item, the name of its action), which is
+ * made on the Event Dispatch Thread since it reads the state of components.
+ * <p>
+ * Time that the Event Dispatch Thread spends waiting for the next event is
+ * not counted, so a modal dialog that is open for a long time, which
+ * dispatches events from inside the event that opened it, is not a stall.
+ * <p>
+ * The log is "edt-stalls.log" in the program's data directory. When it grows
+ * past MAX_LOG_BYTES it is renamed to "edt-stalls.log.1", and so on, keeping
+ * LOG_FILES old logs. The log is written by the watchdog's thread, never by
+ * the Event Dispatch Thread.
+ */
+public class EdtWatchdog extends EventQueue {
+
+    /**
+     * The default time, in milliseconds, for which an event can run before
+     * it is logged as a stall.
+     */
+    public static final long DEFAULT_THRESHOLD_MS = 500;
+
+    /**
+     * The size at which the log is replaced by a new one.
+     */
+    public static final long MAX_LOG_BYTES = 256 * 1024;
+
+    /**
+     * The number of old logs that are kept.
+     */
+    public static final int LOG_FILES = 3;
+
+    /**
+     * An event that is being dispatched. A dispatch that is interrupted by
+     * another one, or by waiting for the next event, as when a modal dialog
+     * is shown, gets a new one when it continues, so the time spent in the
+     * dialog is not counted.
+     */
+    private static class Dispatch {
+        final AWTEvent event;
+        final Thread thread;
+        final long start = System.nanoTime();
+        volatile boolean reported;
+
+        Dispatch(AWTEvent event, Thread thread) {
+            this.event = event;
+            this.thread = thread;
+        }
+    }
+
+    private final long thresholdNanos;
+    private final File logFile;
+    private final ConcurrentLinkedQueue<String> finished =
+            new ConcurrentLinkedQueue<>();
+    private volatile Dispatch current;
+    private int stalls;
+
+    /**
+     * Create a watchdog that logs events that run for more than
+     * thresholdMillis to logFile. It does nothing until it is installed.
+     */
+    public EdtWatchdog(long thresholdMillis, File logFile) {
+        if (thresholdMillis <= 0)
+            throw new IllegalArgumentException("Threshold must be positive.");
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+        this.logFile = logFile;
+    }
+
+    /**
+     * Install a watchdog that logs to the program's data directory. The
+     * threshold is DEFAULT_THRESHOLD_MS unless the system property
+     * "sayings.edtStallMs" gives another; if that is 0, no watchdog is
+     * installed.
+     *
+     * @return the watchdog, or null if none was installed.
+     */
+    public static EdtWatchdog install() {
+        long threshold = DEFAULT_THRESHOLD_MS;
+        String ms = System.getProperty("sayings.edtStallMs");
+        if (ms != null) {
+            try {
+                threshold = Long.parseLong(ms.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (threshold <= 0)
+            return null;
+        EdtWatchdog watchdog = new EdtWatchdog(threshold, new File(
+                Util.getAppDataDirectory(), "edt-stalls.log"));
+        watchdog.start();
+        return watchdog;
+    }
+
+    /**
+     * Push this queue onto the system event queue and start the thread that
+     * watches it.
+     */
+    public void start() {
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(this);
+        Thread t = new Thread(this::watch, "EdtWatchdog");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Return the number of stalls that have been detected.
+     */
+    public synchronized int getStallCount() {
+        return stalls;
+    }
+
+    protected void dispatchEvent(AWTEvent event) {
+        Dispatch outer = current;
+        Dispatch dispatch = new Dispatch(event, Thread.currentThread());
+        current = dispatch;
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            if (dispatch.reported)
+                finished.add(timestamp() + " EDT stall ended after "
+                        + millis(System.nanoTime() - dispatch.start)
+                        + " ms: " + describe(event));
+            current = resume(outer);
+        }
+    }
+
+    /**
+     * Wait for the next event. No event is being dispatched while this
+     * waits, even if it is called from inside the dispatch of another event.
+     */
+    public AWTEvent getNextEvent() throws InterruptedException {
+        Dispatch outer = current;
+        current = null;
+        try {
+            return super.getNextEvent();
+        } finally {
+            current = resume(outer);
+        }
+    }
+
+    /**
+     * Return a new Dispatch for an event whose dispatch continues, so that
+     * its time is counted from now.
+     */
+    private static Dispatch resume(Dispatch dispatch) {
+        return dispatch == null ? null
+                : new Dispatch(dispatch.event, dispatch.thread);
+    }
+
+    /**
+     * The loop of the watchdog's thread.
+     */
+    private void watch() {
+        long poll = Math.max(1, thresholdNanos / 4_000_000);
+        while (true) {
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Dispatch dispatch = current;
+            long elapsed = dispatch == null ? 0
+                    : System.nanoTime() - dispatch.start;
+            if (dispatch != null && !dispatch.reported
+                    && elapsed > thresholdNanos) {
+                StackTraceElement[] stack = dispatch.thread.getStackTrace();
+                dispatch.reported = true;
+                synchronized (this) {
+                    stalls++;
+                }
+                report(dispatch, elapsed, stack);
+            }
+            String line;
+            while ((line = finished.poll()) != null)
+                append(line);
+        }
+    }
+
+    private void report(Dispatch dispatch, long elapsed,
+                        StackTraceElement[] stack) {
+        StringBuilder b = new StringBuilder();
+        b.append(timestamp()).append(" EDT stall: ").append(millis(elapsed))
+                .append(" ms so far in ").append(summarize(dispatch.event));
+        for (StackTraceElement frame : stack) {
+            if (!isLibraryFrame(frame)) {
+                b.append(", at ").append(frame);
+                break;
+            }
+        }
+        for (StackTraceElement frame : stack)
+            b.append(System.lineSeparator()).append("    at ").append(frame);
+        append(b.toString());
+    }
+
+    /**
+     * Add an entry to the log, starting a new log if it is too big.
+     */
+    private void append(String entry) {
+        if (logFile.length() > MAX_LOG_BYTES) {
+            new File(logFile.getPath() + "." + LOG_FILES).delete();
+            for (int i = LOG_FILES - 1; i >= 1; i--)
+                new File(logFile.getPath() + "." + i).renameTo(
+                        new File(logFile.getPath() + "." + (i + 1)));
+            logFile.renameTo(new File(logFile.getPath() + ".1"));
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(logFile, true))) {
+            out.println(entry);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Describe an event for the log from the watchdog's thread: its type,
+     * its action command if it has one, and the class it was sent to. Only
+     * fields of the event itself are read, since the components it was sent
+     * to can only be looked at safely on the Event Dispatch Thread.
+     */
+    private static String summarize(AWTEvent event) {
+        StringBuilder b = new StringBuilder(event.getClass().getSimpleName())
+                .append(" #").append(event.getID());
+        if (event instanceof ActionEvent
+                && ((ActionEvent) event).getActionCommand() != null)
+            b.append(" \"").append(((ActionEvent) event).getActionCommand())
+                    .append('"');
+        Object source = event.getSource();
+        if (source != null)
+            b.append(" on ").append(source.getClass().getName());
+        return b.toString();
+    }
+
+    /**
+     * Describe an event for the log: its type and parameters, what it was
+     * sent to and, for a button or menu item, the name of its action. This
+     * reads the state of components, so it is only done on the Event
+     * Dispatch Thread, when an event that stalled has finished.
+     */
+    private static String describe(AWTEvent event) {
+        StringBuilder b = new StringBuilder(event.getClass().getSimpleName());
+        Object source = event.getSource();
+        String name = null;
+        if (source instanceof AbstractButton) {
+            Action action = ((AbstractButton) source).getAction();
+            name = action != null ? (String) action.getValue(Action.NAME)
+                    : ((AbstractButton) source).getText();
+        }
+        if (name == null && event instanceof ActionEvent)
+            name = ((ActionEvent) event).getActionCommand();
+        if (name != null) {
+            b.append(" \"").append(name).append('"');
+        } else {
+            String params = event.paramString();
+            if (params.length() > 200)
+                params = params.substring(0, 200) + "...";
+            b.append('[').append(params).append(']');
+        }
+        if (source != null) {
+            b.append(" on ").append(source.getClass().getName());
+            if (source instanceof Component
+                    && ((Component) source).getName() != null)
+                b.append(" \"").append(((Component) source).getName())
+                        .append('"');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Return true if a frame of a stack is in Java's own classes rather than
+     * in the program, which is where a stall usually is.
+     */
+    private static boolean isLibraryFrame(StackTraceElement frame) {
+        String c = frame.getClassName();
+        return c.startsWith("java.") || c.startsWith("javax.")
+                || c.startsWith("sun.") || c.startsWith("jdk.")
+                || c.startsWith("com.sun.") || c.equals("EdtWatchdog");
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(
+                new Date());
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+}
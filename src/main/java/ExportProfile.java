@@ -0,0 +1,238 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * A list of image files (a format and a width for each) that are all made
+ * from one rendering of a picture. The smaller sizes are made by halving the
+ * picture repeatedly, with one final resampling to the exact width, and each
+ * level of halving is shared by every output that needs it. The files are
+ * then encoded concurrently on a pool of worker threads. When a RenderCache
+ * and the SceneHash of the picture are given, outputs that were made before
+ * are copied from the cache instead of being resized and encoded again.
+ */
+public class ExportProfile {
+
+    /**
+     * Width value meaning "the full width of the rendered picture".
+     */
+    public static final int FULL_SIZE = 0;
+
+    private static final ExecutorService ENCODERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "ExportProfile encoder");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final ArrayList<String> formats = new ArrayList<>();
+    private final ArrayList<Integer> widths = new ArrayList<>();
+
+    /**
+     * Return the standard profile used by the "Export..." command: a PNG
+     * master and a JPEG at full size, plus JPEG web thumbnails 640, 320 and
+     * 160 pixels wide.
+     */
+    public static ExportProfile standard() {
+        return new ExportProfile().add("PNG", FULL_SIZE).add("JPEG", FULL_SIZE)
+                .add("JPEG", 640).add("JPEG", 320).add("JPEG", 160);
+    }
+
+    /**
+     * Add an output to this profile.
+     *
+     * @param format the format name, "PNG" or "JPEG".
+     * @param width  the width of the output in pixels, or FULL_SIZE; the
+     *               height is scaled in proportion.
+     * @return this profile, so that calls can be chained.
+     */
+    public ExportProfile add(String format, int width) {
+        if (width < 0)
+            throw new IllegalArgumentException("Width can't be negative.");
+        formats.add(format);
+        widths.add(width);
+        return this;
+    }
+
+    /**
+     * Write every output of this profile for the given picture. The name of
+     * each file is made from base, with the width (for reduced sizes) and an
+     * extension for the format added, for example "saying-320w.jpeg". Blocks
+     * until all of the files have been written.
+     *
+     * @param picture the rendered picture; should be TYPE_INT_RGB, since JPEG
+     *                can't hold transparency.
+     * @param base    the directory and start of the name of the files.
+     * @return the files that were written.
+     * @throws IOException if any of the files could not be written.
+     */
+    public List<File> export(BufferedImage picture, File base)
+            throws IOException {
+        return export(picture, base, null, picture.getWidth(), null);
+    }
+
+    /**
+     * Return true if every output of this profile for the scene with the
+     * given hash is in the cache, so that export() is not likely to need a
+     * picture. (An output can still be dropped from the cache before it is
+     * copied.)
+     */
+    public boolean isCached(String sceneHash, int pictureWidth,
+                            RenderCache cache) {
+        for (int i = 0; i < formats.size(); i++)
+            if (!cache.contains(sceneHash + suffix(i, pictureWidth)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Write every output of this profile, as export(picture, base) does, but
+     * copy the outputs that are found in cache instead of making them, and
+     * add the others to the cache.
+     *
+     * @param picture      the rendered picture, which may be null if
+     *                     isCached() returned true.
+     * @param sceneHash    the SceneHash of the picture, or null for no
+     *                     caching.
+     * @param pictureWidth the width of the picture.
+     * @param cache        the cache, or null for no caching.
+     * @throws IOException if picture is null and an output is not in the
+     *                     cache, or if a file could not be written.
+     */
+    public List<File> export(BufferedImage picture, File base, String sceneHash,
+                             int pictureWidth, RenderCache cache)
+            throws IOException {
+        return export(() -> {
+            if (picture == null)
+                throw new IOException("The picture is no longer cached.");
+            return picture;
+        }, base, sceneHash, pictureWidth, cache);
+    }
+
+    /**
+     * Write every output of this profile, as export(picture, base, sceneHash,
+     * pictureWidth, cache) does, but call render for the picture, once, only
+     * if an output is not in the cache. Exceptions from render are passed
+     * on, wrapped in an IOException if they are not one.
+     */
+    public List<File> export(Callable<BufferedImage> render, File base,
+                             String sceneHash, int pictureWidth,
+                             RenderCache cache) throws IOException {
+        boolean caching = sceneHash != null && cache != null;
+        ArrayList<BufferedImage> levels = new ArrayList<>();
+        BufferedImage picture = null;
+        ArrayList<Future<File>> results = new ArrayList<>();
+        for (int i = 0; i < formats.size(); i++) {
+            final String format = formats.get(i);
+            final String suffix = suffix(i, pictureWidth);
+            final File file = new File(base.getPath() + suffix);
+            final String key = sceneHash + suffix;
+            if (caching && cache.copyTo(key, file)) {
+                results.add(CompletableFuture.completedFuture(file));
+                continue;
+            }
+            if (picture == null) {
+                picture = render(render);
+                levels.add(picture);
+            }
+            int width = widths.get(i);
+            final BufferedImage image = width == FULL_SIZE
+                    || width >= pictureWidth ? picture : resize(levels, width);
+            results.add(ENCODERS.submit(() -> {
+                if (!ImageIO.write(image, format, file))
+                    throw new IOException("No writer for " + format);
+                if (caching)
+                    cache.put(key, file);
+                return file;
+            }));
+        }
+        ArrayList<File> files = new ArrayList<>();
+        for (Future<File> result : results) {
+            try {
+                files.add(result.get());
+            } catch (InterruptedException e) {
+                throw new IOException("Export was interrupted.");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            }
+        }
+        return files;
+    }
+
+    private static BufferedImage render(Callable<BufferedImage> render)
+            throws IOException {
+        try {
+            BufferedImage picture = render.call();
+            if (picture == null)
+                throw new IOException("The picture could not be rendered.");
+            return picture;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Return the end of the file name for output i: the width, for reduced
+     * sizes, and an extension for the format, for example "-320w.jpeg".
+     */
+    private String suffix(int i, int pictureWidth) {
+        int width = widths.get(i);
+        boolean full = width == FULL_SIZE || width >= pictureWidth;
+        return (full ? "" : "-" + width + "w")
+                + (formats.get(i).equalsIgnoreCase("PNG") ? ".png" : ".jpeg");
+    }
+
+    /**
+     * Return a copy of the picture (levels.get(0)) with the given width,
+     * starting from the smallest halving that is at least that wide. New
+     * halvings are added to levels, so later outputs can reuse them.
+     */
+    private static BufferedImage resize(List<BufferedImage> levels, int width) {
+        int i = 0;
+        while (true) {
+            if (i + 1 == levels.size()) {
+                BufferedImage last = levels.get(i);
+                if (last.getWidth() / 2 < width)
+                    break;
+                levels.add(scale(last, last.getWidth() / 2,
+                        Math.max(1, last.getHeight() / 2)));
+            }
+            if (levels.get(i + 1).getWidth() < width)
+                break;
+            i++;
+        }
+        BufferedImage source = levels.get(i);
+        if (source.getWidth() == width)
+            return source;
+        int height = Math.max(1, (int) Math.round((double) source.getHeight()
+                * width / source.getWidth()));
+        return scale(source, width, height);
+    }
+
+    private static BufferedImage scale(BufferedImage source, int width,
+                                       int height) {
+        BufferedImage scaled = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
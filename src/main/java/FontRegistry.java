@@ -0,0 +1,214 @@
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one Font object for each combination of family, style and size that
+ * the program uses, so that fonts are not created again every time text is
+ * drawn or a menu is built. For each font, the FontMetrics for the few most
+ * recently used rendering contexts are kept as well, along with the advance
+ * widths of the Latin-1 characters, which lets the width of most lines of
+ * text be computed without any allocation. The number of fonts is bounded;
+ * the least recently used font is dropped when the registry is full.
+ * <p>
+ * A font loaded from a file can be added with addFont(). Its family name then
+ * gives that font, whatever fonts are installed, with its other styles
+ * derived from it.
+ * <p>
+ * The registry can be used from any thread.
+ */
+public class FontRegistry {
+
+    /**
+     * The largest number of fonts kept by the shared registry.
+     */
+    public static final int MAX_FONTS = 512;
+
+    /**
+     * The number of rendering contexts for which metrics are kept per font.
+     */
+    private static final int MAX_CONTEXTS = 4;
+
+    private static final FontRegistry SHARED = new FontRegistry(MAX_FONTS);
+
+    private final int maxFonts;
+    private final LinkedHashMap<Key, FontEntry> entries;
+    private final ConcurrentHashMap<String, Font> added =
+            new ConcurrentHashMap<>();
+
+    public FontRegistry(int maxFonts) {
+        this.maxFonts = maxFonts;
+        entries = new LinkedHashMap<Key, FontEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, FontEntry> eldest) {
+                return size() > FontRegistry.this.maxFonts;
+            }
+        };
+    }
+
+    public static FontRegistry getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Return the font with the given family, style (a combination of
+     * Font.BOLD and Font.ITALIC) and point size.
+     */
+    public Font getFont(String family, int style, int size) {
+        Key key = new Key(family, style, size);
+        synchronized (entries) {
+            FontEntry e = entries.get(key);
+            if (e == null) {
+                Font base = added.get(family);
+                e = new FontEntry(base != null
+                        ? base.deriveFont(style, (float) size)
+                        : new Font(family, style, size));
+                entries.put(key, e);
+            }
+            return e.FONT;
+        }
+    }
+
+    /**
+     * Use font, which is usually made by Font.createFont(), for its family
+     * name instead of any installed font with that name. Bold and italic
+     * styles are derived from font, not looked for among the installed
+     * fonts.
+     */
+    public void addFont(Font font) {
+        String family = font.getFamily();
+        added.put(family, font);
+        synchronized (entries) {
+            entries.keySet().removeIf(k -> k.FAMILY.equals(family));
+        }
+    }
+
+    /**
+     * Return the metrics of font as it is drawn in g. If font was not made by
+     * this registry, the metrics are not cached.
+     */
+    public Metrics getMetrics(Graphics2D g, Font font) {
+        FontRenderContext frc = g.getFontRenderContext();
+        FontEntry e;
+        synchronized (entries) {
+            e = entries.get(new Key(font.getName(), font.getStyle(),
+                    font.getSize()));
+        }
+        if (e == null || e.FONT != font)
+            return new Metrics(g.getFontMetrics(font), frc);
+        synchronized (e) {
+            Metrics[] contexts = e.METRICS;
+            for (int i = 0; i < contexts.length && contexts[i] != null; i++) {
+                if (contexts[i].FRC.equals(frc)) {
+                    // Move it to the front, so the least recently used
+                    // context is the one that is dropped.
+                    Metrics m = contexts[i];
+                    System.arraycopy(contexts, 0, contexts, 1, i);
+                    contexts[0] = m;
+                    return m;
+                }
+            }
+            Metrics m = new Metrics(g.getFontMetrics(font), frc);
+            System.arraycopy(contexts, 0, contexts, 1, contexts.length - 1);
+            contexts[0] = m;
+            return m;
+        }
+    }
+
+    /**
+     * Return the number of fonts in the registry.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The metrics of a font in one rendering context.
+     */
+    public static final class Metrics {
+        public final FontMetrics FONT_METRICS;
+        public final int ASCENT;
+        public final int DESCENT;
+        public final int HEIGHT;
+        final FontRenderContext FRC;
+        private float[] advances; // of chars 0 to 255, made when first needed
+
+        Metrics(FontMetrics fm, FontRenderContext frc) {
+            FONT_METRICS = fm;
+            ASCENT = fm.getAscent();
+            DESCENT = fm.getDescent();
+            HEIGHT = fm.getHeight();
+            FRC = frc;
+        }
+
+        /**
+         * Return the advance width of s, as FontMetrics.stringWidth() does.
+         * Lines made only of printable Latin-1 characters are measured from
+         * a table of advances; anything else is passed to the FontMetrics.
+         */
+        public int stringWidth(String s) {
+            Font font = FONT_METRICS.getFont();
+            if (font.hasLayoutAttributes())
+                return FONT_METRICS.stringWidth(s);
+            float[] table;
+            synchronized (this) {
+                if (advances == null) {
+                    advances = new float[256];
+                    char[] c = new char[1];
+                    for (int i = 0; i < 256; i++) {
+                        c[0] = (char) i;
+                        advances[i] = (float) font.getStringBounds(c, 0, 1, FRC)
+                                .getWidth();
+                    }
+                }
+                table = advances;
+            }
+            float width = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < ' ' || c > 0xFF)
+                    return FONT_METRICS.stringWidth(s);
+                width += table[c];
+            }
+            return (int) (0.5 + width);
+        }
+    }
+
+    private static final class FontEntry {
+        final Font FONT;
+        final Metrics[] METRICS = new Metrics[MAX_CONTEXTS];
+
+        FontEntry(Font font) {
+            FONT = font;
+        }
+    }
+
+    private static final class Key {
+        final String FAMILY;
+        final int STYLE;
+        final int SIZE;
+
+        Key(String family, int style, int size) {
+            FAMILY = family;
+            STYLE = style;
+            SIZE = size;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.FAMILY.equals(FAMILY) && k.STYLE == STYLE && k.SIZE == SIZE;
+        }
+
+        public int hashCode() {
+            return (FAMILY.hashCode() * 31 + STYLE) * 31 + SIZE;
+        }
+    }
+}
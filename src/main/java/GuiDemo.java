@@ -2,6 +2,8 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.HashMap;
+import java.util.prefs.Preferences;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -16,6 +18,7 @@ public class GuiDemo extends JFrame {
      * The main program just creates a GuiDemo frame and makes it visible.
      */
     public static void main(String[] args) {
+        EdtWatchdog.install();
         JFrame frame = new GuiDemo();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setVisible(true);
@@ -27,6 +30,18 @@ public class GuiDemo extends JFrame {
     private final JCheckBoxMenuItem GRADIENT_OVERLAY_CHECKBOX = new JCheckBoxMenuItem(
             "Gradient Overlay", true);
 
+    /**
+     * The names of the background images that are resources of the program.
+     */
+    private static final String[] BUILT_IN_BACKGROUNDS = {"Mandelbrot",
+            "Earthrise", "Sunset", "Cloud", "Eagle_nebula"};
+
+    private JMenu backgroundMenu;
+    private JToolBar toolbar;
+    private int toolbarGalleryStart; // index in toolbar of first gallery button
+    private BackgroundGallery gallery;
+    private final HashMap<File, Component[]> GALLERY_COMPONENTS = new HashMap<>();
+
     /**
      * The constructor creates the frame, sizes it, and centers it horizontally
      * on the screen.
@@ -47,11 +62,12 @@ public class GuiDemo extends JFrame {
                         + " next subjects!");
         DRAW_PANEL.getTextItem().setFontSize(36);
         DRAW_PANEL.getTextItem().setJustify(TextItem.LEFT);
-        DRAW_PANEL.setBackgroundImage(
-                Util.getImageResource("resources/images/mandelbrot.jpeg"));
+        DRAW_PANEL.setBackgroundSource(
+                "resource:resources/images/mandelbrot.jpeg");
         content.add(DRAW_PANEL, BorderLayout.CENTER);
 
         IconSupport iconSupport = new IconSupport(DRAW_PANEL);
+        iconSupport.openSavedLibraries();
         content.add(iconSupport.createToolbar(true), BorderLayout.SOUTH);
 
         JMenuBar menuBar = new JMenuBar();
@@ -60,11 +76,31 @@ public class GuiDemo extends JFrame {
         menuBar.add(TEXT_MENU);
         menuBar.add(makeBackgroundMenu());
         menuBar.add(iconSupport.createMenu());
+        menuBar.add(new LayerMenu(DRAW_PANEL));
+        menuBar.add(makeViewMenu());
 
         content.add(makeToolbar(), BorderLayout.NORTH);
+        String galleryDir = System.getProperty("sayings.gallery",
+                Preferences.userRoot().node("sayings").get("gallery", null));
+        if (galleryDir != null && new File(galleryDir).isDirectory())
+            startGallery(new File(galleryDir));
 
         setJMenuBar(menuBar);
 
+        if (!"false".equals(System.getProperty("sayings.journal")))
+            openJournal(iconSupport);
+        String recording = System.getProperty("sayings.record");
+        if (recording != null) {
+            try {
+                InteractionRecorder recorder = new InteractionRecorder(
+                        DRAW_PANEL, iconSupport, new File(recording));
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread(recorder::close));
+            } catch (Exception e) {
+                System.err.println("Can't record to " + recording + ": " + e);
+            }
+        }
+
         pack();
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
         setLocation((screenSize.width - getWidth()) / 2, 50);
@@ -82,6 +118,25 @@ public class GuiDemo extends JFrame {
 
     }
 
+    /**
+     * Restore the picture from the edit journal left by the previous session,
+     * if any, and record all further changes in it. If the journal can't be
+     * used, the program simply runs without one.
+     */
+    private void openJournal(IconSupport iconSupport) {
+        EditJournal journal = new EditJournal(Util.getAppDataDirectory(),
+                iconSupport);
+        try {
+            journal.recover(DRAW_PANEL);
+        } catch (Exception e) {
+            return;
+        }
+        DRAW_PANEL.setJournal(journal);
+        TEXT_MENU.syncWithText();
+        GRADIENT_OVERLAY_CHECKBOX
+                .setSelected(DRAW_PANEL.getGradientOverlayColor() != null);
+    }
+
     private JToolBar makeToolbar() {
         JToolBar tbar = new JToolBar(
                 JToolBar.HORIZONTAL);
@@ -89,17 +144,59 @@ public class GuiDemo extends JFrame {
         tbar.add(saveImageAction);
 
         tbar.addSeparator(new Dimension(15, 0));
-        tbar.add(new ChooseBackgroundAction("Mandelbrot"));
-        tbar.add(new ChooseBackgroundAction("Earthrise"));
-        tbar.add(new ChooseBackgroundAction("Sunset"));
-        tbar.add(new ChooseBackgroundAction("Cloud"));
-        tbar.add(new ChooseBackgroundAction("Eagle_nebula"));
+        for (String name : BUILT_IN_BACKGROUNDS)
+            tbar.add(new ChooseBackgroundAction(name));
+        toolbarGalleryStart = tbar.getComponentCount();
 
         tbar.add(new ChooseBackgroundAction("Custom..."));
         tbar.add(new ChooseBackgroundAction("Color..."));
+        toolbar = tbar;
         return tbar;
     }
 
+    /**
+     * Show the images in directory as backgrounds in the Background menu and
+     * the toolbar, replacing the previous gallery, if any. The gallery keeps
+     * the menu and toolbar up to date as files are added and removed.
+     */
+    private void startGallery(File directory) {
+        if (gallery != null)
+            gallery.stop();
+        for (Component[] c : GALLERY_COMPONENTS.values()) {
+            backgroundMenu.remove(c[0]);
+            toolbar.remove(c[1]);
+        }
+        GALLERY_COMPONENTS.clear();
+        toolbar.revalidate();
+        toolbar.repaint();
+        gallery = new BackgroundGallery(directory,
+                new BackgroundGallery.Listener() {
+                    public void imageAdded(BackgroundGallery.Entry entry) {
+                        Action action = new GalleryBackgroundAction(entry);
+                        int n = GALLERY_COMPONENTS.size();
+                        JMenuItem item = backgroundMenu.insert(action,
+                                BUILT_IN_BACKGROUNDS.length + n);
+                        JButton button = new JButton(action);
+                        button.setHideActionText(true);
+                        toolbar.add(button, toolbarGalleryStart + n);
+                        toolbar.revalidate();
+                        GALLERY_COMPONENTS.put(entry.FILE,
+                                new Component[]{item, button});
+                    }
+
+                    public void imageRemoved(BackgroundGallery.Entry entry) {
+                        Component[] c = GALLERY_COMPONENTS.remove(entry.FILE);
+                        if (c != null) {
+                            backgroundMenu.remove(c[0]);
+                            toolbar.remove(c[1]);
+                            toolbar.revalidate();
+                            toolbar.repaint();
+                        }
+                    }
+                });
+        gallery.start();
+    }
+
     /**
      * Create the "File" menu from actions that are defined later in this class.
      */
@@ -107,24 +204,75 @@ public class GuiDemo extends JFrame {
         JMenu menu = new JMenu("File");
         menu.add(newPictureAction);
         menu.add(saveImageAction);
+        menu.add(exportAction);
+        menu.add(exportAnimationAction);
+        menu.add(exportSvgAction);
+        menu.addSeparator();
+        menu.add(memoryUsageAction);
         menu.addSeparator();
         menu.add(quitAction);
         return menu;
     }
 
+    /**
+     * Create the "View" menu, for zooming and for the size of the picture.
+     */
+    private JMenu makeViewMenu() {
+        JMenu menu = new JMenu("View");
+        JMenuItem zoomIn = new JMenuItem("Zoom In");
+        zoomIn.addActionListener(evt -> DRAW_PANEL.zoomBy(-1,
+                DRAW_PANEL.getWidth() / 2, DRAW_PANEL.getHeight() / 2));
+        menu.add(zoomIn);
+        JMenuItem zoomOut = new JMenuItem("Zoom Out");
+        zoomOut.addActionListener(evt -> DRAW_PANEL.zoomBy(1,
+                DRAW_PANEL.getWidth() / 2, DRAW_PANEL.getHeight() / 2));
+        menu.add(zoomOut);
+        JMenuItem actual = new JMenuItem("Actual Size");
+        actual.addActionListener(evt -> DRAW_PANEL.resetView());
+        menu.add(actual);
+        menu.addSeparator();
+        JMenuItem size = new JMenuItem("Picture Size...");
+        size.addActionListener(evt -> {
+            String current = DRAW_PANEL.getPictureWidth() + "x"
+                    + DRAW_PANEL.getPictureHeight();
+            String s = JOptionPane.showInputDialog(DRAW_PANEL,
+                    "Size of the picture, as WIDTHxHEIGHT,\n"
+                            + "or blank to use the size of the window:",
+                    current);
+            if (s == null)
+                return;
+            s = s.trim();
+            if (s.length() == 0) {
+                DRAW_PANEL.setPictureSize(null);
+                return;
+            }
+            try {
+                String[] parts = s.toLowerCase().split("x");
+                int w = Integer.parseInt(parts[0].trim());
+                int h = Integer.parseInt(parts[1].trim());
+                if (w <= 0 || h <= 0 || (long) w * h > SceneSpec.MAX_PIXELS)
+                    throw new IllegalArgumentException();
+                DRAW_PANEL.setPictureSize(new Dimension(w, h));
+            } catch (RuntimeException e) {
+                JOptionPane.showMessageDialog(DRAW_PANEL,
+                        "Please enter a size such as 4000x3000.");
+            }
+        });
+        menu.add(size);
+        return menu;
+    }
+
     /**
      * Create the "Background" menu, using objects of type
      * ChooseBackgroundAction, a class that is defined later in this file.
      */
     private JMenu makeBackgroundMenu() {
         JMenu menu = new JMenu("Background");
-        menu.add(new ChooseBackgroundAction("Mandelbrot"));
-        menu.add(new ChooseBackgroundAction("Earthrise"));
-        menu.add(new ChooseBackgroundAction("Sunset"));
-        menu.add(new ChooseBackgroundAction("Cloud"));
-        menu.add(new ChooseBackgroundAction("Eagle_nebula"));
+        for (String name : BUILT_IN_BACKGROUNDS)
+            menu.add(new ChooseBackgroundAction(name));
         menu.addSeparator();
         menu.add(new ChooseBackgroundAction("Custom..."));
+        menu.add(chooseGalleryAction);
         menu.addSeparator();
         menu.add(new ChooseBackgroundAction("Color..."));
         menu.addSeparator();
@@ -135,6 +283,7 @@ public class GuiDemo extends JFrame {
             else
                 DRAW_PANEL.setGradientOverlayColor(null);
         });
+        backgroundMenu = menu;
         return menu;
     }
 
@@ -183,13 +332,223 @@ public class GuiDemo extends JFrame {
         }
     };
 
+    /**
+     * Writes the picture in all of the formats and sizes of the standard
+     * ExportProfile. The picture is rendered once, on the event thread; the
+     * scaling and encoding are done in the background. If every output was
+     * in the cache, the picture is only rendered if one of them is dropped
+     * from the cache before it is copied, and then only if the picture has
+     * not been changed since the command was given.
+     */
+    private final AbstractAction exportAction = new AbstractAction("Export...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = FILE_CHOOSER.getOutputFile(DRAW_PANEL,
+                    "Select Base Name for Exported Files", "saying");
+            if (f == null)
+                return;
+            String name = f.getName();
+            int dot = name.lastIndexOf('.');
+            File base = dot > 0 ? new File(f.getParentFile(),
+                    name.substring(0, dot)) : f;
+            ExportProfile profile = ExportProfile.standard();
+            RenderCache cache = RenderCache.getShared();
+            String hash = SceneHash.of(DRAW_PANEL);
+            int width = DRAW_PANEL.getPictureWidth();
+            BufferedImage img = profile.isCached(hash, width, cache) ? null
+                    : DRAW_PANEL.copyImage();
+            new SwingWorker<java.util.List<File>, Void>() {
+                protected java.util.List<File> doInBackground()
+                        throws Exception {
+                    return profile.export(() -> img != null ? img
+                            : renderScene(hash), base, hash, width, cache);
+                }
+
+                protected void done() {
+                    try {
+                        JOptionPane.showMessageDialog(DRAW_PANEL, "Exported "
+                                + get().size() + " files.");
+                    } catch (Exception e) {
+                        JOptionPane.showMessageDialog(DRAW_PANEL,
+                                "Sorry, the image could not be exported.");
+                    }
+                }
+            }.execute();
+        }
+    };
+
+    /**
+     * Render the picture on the event thread, for a background task, if its
+     * SceneHash is still hash.
+     *
+     * @throws java.io.IOException if the picture has been changed.
+     */
+    private BufferedImage renderScene(String hash) throws Exception {
+        BufferedImage[] img = new BufferedImage[1];
+        SwingUtilities.invokeAndWait(() -> {
+            if (SceneHash.of(DRAW_PANEL).equals(hash))
+                img[0] = DRAW_PANEL.copyImage();
+        });
+        if (img[0] == null)
+            throw new java.io.IOException("The picture was changed.");
+        return img[0];
+    }
+
+    /**
+     * Writes the picture as an animated GIF in which the text fades in and
+     * the stamps appear one by one. The layers are copied on the event
+     * thread; the frames are made and encoded in the background.
+     */
+    private final AbstractAction exportAnimationAction = new AbstractAction(
+            "Export Animation...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = FILE_CHOOSER.getOutputFile(DRAW_PANEL,
+                    "Select Output File for the Animation", "saying.gif");
+            if (f == null)
+                return;
+            if (!f.getName().toLowerCase().endsWith(".gif"))
+                f = new File(f.getPath() + ".gif");
+            File out = f;
+            AnimatedExporter exporter = new AnimatedExporter(DRAW_PANEL);
+            new SwingWorker<Integer, Void>() {
+                protected Integer doInBackground() throws Exception {
+                    return exporter.write(out);
+                }
+
+                protected void done() {
+                    try {
+                        JOptionPane.showMessageDialog(DRAW_PANEL, "Wrote "
+                                + get() + " frames to " + out.getName() + ".");
+                    } catch (Exception e) {
+                        JOptionPane.showMessageDialog(DRAW_PANEL,
+                                "Sorry, the animation could not be saved.");
+                    }
+                }
+            }.execute();
+        }
+    };
+
+    /**
+     * Writes the picture as an SVG file, with the text either as text or as
+     * glyph outlines. The picture is copied on the event thread; the file
+     * is written in the background.
+     */
+    private final AbstractAction exportSvgAction = new AbstractAction(
+            "Export SVG...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = FILE_CHOOSER.getOutputFile(DRAW_PANEL,
+                    "Select Output File for the SVG", "saying.svg");
+            if (f == null)
+                return;
+            if (!f.getName().toLowerCase().endsWith(".svg"))
+                f = new File(f.getPath() + ".svg");
+            String[] choices = {"Text", "Outlines", "Cancel"};
+            int choice = JOptionPane.showOptionDialog(DRAW_PANEL,
+                    "Write the text as editable text, or as outlines that "
+                            + "don't need the font?", "Export SVG",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE,
+                    null, choices, choices[0]);
+            if (choice != 0 && choice != 1)
+                return;
+            File out = f;
+            SvgExporter exporter = new SvgExporter(DRAW_PANEL);
+            exporter.setOutlineText(choice == 1);
+            new SwingWorker<Integer, Void>() {
+                protected Integer doInBackground() throws Exception {
+                    return exporter.write(out);
+                }
+
+                protected void done() {
+                    try {
+                        JOptionPane.showMessageDialog(DRAW_PANEL, "Wrote "
+                                + get() + " stamps to " + out.getName() + ".");
+                    } catch (Exception e) {
+                        JOptionPane.showMessageDialog(DRAW_PANEL,
+                                "Sorry, the SVG could not be saved.");
+                    }
+                }
+            }.execute();
+        }
+    };
+
+    /**
+     * Shows how the memory budget is being used, and the recent decisions of
+     * the MemoryGovernor.
+     */
+    private final AbstractAction memoryUsageAction = new AbstractAction(
+            "Memory Usage...") {
+        public void actionPerformed(ActionEvent evt) {
+            JTextArea report = new JTextArea(
+                    MemoryGovernor.getShared().getStats().toString(), 16, 60);
+            report.setEditable(false);
+            JOptionPane.showMessageDialog(DRAW_PANEL, new JScrollPane(report),
+                    "Memory Usage", JOptionPane.INFORMATION_MESSAGE);
+        }
+    };
+
+    /**
+     * Lets the user select a directory of background images, which is
+     * remembered for the next time the program is run.
+     */
+    private final AbstractAction chooseGalleryAction = new AbstractAction(
+            "Gallery Folder...") {
+        public void actionPerformed(ActionEvent evt) {
+            JFileChooser chooser = new JFileChooser(gallery == null ? null
+                    : gallery.getDirectory());
+            chooser.setDialogTitle("Select Folder of Background Images");
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showOpenDialog(DRAW_PANEL) != JFileChooser.APPROVE_OPTION)
+                return;
+            File dir = chooser.getSelectedFile();
+            Preferences.userRoot().node("sayings").put("gallery",
+                    dir.getAbsolutePath());
+            startGallery(dir);
+        }
+    };
+
+    /**
+     * Selects one of the images in the background gallery. Its icon is the
+     * thumbnail that was stored in the gallery's index. The image is decoded
+     * in the background.
+     */
+    private class GalleryBackgroundAction extends AbstractAction {
+        final File FILE;
+
+        GalleryBackgroundAction(BackgroundGallery.Entry entry) {
+            super(entry.getName(), new ImageIcon(entry.THUMBNAIL));
+            FILE = entry.FILE;
+            putValue(Action.SHORT_DESCRIPTION,
+                    "Use this image as the background.");
+        }
+
+        public void actionPerformed(ActionEvent evt) {
+            new SwingWorker<BufferedImage, Void>() {
+                protected BufferedImage doInBackground() throws Exception {
+                    return RegionDecoder.read(FILE);
+                }
+
+                protected void done() {
+                    try {
+                        BufferedImage img = get();
+                        if (img == null)
+                            throw new Exception();
+                        DRAW_PANEL.setBackgroundImage(img,
+                                "file:" + FILE.getAbsolutePath());
+                    } catch (Exception e) {
+                        JOptionPane.showMessageDialog(DRAW_PANEL,
+                                "Sorry, couldn't read the file.");
+                    }
+                }
+            }.execute();
+        }
+    }
+
     /**
      * An object of type ChooseBackgroudnAction represents an action through
      * which the user selects the background of the picture. There are three
      * types of background: solid color background ("Color..." command), an
-     * image selected by the user from the file system ("Custom..." command),
-     * and four built-in image resources (Mandelbrot, Earthrise, Sunset, and
-     * Eagle_nebula).
+     * image selected by the user from the file system ("Custom..." command,
+     * decoded in the background by RegionDecoder), and four built-in image
+     * resources (Mandelbrot, Earthrise, Sunset, and Eagle_nebula).
      */
     private class ChooseBackgroundAction extends AbstractAction {
         String text;
@@ -229,18 +588,28 @@ public class GuiDemo extends JFrame {
 
         public void actionPerformed(ActionEvent evt) {
             if (text.equals("Custom...")) {
-                File inputFile = FILE_CHOOSER.getInputFile(DRAW_PANEL,
+                File inputFile = FILE_CHOOSER.getImageInputFile(DRAW_PANEL,
                         "Select Background Image");
                 if (inputFile != null) {
-                    try {
-                        BufferedImage img = ImageIO.read(inputFile);
-                        if (img == null)
-                            throw new Exception();
-                        DRAW_PANEL.setBackgroundImage(img);
-                    } catch (Exception e) {
-                        JOptionPane.showMessageDialog(DRAW_PANEL,
-                                "Sorry, couldn't read the file.");
-                    }
+                    new SwingWorker<BufferedImage, Void>() {
+                        protected BufferedImage doInBackground()
+                                throws Exception {
+                            return RegionDecoder.read(inputFile);
+                        }
+
+                        protected void done() {
+                            try {
+                                BufferedImage img = get();
+                                if (img == null)
+                                    throw new Exception();
+                                DRAW_PANEL.setBackgroundImage(img, "file:"
+                                        + inputFile.getAbsolutePath());
+                            } catch (Exception e) {
+                                JOptionPane.showMessageDialog(DRAW_PANEL,
+                                        "Sorry, couldn't read the file.");
+                            }
+                        }
+                    }.execute();
                 }
             } else if (text.equals("Color...")) {
                 Color c = JColorChooser.showDialog(DRAW_PANEL,
@@ -251,9 +620,8 @@ public class GuiDemo extends JFrame {
                     DRAW_PANEL.setBackgroundImage(null);
                 }
             } else {
-                Image bg = Util.getImageResource(
-                        "resources/images/" + text.toLowerCase() + ".jpeg");
-                DRAW_PANEL.setBackgroundImage(bg);
+                DRAW_PANEL.setBackgroundSource("resource:resources/images/"
+                        + text.toLowerCase() + ".jpeg");
             }
         }
     }
@@ -3,7 +3,13 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 
 import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.prefs.Preferences;
 
 /**
  * Contains a set of Actions that can be used to select images that can be added
@@ -11,28 +17,154 @@ import java.util.ArrayList;
  * button for each Action in the set. A button shows an ImageIcon with the image
  * that is selected by that button. Clicking one of the buttons also sets the
  * cursor in the DrawPanel to be a (rough) copy of the image.
+ * <p>
+ * Besides the built-in stamps, libraries of stamps can be loaded from
+ * directories or zip archives (see StampLibrary). Stamps are decoded lazily:
+ * an image is not read until its button or menu item is first painted or the
+ * stamp is first used. The libraries that are loaded are remembered and
+ * loaded again the next time the program runs.
  */
-public class IconSupport {
+public class IconSupport implements StampCatalog {
+
+    private static final String LIBRARIES_KEY = "stampLibraries";
 
     private final DrawPanel panel;
-    private final ArrayList<BufferedImage> iconImages = new ArrayList<>();
+    private final ArrayList<Stamp> stamps = new ArrayList<>();
+    private final IdentityHashMap<BufferedImage, Stamp> stampsByImage = new IdentityHashMap<>();
     private final ArrayList<Action> actions = new ArrayList<>();
+    private final ArrayList<StampLibrary> libraries = new ArrayList<>();
+    private final ArrayList<JToolBar> toolbars = new ArrayList<>();
+    private final ArrayList<JMenu> menus = new ArrayList<>();
 
     public IconSupport(DrawPanel owner) {
         panel = owner;
         String[] iconNames = {"bell", "camera", "flower", "star", "check",
                 "crossout", "tux", "bomb", "keyboard", "lightbulb", "tv"};
+        ClassLoader cl = IconSupport.class.getClassLoader();
         for (String name : iconNames) {
-            BufferedImage img = Util.getBufferedImageResource(
-                    "resources/icons/" + name + ".png");
-            if (img != null) {
-                iconImages.add(img);
-                actions.add(new SelectIconAction(name, iconImages.size() - 1));
+            String path = "resources/icons/" + name + ".png";
+            if (cl.getResource(path) != null) {
+                Stamp stamp = Stamp.fromResource(name, path);
+                stamps.add(stamp);
+                actions.add(new SelectIconAction(stamp));
             }
         }
         actions.add(new NoIconAction());
     }
 
+    /**
+     * Load the stamp libraries that were loaded in earlier runs of the
+     * program. Libraries that can no longer be read are forgotten.
+     */
+    public void openSavedLibraries() {
+        String saved = Preferences.userRoot().node("sayings")
+                .get(LIBRARIES_KEY, "");
+        for (String path : saved.split(File.pathSeparator)) {
+            if (path.isEmpty())
+                continue;
+            try {
+                addLibrary(openLibrary(new File(path)));
+            } catch (IOException ignored) {
+            }
+        }
+        saveLibraries();
+    }
+
+    /**
+     * Open the library in file under a name that no loaded library has: its
+     * usual name, or that name followed by "-2", "-3" and so on. Since the
+     * name of a library is part of the names of its stamps, this keeps two
+     * libraries from having stamps with the same name.
+     */
+    public StampLibrary openLibrary(File file) throws IOException {
+        String base = StampLibrary.defaultName(file);
+        String name = base;
+        for (int n = 2; findLibrary(name) != null; n++)
+            name = base + "-" + n;
+        return StampLibrary.open(file, name);
+    }
+
+    private StampLibrary findLibrary(String name) {
+        for (StampLibrary lib : libraries)
+            if (lib.getName().equals(name))
+                return lib;
+        return null;
+    }
+
+    /**
+     * Add the stamps from a library to this set, and add buttons and menu
+     * items for them to the toolbars and menus made by this object. A library
+     * that is already loaded is not added again.
+     *
+     * @throws IllegalArgumentException if another library with the same name
+     *                                  is loaded (see openLibrary()).
+     */
+    public void addLibrary(StampLibrary library) {
+        for (StampLibrary lib : libraries)
+            if (lib.getFile().equals(library.getFile()))
+                return;
+        if (findLibrary(library.getName()) != null)
+            throw new IllegalArgumentException("A library named "
+                    + library.getName() + " is already loaded.");
+        libraries.add(library);
+        ArrayList<Action> added = new ArrayList<>();
+        for (Stamp stamp : library.getStamps()) {
+            stamps.add(stamp);
+            added.add(new SelectIconAction(stamp));
+        }
+        actions.addAll(added);
+        for (JToolBar tbar : toolbars)
+            addButtons(tbar, added);
+        for (JMenu menu : menus)
+            menu.add(makeLibraryMenu(library.getName(), added));
+    }
+
+    /**
+     * Return the libraries that have been loaded.
+     */
+    public List<StampLibrary> getLibraries() {
+        return Collections.unmodifiableList(libraries);
+    }
+
+    public String getStampName(BufferedImage image) {
+        synchronized (stampsByImage) {
+            Stamp stamp = stampsByImage.get(image);
+            return stamp == null ? null : stamp.getName();
+        }
+    }
+
+    public BufferedImage getStampImage(String name) {
+        for (Stamp stamp : stamps)
+            if (stamp.getName().equals(name))
+                return imageOf(stamp);
+        return null;
+    }
+
+    /**
+     * Decode the image of a stamp, if that has not been done already, and
+     * remember which stamp it belongs to.
+     */
+    private BufferedImage imageOf(Stamp stamp) {
+        BufferedImage image = stamp.getImage();
+        if (image != null) {
+            synchronized (stampsByImage) { // may be used by render threads
+                stampsByImage.put(image, stamp);
+            }
+        }
+        return image;
+    }
+
+    private void saveLibraries() {
+        StringBuilder paths = new StringBuilder();
+        for (StampLibrary lib : libraries) {
+            if (paths.length() > 0)
+                paths.append(File.pathSeparator);
+            paths.append(lib.getFile().getAbsolutePath());
+        }
+        Preferences.userRoot().node("sayings")
+                .put(LIBRARIES_KEY, paths.toString());
+    }
+
     /**
      * Return a toolbar containing buttons representing the images that can be
      * added to the DrawPanel.
@@ -44,23 +176,87 @@ public class IconSupport {
     public JToolBar createToolbar(boolean horizontal) {
         JToolBar tbar = new JToolBar(
                 horizontal ? JToolBar.HORIZONTAL : JToolBar.VERTICAL);
-        for (int i = 0; i < actions.size() - 1; i++)
+        int builtIns = actions.size() - 1 - stampCount(libraries);
+        for (int i = 0; i < builtIns; i++)
             tbar.add(actions.get(i));
         tbar.addSeparator(new Dimension(15, 0));
-        tbar.add(actions.get(actions.size() - 1));
+        tbar.add(actions.get(builtIns));
+        int i = builtIns + 1;
+        for (StampLibrary lib : libraries) {
+            int n = lib.getStamps().size();
+            addButtons(tbar, actions.subList(i, i + n));
+            i += n;
+        }
+        toolbars.add(tbar);
         return tbar;
     }
 
+    private static void addButtons(JToolBar tbar, List<Action> stampActions) {
+        if (stampActions.isEmpty())
+            return;
+        tbar.addSeparator(new Dimension(15, 0));
+        for (Action a : stampActions)
+            tbar.add(a);
+    }
+
+    private static int stampCount(List<StampLibrary> libs) {
+        int n = 0;
+        for (StampLibrary lib : libs)
+            n += lib.getStamps().size();
+        return n;
+    }
+
 
     public JMenu createMenu() {
         JMenu stamper = new JMenu("Stamper");
-        for (int i = 0; i < actions.size() - 1; i++)
+        int builtIns = actions.size() - 1 - stampCount(libraries);
+        for (int i = 0; i < builtIns; i++)
             stamper.add(actions.get(i));
         stamper.addSeparator();
-        stamper.add(actions.get(actions.size() - 1));
+        stamper.add(actions.get(builtIns));
+        stamper.addSeparator();
+        stamper.add(new LoadLibraryAction());
+        int i = builtIns + 1;
+        for (StampLibrary lib : libraries) {
+            int n = lib.getStamps().size();
+            stamper.add(makeLibraryMenu(lib.getName(),
+                    actions.subList(i, i + n)));
+            i += n;
+        }
+        menus.add(stamper);
         return stamper;
     }
 
+    private static JMenu makeLibraryMenu(String name, List<Action> stampActions) {
+        JMenu menu = new JMenu(name);
+        for (Action a : stampActions)
+            menu.add(a);
+        return menu;
+    }
+
+    private class LoadLibraryAction extends AbstractAction {
+        LoadLibraryAction() {
+            super("Load Stamp Library...");
+        }
+
+        public void actionPerformed(ActionEvent evt) {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+            chooser.setDialogTitle("Select a Folder or Zip Archive of Stamps");
+            if (chooser.showOpenDialog(panel) != JFileChooser.APPROVE_OPTION)
+                return;
+            File file = chooser.getSelectedFile();
+            try {
+                addLibrary(openLibrary(file));
+                saveLibraries();
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(panel,
+                        "Sorry, can't load stamps from " + file.getName()
+                                + ":\n" + e.getMessage());
+            }
+        }
+    }
+
     private class NoIconAction extends AbstractAction {
         NoIconAction() {
             super("Eraser");
@@ -84,20 +280,60 @@ public class IconSupport {
     }
 
     private class SelectIconAction extends AbstractAction {
-        int iconNumber;
+        final Stamp stamp;
 
-        SelectIconAction(String name, int n) {
-            super(name, new ImageIcon(iconImages.get(n)));
-            iconNumber = n;
+        SelectIconAction(Stamp stamp) {
+            super(stamp.getName().substring(stamp.getName().indexOf('/') + 1),
+                    new LazyStampIcon(stamp));
+            this.stamp = stamp;
             putValue(Action.SHORT_DESCRIPTION, "Use Mouse to Stamp this Icon"); // tooltip
         }
 
         public void actionPerformed(ActionEvent evt) {
-            BufferedImage image = iconImages.get(iconNumber);
+            BufferedImage image = imageOf(stamp);
+            if (image == null)
+                return;
             panel.setCurrentDrawImage(image);
             Cursor c = Util.createImageCursor(image, image.getWidth() / 2,
                     image.getHeight() / 2);
             panel.setCursor(c);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * An Icon of fixed size that decodes its stamp the first time it is
+     * painted, so that stamps that are never shown are never decoded. Images
+     * larger than the icon are scaled down to fit.
+     */
+    private static class LazyStampIcon implements Icon {
+        static final int SIZE = 32;
+        final Stamp stamp;
+
+        LazyStampIcon(Stamp stamp) {
+            this.stamp = stamp;
+        }
+
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            BufferedImage image = stamp.getImage();
+            if (image == null)
+                return;
+            int w = image.getWidth();
+            int h = image.getHeight();
+            if (w > SIZE || h > SIZE) {
+                double scale = (double) SIZE / Math.max(w, h);
+                w = Math.max(1, (int) (w * scale));
+                h = Math.max(1, (int) (h * scale));
+            }
+            g.drawImage(image, x + (SIZE - w) / 2, y + (SIZE - h) / 2, w, h,
+                    null);
+        }
+
+        public int getIconWidth() {
+            return SIZE;
+        }
+
+        public int getIconHeight() {
+            return SIZE;
+        }
+    }
+}
@@ -1,31 +1,101 @@
+import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
- * Represents an image, drawn with its center at a specified point.
+ * Represents an image, drawn with its center at a specified point. The image
+ * can be scaled and rotated about its center; the transformed copy that is
+ * actually drawn comes from the shared TransformCache, so the scale and angle
+ * are rounded to the nearest bucket of that cache.
  */
 public class ImageItem {
 
     private final BufferedImage IMAGE;
     private final int CENTER_X;
     private final int CENTER_Y;
+    private final int SCALE_BUCKET;
+    private final int ANGLE_BUCKET;
 
     public ImageItem(BufferedImage image, int centerX, int centerY) {
+        this(image, centerX, centerY, 1, 0);
+    }
+
+    /**
+     * Create an item that shows image scaled by the factor scale and rotated
+     * clockwise by angle radians.
+     */
+    public ImageItem(BufferedImage image, int centerX, int centerY,
+                     double scale, double angle) {
         this.IMAGE = image;
         this.CENTER_X = centerX;
         this.CENTER_Y = centerY;
+        this.SCALE_BUCKET = TransformCache.scaleBucket(scale);
+        this.ANGLE_BUCKET = TransformCache.angleBucket(angle);
     }
 
     public void draw(Graphics g) {
-        g.drawImage(IMAGE, CENTER_X - IMAGE.getWidth() / 2,
-                CENTER_Y - IMAGE.getHeight() / 2, null);
+        BufferedImage img = getTransformedImage();
+        g.drawImage(img, CENTER_X - img.getWidth() / 2,
+                CENTER_Y - img.getHeight() / 2, null);
     }
 
+    /**
+     * Return true if (x,y) is inside the image as it is drawn, scaled and
+     * rotated. The point is mapped back onto the untransformed image, so
+     * the transformed copy is not made.
+     */
     public boolean contains(int x, int y) {
-        int w = IMAGE.getWidth();
-        int h = IMAGE.getHeight();
-        return x > CENTER_X - w / 2 && x < CENTER_X + w / 2 && y > CENTER_Y - h / 2
-                && y < CENTER_Y + h / 2;
+        double scale = getScale();
+        double angle = getAngle();
+        double dx = x - CENTER_X;
+        double dy = y - CENTER_Y;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double u = (dx * cos + dy * sin) / scale;
+        double v = (dy * cos - dx * sin) / scale;
+        return Math.abs(u) < IMAGE.getWidth() / 2.0
+                && Math.abs(v) < IMAGE.getHeight() / 2.0;
+    }
+
+    /**
+     * Return the rectangle that the item covers when it is drawn. This is
+     * worked out from the scale and angle, without making the transformed
+     * copy.
+     */
+    public Rectangle getBounds() {
+        Dimension size = TransformCache.variantSize(IMAGE.getWidth(),
+                IMAGE.getHeight(), SCALE_BUCKET, ANGLE_BUCKET);
+        return new Rectangle(CENTER_X - size.width / 2,
+                CENTER_Y - size.height / 2, size.width, size.height);
+    }
+
+    /**
+     * Return the image as it is drawn, after scaling and rotation.
+     */
+    public BufferedImage getTransformedImage() {
+        return TransformCache.getShared().getVariant(IMAGE, SCALE_BUCKET,
+                ANGLE_BUCKET);
+    }
+
+    public BufferedImage getImage() {
+        return IMAGE;
+    }
+
+    public int getCenterX() {
+        return CENTER_X;
+    }
+
+    public int getCenterY() {
+        return CENTER_Y;
+    }
+
+    public double getScale() {
+        return TransformCache.bucketScale(SCALE_BUCKET);
+    }
+
+    public double getAngle() {
+        return TransformCache.bucketAngle(ANGLE_BUCKET);
     }
 
-}
\ No newline at end of file
+}
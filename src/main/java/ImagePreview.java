@@ -0,0 +1,59 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+
+/**
+ * An accessory for a JFileChooser that shows a thumbnail of the selected
+ * image file. Thumbnails come from the shared ThumbnailCache and are made on
+ * a background thread, so selecting a large file never blocks the dialog.
+ */
+public class ImagePreview extends JComponent {
+
+    public static final int SIZE = 160;
+
+    private BufferedImage thumbnail;
+    private File requested; // the file whose thumbnail we are waiting for
+    private boolean loading;
+
+    public ImagePreview(JFileChooser chooser) {
+        setPreferredSize(new Dimension(SIZE + 10, SIZE + 10));
+        setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        chooser.addPropertyChangeListener(
+                JFileChooser.SELECTED_FILE_CHANGED_PROPERTY,
+                evt -> preview((File) evt.getNewValue()));
+    }
+
+    private void preview(File file) {
+        thumbnail = null;
+        requested = file;
+        loading = file != null; // the worker finds out if it is a file
+        repaint();
+        if (!loading)
+            return;
+        ThumbnailCache.getShared().requestThumbnail(file, SIZE, thumb -> {
+            if (file.equals(requested)) { // ignore answers that are too late
+                thumbnail = thumb;
+                loading = false;
+                repaint();
+            }
+        });
+    }
+
+    protected void paintComponent(Graphics g) {
+        if (thumbnail == null) {
+            if (loading) {
+                g.setColor(Color.GRAY);
+                g.drawString("Loading...", 10, getHeight() / 2);
+            }
+            return;
+        }
+        int x = (getWidth() - thumbnail.getWidth()) / 2;
+        int y = (getHeight() - thumbnail.getHeight()) / 2;
+        g.drawImage(thumbnail, x, y, null);
+    }
+}
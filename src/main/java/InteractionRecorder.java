@@ -0,0 +1,274 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Records the user's interaction with a DrawPanel in a compact binary file,
+ * which can be played back by InteractionReplay. Mouse presses and wheel
+ * movements are recorded, along with the choice of stamp or eraser from the
+ * Stamper menu or toolbar and the "New" command. The commands of the other
+ * menus are recorded by their effect on the panel: changes to the text, the
+ * background, the overlay, the border, the picture size, the layers and the
+ * viewport (by zooming or by dragging with the right mouse button). The
+ * settings the panel has when recording starts are recorded first, but not
+ * the stamps it already holds. Each event is stored as a type byte, the time
+ * since the previous event and the event's data, with integers written in a
+ * variable-length encoding.
+ */
+public class InteractionRecorder {
+
+    static final int MAGIC = 0x53524543; // "SREC"
+
+    static final byte PRESS = 1;
+    static final byte WHEEL = 2;
+    static final byte SELECT_STAMP = 3;
+    static final byte SELECT_ERASER = 4;
+    static final byte CLEAR = 5;
+    static final byte VIEWPORT = 6;
+    static final byte TEXT = 7;
+    static final byte BACKGROUND_IMAGE = 8;
+    static final byte BACKGROUND_COLOR = 9;
+    static final byte BORDER = 10;
+    static final byte OVERLAY = 11;
+    static final byte PICTURE_SIZE = 12;
+    static final byte LAYER_ADD = 13;
+    static final byte LAYER_REMOVE = 14;
+    static final byte LAYER_VISIBLE = 15;
+    static final byte SELECT_LAYER = 16;
+
+    private final DataOutputStream out;
+    private long lastTime = System.currentTimeMillis();
+
+    /**
+     * Start recording the interaction with panel to file. The names of the
+     * stamps that are selected are looked up in stamps.
+     */
+    public InteractionRecorder(DrawPanel panel, IconSupport stamps, File file)
+            throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        MouseAdapter listener = new MouseAdapter() {
+            public void mousePressed(MouseEvent evt) {
+                record(PRESS, evt.getX(), evt.getY(), evt.getButton(),
+                        evt.getModifiersEx());
+            }
+
+            public void mouseWheelMoved(MouseWheelEvent evt) {
+                record(WHEEL, evt.getX(), evt.getY(), evt.getWheelRotation(),
+                        evt.getModifiersEx());
+            }
+        };
+        panel.addMouseListener(listener);
+        panel.addMouseWheelListener(listener);
+        panel.addPropertyChangeListener("currentDrawImage", evt -> {
+            BufferedImage image = (BufferedImage) evt.getNewValue();
+            if (image == null)
+                record(SELECT_ERASER);
+            else
+                recordStamp(stamps.getStampName(image));
+        });
+        panel.addPropertyChangeListener("cleared", evt -> record(CLEAR));
+        recordSettings(panel);
+        panel.addPropertyChangeListener("viewport", evt -> recordViewport(
+                panel.getViewport()));
+        panel.addPropertyChangeListener("text", evt -> recordText(
+                panel.getTextItem()));
+        panel.addPropertyChangeListener("backgroundSource",
+                evt -> recordString(BACKGROUND_IMAGE,
+                        panel.getBackgroundSource()));
+        panel.addPropertyChangeListener("background", evt -> record(
+                BACKGROUND_COLOR, panel.getBackground().getRGB()));
+        panel.addPropertyChangeListener("borderColor", evt -> record(BORDER,
+                panel.getBorderColor().getRGB()));
+        panel.addPropertyChangeListener("gradientOverlayColor",
+                evt -> recordOverlay(panel));
+        panel.addPropertyChangeListener("horizontalOverlay",
+                evt -> recordOverlay(panel));
+        panel.addPropertyChangeListener("pictureSize",
+                evt -> recordPictureSize(panel.getPictureSize()));
+        panel.addPropertyChangeListener("layerAdded", evt -> recordString(
+                LAYER_ADD, ((StampLayer) evt.getNewValue()).getName()));
+        panel.addPropertyChangeListener("layerRemoved", evt -> record(
+                LAYER_REMOVE, (Integer) evt.getOldValue()));
+        panel.addPropertyChangeListener("layerVisible", evt -> {
+            StampLayer layer = (StampLayer) evt.getNewValue();
+            record(LAYER_VISIBLE, panel.getLayers().indexOf(layer),
+                    layer.isVisible() ? 1 : 0);
+        });
+        panel.addPropertyChangeListener("currentLayer", evt -> record(
+                SELECT_LAYER, panel.getLayers().indexOf(
+                        (StampLayer) evt.getNewValue())));
+    }
+
+    /**
+     * Record the settings of panel, so that a replay starts from them.
+     */
+    private void recordSettings(DrawPanel panel) {
+        record(BACKGROUND_COLOR, panel.getBackground().getRGB());
+        recordString(BACKGROUND_IMAGE, panel.getBackgroundSource());
+        recordOverlay(panel);
+        record(BORDER, panel.getBorderColor().getRGB());
+        recordPictureSize(panel.getPictureSize());
+        recordText(panel.getTextItem());
+        List<StampLayer> layers = panel.getLayers();
+        for (int i = 0; i < layers.size(); i++) {
+            if (i >= 2)
+                recordString(LAYER_ADD, layers.get(i).getName());
+            if (!layers.get(i).isVisible())
+                record(LAYER_VISIBLE, i, 0);
+        }
+        record(SELECT_LAYER, layers.indexOf(panel.getCurrentLayer()));
+        recordViewport(panel.getViewport());
+    }
+
+    /**
+     * Write any buffered events and close the file.
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void record(byte type, int... values) {
+        try {
+            writeHeader(type);
+            for (int v : values)
+                writeVarInt(out, v);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void recordViewport(Viewport viewport) {
+        try {
+            writeHeader(VIEWPORT);
+            out.writeDouble(viewport.getZoom());
+            out.writeDouble(viewport.getOriginX());
+            out.writeDouble(viewport.getOriginY());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void recordText(TextItem text) {
+        try {
+            Color c = text.getColor();
+            writeHeader(TEXT);
+            writeString(out, text.getText());
+            writeVarInt(out, c == null ? 0 : c.getRGB());
+            out.writeBoolean(c != null);
+            out.writeDouble(text.getLineHeightMultiplier());
+            out.writeBoolean(text.isBold());
+            out.writeBoolean(text.isItalic());
+            writeVarInt(out, text.getFontSize());
+            writeString(out, text.getFontName());
+            writeVarInt(out, text.getJustify());
+            out.writeBoolean(text.hasShadow());
+            out.writeBoolean(text.hasOutline());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void recordOverlay(DrawPanel panel) {
+        Color c = panel.getGradientOverlayColor();
+        record(OVERLAY, c == null ? 0 : 1, c == null ? 0 : c.getRGB(),
+                panel.isHorizontalOverlay() ? 1 : 0);
+    }
+
+    private void recordPictureSize(Dimension size) {
+        record(PICTURE_SIZE, size == null ? 0 : size.width,
+                size == null ? 0 : size.height);
+    }
+
+    /**
+     * Record an event whose data is a string, which is empty if s is null.
+     */
+    private synchronized void recordString(byte type, String s) {
+        try {
+            writeHeader(type);
+            writeString(out, s == null ? "" : s);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void recordStamp(String name) {
+        try {
+            writeHeader(SELECT_STAMP);
+            out.writeUTF(name == null ? "" : name);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeHeader(byte type) throws IOException {
+        long now = System.currentTimeMillis();
+        out.writeByte(type);
+        writeVarInt(out, (int) Math.min(Integer.MAX_VALUE, now - lastTime));
+        lastTime = now;
+    }
+
+    /**
+     * Write v as a zigzag-encoded variable-length integer, using one byte for
+     * values between -64 and 63.
+     */
+    static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        int z = (v << 1) ^ (v >> 31);
+        while ((z & ~0x7F) != 0) {
+            out.writeByte((z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        out.writeByte(z);
+    }
+
+    /**
+     * Write s as its length, written by writeVarInt(), and its UTF-8 bytes.
+     * Unlike writeUTF(), this works for strings of any length.
+     */
+    static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString().
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0)
+            throw new IOException("Bad string length.");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read an integer written by writeVarInt().
+     *
+     * @throws EOFException at the end of the stream.
+     */
+    static int readVarInt(DataInputStream in) throws IOException {
+        int z = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            z |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+}
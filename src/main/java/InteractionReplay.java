@@ -0,0 +1,403 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import javax.swing.SwingUtilities;
+
+/**
+ * Plays back an interaction recorded by InteractionRecorder, or a synthetic
+ * load, against an off-screen DrawPanel, and reports how long the event
+ * handlers and the repaints took and how many bytes were allocated for each
+ * event. Runs in headless mode, so it can be used in automated load tests.
+ * Usage:
+ *
+ * <pre>
+ * java InteractionReplay [options] recording-file
+ * java InteractionReplay [options] --synthetic stamps erases
+ *
+ * options: --size WIDTHxHEIGHT   size of the panel (default 800x600)
+ *          --paint-every N       repaint after every Nth event (default 1)
+ * </pre>
+ * <p>
+ * The synthetic load places the given number of stamps at random points and
+ * then erases the given number of them, clicking on the center of stamps
+ * that are still present.
+ * <p>
+ * The panel is a Swing component, so the replay runs on the Event Dispatch
+ * Thread; main() does this. The panel never switches to draft mode, so every
+ * repaint is at full quality and the timings don't depend on how fast the
+ * events are played.
+ */
+public class InteractionReplay {
+
+    private final DrawPanel panel;
+    private final IconSupport stamps;
+    private final BufferedImage canvas;
+    private final Graphics2D canvasGraphics;
+    private final int paintEvery;
+    private final HashMap<String, BufferedImage> substituteStamps = new HashMap<>();
+    private final com.sun.management.ThreadMXBean threads;
+    private final Stats pressStats = new Stats("stamp");
+    private final Stats eraseStats = new Stats("erase");
+    private final Stats otherStats = new Stats("other");
+    private final Stats repaintStats = new Stats("repaint");
+    private int eventCount;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int width = 800;
+        int height = 600;
+        int paintEvery = 1;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")
+                && !args[i].equals("--synthetic")) {
+            if (args[i].equals("--size")) {
+                String[] wh = args[i + 1].split("x");
+                width = Integer.parseInt(wh[0]);
+                height = Integer.parseInt(wh[1]);
+            } else if (args[i].equals("--paint-every"))
+                paintEvery = Integer.parseInt(args[i + 1]);
+            else
+                usage();
+            i += 2;
+        }
+        if (!(i < args.length && args[i].equals("--synthetic")
+                && i + 2 < args.length) && i != args.length - 1)
+            usage();
+        int w = width;
+        int h = height;
+        int n = paintEvery;
+        int first = i;
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                InteractionReplay replay = new InteractionReplay(w, h, n);
+                long start = System.nanoTime();
+                try {
+                    if (args[first].equals("--synthetic"))
+                        replay.playSynthetic(Integer.parseInt(args[first + 1]),
+                                Integer.parseInt(args[first + 2]));
+                    else
+                        replay.play(new File(args[first]));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                System.out.printf("%d events in %.1f ms%n", replay.eventCount,
+                        (System.nanoTime() - start) / 1e6);
+                replay.report();
+            });
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (Exception) cause;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java InteractionReplay [--size WxH] "
+                + "[--paint-every N] (recording-file | --synthetic stamps erases)");
+        System.exit(1);
+    }
+
+    /**
+     * Create a replayer for a panel of the given size, which is repainted
+     * after every paintEvery events. The replayer should only be used on the
+     * Event Dispatch Thread.
+     */
+    public InteractionReplay(int width, int height, int paintEvery) {
+        this.paintEvery = Math.max(1, paintEvery);
+        panel = new DrawPanel();
+        panel.setDraftAllowed(false);
+        panel.setSize(width, height);
+        stamps = new IconSupport(panel);
+        canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        canvasGraphics = canvas.createGraphics();
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean)
+                .isThreadAllocatedMemorySupported())
+            threads = (com.sun.management.ThreadMXBean) bean;
+        else
+            threads = null;
+    }
+
+    /**
+     * Play back a file that was written by InteractionRecorder.
+     */
+    public void play(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != InteractionRecorder.MAGIC)
+                throw new IOException("Not an interaction recording: " + file);
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                InteractionRecorder.readVarInt(in); // time since last event
+                switch (type) {
+                    case InteractionRecorder.PRESS: {
+                        int x = InteractionRecorder.readVarInt(in);
+                        int y = InteractionRecorder.readVarInt(in);
+                        int button = InteractionRecorder.readVarInt(in);
+                        int modifiers = InteractionRecorder.readVarInt(in);
+                        press(x, y, button, modifiers);
+                        break;
+                    }
+                    case InteractionRecorder.WHEEL: {
+                        int x = InteractionRecorder.readVarInt(in);
+                        int y = InteractionRecorder.readVarInt(in);
+                        int rotation = InteractionRecorder.readVarInt(in);
+                        int modifiers = InteractionRecorder.readVarInt(in);
+                        // A zoom by the wheel was recorded, before the wheel
+                        // event, as a VIEWPORT event; don't zoom again.
+                        Viewport view = panel.getViewport();
+                        double zoom = view.getZoom();
+                        double originX = view.getOriginX();
+                        double originY = view.getOriginY();
+                        dispatch(new MouseWheelEvent(panel,
+                                MouseEvent.MOUSE_WHEEL, 0, modifiers, x, y, 0,
+                                false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 1,
+                                rotation), otherStats);
+                        view.set(zoom, originX, originY);
+                        break;
+                    }
+                    case InteractionRecorder.SELECT_STAMP:
+                        selectStamp(in.readUTF());
+                        break;
+                    case InteractionRecorder.SELECT_ERASER:
+                        panel.setCurrentDrawImage(null);
+                        break;
+                    case InteractionRecorder.CLEAR:
+                        panel.clear();
+                        break;
+                    case InteractionRecorder.VIEWPORT:
+                        panel.getViewport().set(in.readDouble(),
+                                in.readDouble(), in.readDouble());
+                        break;
+                    case InteractionRecorder.TEXT:
+                        readText(in);
+                        break;
+                    case InteractionRecorder.BACKGROUND_IMAGE: {
+                        String source = InteractionRecorder.readString(in);
+                        if (source.isEmpty())
+                            panel.setBackgroundImage(null);
+                        else
+                            panel.setBackgroundSource(source);
+                        break;
+                    }
+                    case InteractionRecorder.BACKGROUND_COLOR:
+                        panel.setBackground(new Color(
+                                InteractionRecorder.readVarInt(in), true));
+                        break;
+                    case InteractionRecorder.BORDER:
+                        panel.setBorderColor(new Color(
+                                InteractionRecorder.readVarInt(in), true));
+                        break;
+                    case InteractionRecorder.OVERLAY: {
+                        boolean hasColor = InteractionRecorder.readVarInt(in) != 0;
+                        int rgb = InteractionRecorder.readVarInt(in);
+                        panel.setGradientOverlayColor(hasColor
+                                ? new Color(rgb, true) : null);
+                        panel.setHorizontalOverlay(
+                                InteractionRecorder.readVarInt(in) != 0);
+                        break;
+                    }
+                    case InteractionRecorder.PICTURE_SIZE: {
+                        int width = InteractionRecorder.readVarInt(in);
+                        int height = InteractionRecorder.readVarInt(in);
+                        panel.setPictureSize(width > 0 && height > 0
+                                ? new Dimension(width, height) : null);
+                        break;
+                    }
+                    case InteractionRecorder.LAYER_ADD:
+                        panel.addLayer(InteractionRecorder.readString(in));
+                        break;
+                    case InteractionRecorder.LAYER_REMOVE: {
+                        int index = InteractionRecorder.readVarInt(in);
+                        if (index >= 2 && index < panel.getLayers().size())
+                            panel.removeLayer(panel.getLayers().get(index));
+                        break;
+                    }
+                    case InteractionRecorder.LAYER_VISIBLE: {
+                        int index = InteractionRecorder.readVarInt(in);
+                        boolean visible = InteractionRecorder.readVarInt(in) != 0;
+                        if (index >= 0 && index < panel.getLayers().size())
+                            panel.setLayerVisible(panel.getLayers().get(index),
+                                    visible);
+                        break;
+                    }
+                    case InteractionRecorder.SELECT_LAYER: {
+                        int index = InteractionRecorder.readVarInt(in);
+                        if (index >= 0 && index < panel.getLayers().size())
+                            panel.setCurrentLayer(panel.getLayers().get(index));
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown event type " + type);
+                }
+            }
+        }
+    }
+
+    /**
+     * Place the given number of stamps at random points, then erase the given
+     * number of stamps by clicking on them. The random numbers are seeded, so
+     * every run does the same thing.
+     */
+    public void playSynthetic(int stampCount, int eraseCount) {
+        Random random = new Random(8);
+        selectStamp("star");
+        for (int i = 0; i < stampCount; i++)
+            press(random.nextInt(canvas.getWidth()),
+                    random.nextInt(canvas.getHeight()), MouseEvent.BUTTON1, 0);
+        panel.setCurrentDrawImage(null);
+        for (int i = 0; i < eraseCount; i++) {
+            List<ImageItem> items = panel.getImageItems(); // a copy
+            if (items.isEmpty())
+                break;
+            ImageItem target = items.get(random.nextInt(items.size()));
+            press(target.getCenterX(), target.getCenterY(), MouseEvent.BUTTON1,
+                    0);
+        }
+    }
+
+    /**
+     * Print the statistics that have been collected.
+     */
+    public void report() {
+        System.out.println("                count    mean us     p50 us     "
+                + "p99 us     max us   bytes/event");
+        pressStats.print();
+        eraseStats.print();
+        otherStats.print();
+        repaintStats.print();
+    }
+
+    /**
+     * Read the settings of the text, recorded by recordText(), and apply them
+     * to the panel's text.
+     */
+    private void readText(DataInputStream in) throws IOException {
+        TextItem text = panel.getTextItem();
+        text.setText(InteractionRecorder.readString(in));
+        int rgb = InteractionRecorder.readVarInt(in);
+        text.setColor(in.readBoolean() ? new Color(rgb, true) : null);
+        text.setLineHeightMultiplier(in.readDouble());
+        text.setBold(in.readBoolean());
+        text.setItalic(in.readBoolean());
+        text.setFontSize(InteractionRecorder.readVarInt(in));
+        text.setFontName(InteractionRecorder.readString(in));
+        text.setJustify(InteractionRecorder.readVarInt(in));
+        text.setShadow(in.readBoolean());
+        text.setOutline(in.readBoolean());
+        panel.textChanged();
+    }
+
+    private void selectStamp(String name) {
+        BufferedImage image = stamps.getStampImage(name);
+        if (image == null) {
+            // The stamp resources aren't available; use a stand-in of the
+            // same general size, so that the timings are still meaningful.
+            image = substituteStamps.get(name);
+            if (image == null) {
+                image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = image.createGraphics();
+                g.setColor(new Color(name.hashCode() | 0xFF000000));
+                g.fillOval(0, 0, 32, 32);
+                g.dispose();
+                substituteStamps.put(name, image);
+            }
+        }
+        panel.setCurrentDrawImage(image);
+    }
+
+    /**
+     * Press a mouse button. Presses of the right button start a pan, so
+     * only those of the other buttons count as stamps or erases.
+     */
+    private void press(int x, int y, int button, int modifiers) {
+        if (modifiers == 0 && button == MouseEvent.BUTTON1)
+            modifiers = InputEvent.BUTTON1_DOWN_MASK;
+        MouseEvent evt = new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0,
+                modifiers, x, y, 1, false, button);
+        dispatch(evt, SwingUtilities.isRightMouseButton(evt) ? otherStats
+                : panel.getCurrentDrawImage() == null ? eraseStats : pressStats);
+    }
+
+    private void dispatch(MouseEvent evt, Stats stats) {
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        panel.dispatchEvent(evt);
+        long time = System.nanoTime() - start;
+        stats.add(time, allocatedBytes() - bytes);
+        if (++eventCount % paintEvery == 0) {
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            panel.paint(canvasGraphics);
+            time = System.nanoTime() - start;
+            repaintStats.add(time, allocatedBytes() - bytes);
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Collects the times and allocations for one kind of event.
+     */
+    private static class Stats {
+        final String name;
+        long[] times = new long[1024];
+        int count;
+        long bytes;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void add(long time, long allocated) {
+            if (count == times.length)
+                times = Arrays.copyOf(times, count * 2);
+            times[count++] = time;
+            bytes += allocated;
+        }
+
+        void print() {
+            if (count == 0)
+                return;
+            long[] sorted = Arrays.copyOf(times, count);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long t : sorted)
+                total += t;
+            System.out.printf("%-10s %10d %10.1f %10.1f %10.1f %10.1f %13d%n",
+                    name, count, total / 1e3 / count, sorted[count / 2] / 1e3,
+                    sorted[(int) (count * 0.99)] / 1e3,
+                    sorted[count - 1] / 1e3, bytes / count);
+        }
+    }
+}
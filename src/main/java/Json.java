@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small reader and writer for JSON text, enough for scene descriptions and
+ * job lists. Objects are read as Maps (which keep the order of their keys),
+ * arrays as Lists, numbers as Doubles, and true, false and null as Boolean
+ * values and null. Arrays and objects can be nested at most MAX_DEPTH deep,
+ * so that a hostile text can't overflow the stack.
+ */
+public class Json {
+
+    /**
+     * The deepest that arrays and objects can be nested.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private final String text;
+    private int pos;
+    private int depth;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parse a complete JSON value.
+     *
+     * @throws IOException if text is not valid JSON.
+     */
+    public static Object parse(String text) throws IOException {
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipSpace();
+        if (json.pos < text.length())
+            throw json.error("Unexpected text after value");
+        return value;
+    }
+
+    /**
+     * Parse a JSON object.
+     *
+     * @throws IOException if text is not a valid JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String text)
+            throws IOException {
+        Object value = parse(text);
+        if (!(value instanceof Map))
+            throw new IOException("Expected a JSON object");
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * Return s as a quoted JSON string.
+     */
+    public static String quote(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        b.append(String.format("\\u%04x", (int) c));
+                    else
+                        b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    private Object readValue() throws IOException {
+        skipSpace();
+        if (pos >= text.length())
+            throw error("Unexpected end of text");
+        char c = text.charAt(pos);
+        switch (c) {
+            case '{':
+            case '[':
+                if (depth == MAX_DEPTH)
+                    throw error("Nested too deeply");
+                depth++;
+                Object value = c == '{' ? readObject() : readArray();
+                depth--;
+                return value;
+            case '"':
+                return readString();
+            case 't':
+                return readWord("true", Boolean.TRUE);
+            case 'f':
+                return readWord("false", Boolean.FALSE);
+            case 'n':
+                return readWord("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return readNumber();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+        pos++;
+        skipSpace();
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+        while (true) {
+            skipSpace();
+            if (peek() != '"')
+                throw error("Expected a string key");
+            String key = readString();
+            skipSpace();
+            expect(':');
+            map.put(key, readValue());
+            skipSpace();
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect('}');
+            return map;
+        }
+    }
+
+    private List<Object> readArray() throws IOException {
+        ArrayList<Object> list = new ArrayList<>();
+        pos++;
+        skipSpace();
+        if (peek() == ']') {
+            pos++;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipSpace();
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect(']');
+            return list;
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder b = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= text.length())
+                throw error("Unterminated string");
+            char c = text.charAt(pos++);
+            if (c == '"')
+                return b.toString();
+            if (c != '\\') {
+                b.append(c);
+                continue;
+            }
+            if (pos >= text.length())
+                throw error("Unterminated string");
+            c = text.charAt(pos++);
+            switch (c) {
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 'b':
+                    b.append('\b');
+                    break;
+                case 'f':
+                    b.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length())
+                        throw error("Bad \\u escape");
+                    try {
+                        b.append((char) Integer.parseInt(
+                                text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Bad \\u escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    b.append(c); // \" \\ \/
+            }
+        }
+    }
+
+    private Double readNumber() throws IOException {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(
+                text.charAt(pos)) >= 0)
+            pos++;
+        try {
+            return Double.valueOf(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+
+    private Object readWord(String word, Object value) throws IOException {
+        if (!text.startsWith(word, pos))
+            throw error("Unexpected word");
+        pos += word.length();
+        return value;
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c)
+            throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.List;
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+
+/**
+ * A menu of commands for the stamp layers of a DrawPanel: adding and deleting
+ * layers, choosing the layer in which stamps are placed, and showing or
+ * hiding each layer. The items are made again each time the menu is opened,
+ * so they always match the panel's current layers.
+ */
+public class LayerMenu extends JMenu {
+
+    private final DrawPanel panel;
+
+    public LayerMenu(DrawPanel owner) {
+        super("Layers");
+        panel = owner;
+        addMenuListener(new MenuListener() {
+            public void menuSelected(MenuEvent evt) {
+                rebuild();
+            }
+
+            public void menuDeselected(MenuEvent evt) {
+            }
+
+            public void menuCanceled(MenuEvent evt) {
+            }
+        });
+        rebuild();
+    }
+
+    private void rebuild() {
+        removeAll();
+        JMenuItem add = new JMenuItem("New Layer...");
+        add.addActionListener(evt -> {
+            String name = JOptionPane.showInputDialog(panel,
+                    "Name of the new layer:",
+                    "Layer " + (panel.getLayers().size() - 1));
+            if (name != null && name.trim().length() > 0)
+                panel.addLayer(name.trim());
+        });
+        add(add);
+        StampLayer current = panel.getCurrentLayer();
+        JMenuItem delete = new JMenuItem("Delete Layer \"" + current.getName()
+                + "\"");
+        delete.setEnabled(panel.getLayers().indexOf(current) >= 2);
+        delete.addActionListener(evt -> {
+            if (!current.getItems().isEmpty()) {
+                int answer = JOptionPane.showConfirmDialog(panel,
+                        "Delete the layer and its " + current.getItems().size()
+                                + " stamps?", "Delete Layer",
+                        JOptionPane.OK_CANCEL_OPTION);
+                if (answer != JOptionPane.OK_OPTION)
+                    return;
+            }
+            panel.removeLayer(current);
+        });
+        add(delete);
+
+        List<StampLayer> layers = panel.getLayers();
+        addSeparator();
+        JMenu place = new JMenu("Place Stamps In");
+        ButtonGroup group = new ButtonGroup();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            StampLayer layer = layers.get(i);
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(
+                    layer.getName(), layer == current);
+            item.addActionListener(evt -> panel.setCurrentLayer(layer));
+            group.add(item);
+            place.add(item);
+        }
+        add(place);
+        addSeparator();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            StampLayer layer = layers.get(i);
+            JCheckBoxMenuItem show = new JCheckBoxMenuItem("Show "
+                    + layer.getName(), layer.isVisible());
+            show.addActionListener(evt -> panel.setLayerVisible(layer,
+                    show.isSelected()));
+            add(show);
+        }
+    }
+}
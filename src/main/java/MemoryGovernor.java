@@ -0,0 +1,398 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the raster memory used by the program within a budget. The budget is
+ * taken from the system property sayings.heapBudgetMB, or is half of the
+ * maximum heap size if that property is not set. Stamps and caches register
+ * themselves as Trackers that report how many bytes they hold, and each
+ * panel counts its background image with a Background from newBackground().
+ * When the total goes over the budget, trackers are asked to give memory
+ * back, lowest priority first; when that is not enough to fit a new
+ * background, the background is downsampled. Each of these decisions is
+ * counted and logged, and can be read through getStats().
+ */
+public class MemoryGovernor {
+
+    /**
+     * Priority of caches whose contents are cheap to make again, such as
+     * thumbnails that are also stored on disk.
+     */
+    public static final int PRIORITY_DISPOSABLE = 0;
+
+    /**
+     * Priority of caches whose contents must be rendered again.
+     */
+    public static final int PRIORITY_RENDERED = 10;
+
+    /**
+     * Priority of memory that is in use and can't be given back, such as the
+     * images of the stamps. It is counted, but never reclaimed.
+     */
+    public static final int PRIORITY_PINNED = Integer.MAX_VALUE;
+
+    /**
+     * The largest part of the budget that the background may use.
+     */
+    public static final double BACKGROUND_SHARE = 0.5;
+
+    /**
+     * A background is never downsampled to less than this width or height.
+     */
+    public static final int MIN_BACKGROUND_SIZE = 256;
+
+    private static final int MAX_DECISIONS = 100;
+
+    private static MemoryGovernor shared;
+
+    /**
+     * Something that holds raster memory. Its methods may be called from any
+     * thread, and must not call back into the governor.
+     */
+    public interface Tracker {
+        /**
+         * Return the estimated number of bytes held.
+         */
+        long getBytes();
+
+        /**
+         * Free at least the given number of bytes, if possible.
+         *
+         * @return the number of bytes that were freed.
+         */
+        long reclaim(long bytes);
+    }
+
+    /**
+     * A snapshot of the state of the governor.
+     */
+    public static class Stats {
+        public final long BUDGET;
+        public final long USED;
+        public final Map<String, Long> BYTES; // by tracker name, and "background"
+        public final int DOWNSAMPLES;
+        public final int RECLAIMS;
+        public final long RECLAIMED_BYTES;
+        public final List<String> DECISIONS; // most recent last
+
+        Stats(long budget, long used, Map<String, Long> bytes, int downsamples,
+              int reclaims, long reclaimedBytes, List<String> decisions) {
+            BUDGET = budget;
+            USED = used;
+            BYTES = Collections.unmodifiableMap(bytes);
+            DOWNSAMPLES = downsamples;
+            RECLAIMS = reclaims;
+            RECLAIMED_BYTES = reclaimedBytes;
+            DECISIONS = Collections.unmodifiableList(decisions);
+        }
+
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            b.append("Budget ").append(mb(BUDGET)).append(", used ")
+                    .append(mb(USED)).append('\n');
+            for (Map.Entry<String, Long> e : BYTES.entrySet())
+                b.append("  ").append(e.getKey()).append(": ")
+                        .append(mb(e.getValue())).append('\n');
+            b.append(DOWNSAMPLES).append(" backgrounds downsampled, ")
+                    .append(RECLAIMS).append(" reclaims freed ")
+                    .append(mb(RECLAIMED_BYTES)).append('\n');
+            for (String d : DECISIONS)
+                b.append("  ").append(d).append('\n');
+            return b.toString();
+        }
+    }
+
+    /**
+     * The background image of one panel. It is pinned: it is counted, but
+     * only made smaller when a new image is admitted. The governor only
+     * keeps a weak reference to it, so it stops being counted when its
+     * panel is no longer used.
+     */
+    public final class Background implements Tracker {
+        private volatile long bytes;
+
+        private Background() {
+        }
+
+        /**
+         * Account for a new background image, which replaces the previous
+         * one. An image larger than BACKGROUND_SHARE of the budget is
+         * downsampled first; then caches are reclaimed to make room for it,
+         * and if it still doesn't fit it is downsampled further. No image is
+         * made smaller than MIN_BACKGROUND_SIZE.
+         *
+         * @return the image to use, which is either image or a smaller copy,
+         * or null if image is null.
+         */
+        public BufferedImage admit(BufferedImage image) {
+            bytes = 0;
+            if (image == null)
+                return null;
+            BufferedImage result = admitBackground(image);
+            bytes = sizeOf(result);
+            return result;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long reclaim(long wanted) {
+            return 0;
+        }
+    }
+
+    private static final class Registration {
+        final String NAME;
+        final int PRIORITY;
+        final Tracker TRACKER; // null if the tracker is held weakly
+        final WeakReference<Tracker> WEAK;
+
+        Registration(String name, int priority, Tracker tracker,
+                     boolean weak) {
+            NAME = name;
+            PRIORITY = priority;
+            TRACKER = weak ? null : tracker;
+            WEAK = weak ? new WeakReference<>(tracker) : null;
+        }
+
+        /**
+         * Return the tracker, or null if it was held weakly and is gone.
+         */
+        Tracker tracker() {
+            return TRACKER != null ? TRACKER : WEAK.get();
+        }
+    }
+
+    private final long budget;
+    private final ArrayList<Registration> trackers = new ArrayList<>();
+    private final ArrayDeque<String> decisions = new ArrayDeque<>();
+    private int downsamples;
+    private int reclaims;
+    private long reclaimedBytes;
+
+    /**
+     * Create a governor with the given budget, in bytes.
+     */
+    public MemoryGovernor(long budget) {
+        if (budget <= 0)
+            throw new IllegalArgumentException("Budget must be positive.");
+        this.budget = budget;
+    }
+
+    /**
+     * Return the governor that is shared by the whole program.
+     */
+    public static synchronized MemoryGovernor getShared() {
+        if (shared == null) {
+            long budget = Runtime.getRuntime().maxMemory() / 2;
+            String mb = System.getProperty("sayings.heapBudgetMB");
+            if (mb != null) {
+                try {
+                    budget = Long.parseLong(mb.trim()) << 20;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            shared = new MemoryGovernor(Math.max(1 << 20, budget));
+        }
+        return shared;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Start tracking the memory held by tracker. Trackers with lower
+     * priority values are asked to give memory back first.
+     */
+    public void register(String name, int priority, Tracker tracker) {
+        register(name, priority, tracker, false);
+    }
+
+    private synchronized void register(String name, int priority,
+                                       Tracker tracker, boolean weak) {
+        int i = 0;
+        while (i < trackers.size() && trackers.get(i).PRIORITY <= priority)
+            i++;
+        trackers.add(i, new Registration(name, priority, tracker, weak));
+    }
+
+    /**
+     * Stop tracking the memory held by tracker.
+     */
+    public synchronized void unregister(Tracker tracker) {
+        trackers.removeIf(r -> r.tracker() == tracker);
+    }
+
+    /**
+     * Return a new Background, for the background image of a panel, which
+     * is counted until the Background is no longer referenced.
+     */
+    public Background newBackground() {
+        Background background = new Background();
+        register("background", PRIORITY_PINNED, background, true);
+        return background;
+    }
+
+    /**
+     * Return the registrations whose trackers still exist, in priority
+     * order, forgetting those that don't.
+     */
+    private synchronized ArrayList<Registration> registrations() {
+        trackers.removeIf(r -> r.tracker() == null);
+        return new ArrayList<>(trackers);
+    }
+
+    /**
+     * Return the estimated number of bytes in use by all of the trackers,
+     * including the backgrounds.
+     */
+    public long getUsed() {
+        long used = 0;
+        for (Registration r : registrations()) {
+            Tracker t = r.tracker();
+            if (t != null)
+                used += t.getBytes();
+        }
+        return used;
+    }
+
+    /**
+     * Reclaim memory from the trackers, if the total is over the budget. This
+     * should be called after a tracker grows, but not while it holds a lock
+     * that its reclaim() method also needs.
+     */
+    public void check() {
+        reclaim(getUsed() - budget, "over budget");
+    }
+
+    /**
+     * Make room for a background image, as described in Background.admit(),
+     * whose Background no longer counts its previous image.
+     */
+    private BufferedImage admitBackground(BufferedImage image) {
+        long size = sizeOf(image);
+        BufferedImage result = shrink(image, (long) (budget * BACKGROUND_SHARE));
+        long others = getUsed();
+        long free = budget - others;
+        if (sizeOf(result) > free)
+            free += reclaim(sizeOf(result) - free, "room for background");
+        result = shrink(result, free);
+        synchronized (this) {
+            if (result != image) {
+                downsamples++;
+                log("Background " + image.getWidth() + "x" + image.getHeight()
+                        + " (" + mb(size) + ") downsampled to "
+                        + result.getWidth() + "x" + result.getHeight() + " ("
+                        + mb(sizeOf(result)) + ")");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a snapshot of the memory use and of the recent decisions.
+     */
+    public Stats getStats() {
+        LinkedHashMap<String, Long> bytes = new LinkedHashMap<>();
+        bytes.put("background", 0L);
+        long used = 0;
+        for (Registration r : registrations()) {
+            Tracker t = r.tracker();
+            if (t == null)
+                continue;
+            long b = t.getBytes();
+            bytes.merge(r.NAME, b, Long::sum);
+            used += b;
+        }
+        synchronized (this) {
+            return new Stats(budget, used, bytes, downsamples, reclaims,
+                    reclaimedBytes, new ArrayList<>(decisions));
+        }
+    }
+
+    /**
+     * Ask the trackers, in priority order, to free a total of at least
+     * wanted bytes. The trackers are called without holding the governor's
+     * lock.
+     *
+     * @return the number of bytes freed.
+     */
+    private long reclaim(long wanted, String reason) {
+        if (wanted <= 0)
+            return 0;
+        long freed = 0;
+        for (Registration r : registrations()) {
+            if (freed >= wanted || r.PRIORITY == PRIORITY_PINNED)
+                break;
+            Tracker t = r.tracker();
+            long f = t == null ? 0 : t.reclaim(wanted - freed);
+            if (f > 0) {
+                freed += f;
+                synchronized (this) {
+                    reclaims++;
+                    reclaimedBytes += f;
+                    log("Reclaimed " + mb(f) + " from " + r.NAME + " ("
+                            + reason + ")");
+                }
+            }
+        }
+        return freed;
+    }
+
+    private void log(String decision) {
+        decisions.addLast(decision);
+        while (decisions.size() > MAX_DECISIONS)
+            decisions.removeFirst();
+    }
+
+    /**
+     * Return the number of bytes of pixel data in image: the size of the
+     * banks of its DataBuffer. An int per pixel counts as 4 bytes, even if
+     * only 3 of them are used.
+     */
+    public static long sizeOf(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    /**
+     * Halve image until it holds no more than maxBytes, or until the next
+     * halving would make it smaller than MIN_BACKGROUND_SIZE.
+     */
+    private static BufferedImage shrink(BufferedImage image, long maxBytes) {
+        while (sizeOf(image) > maxBytes && Math.min(image.getWidth(),
+                image.getHeight()) / 2 >= MIN_BACKGROUND_SIZE)
+            image = half(image);
+        return image;
+    }
+
+    private static BufferedImage half(BufferedImage image) {
+        int w = Math.max(1, image.getWidth() / 2);
+        int h = Math.max(1, image.getHeight() / 2);
+        BufferedImage small = new BufferedImage(w, h,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = small.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+        return small;
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+}
@@ -0,0 +1,430 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of which stamps in a stack of stamps are completely hidden by
+ * the opaque parts of stamps above them, so that drawing the stack can skip
+ * them. Each image has an opaque interior: the largest rectangle in which
+ * every pixel is fully opaque, computed once per image. A stamp is hidden if
+ * its bounds are covered by the interiors of the stamps above it, together.
+ * <p>
+ * The stamps are kept in a grid of cells, so a change only looks at stamps
+ * near it. Only visible stamps are used to hide others, since a hidden
+ * stamp's interior lies within those of the visible stamps above it; hidden
+ * stamps are kept in a separate grid, so a dense stack costs no more to
+ * change than the stamps that can be seen. Each visible stamp keeps the part
+ * of its bounds that is not yet covered, as a list of rectangles; adding a
+ * stamp on top only cuts its interior out of the lists of the stamps near
+ * it. Removing a stamp checks again only the stamps below it that it
+ * overlapped, from the top down, and can show again stamps it was hiding.
+ * Interiors are made smaller by a margin, so that a stamp that is hidden
+ * stays hidden when the stack is drawn scaled with interpolation.
+ */
+public class OcclusionIndex {
+
+    /**
+     * The width and height of a cell of the grid, in pixels.
+     */
+    public static final int CELL_SIZE = 128;
+
+    /**
+     * The number of pixels by which an opaque interior is made smaller on
+     * each side before it is used to hide other stamps.
+     */
+    public static final int MARGIN = 2;
+
+    /**
+     * The most pieces into which the uncovered part of a stamp is cut while
+     * testing whether it is hidden; past this, it is taken to be visible.
+     */
+    private static final int MAX_PIECES = 64;
+
+    private static final Map<BufferedImage, Rectangle> INTERIORS =
+            new WeakHashMap<>();
+
+    /**
+     * A stamp in the stack. Stamps with higher sequence numbers are above.
+     */
+    private static class Entry {
+        final long seq;
+        final ImageItem item;
+        final Rectangle bounds;
+        final Rectangle cover; // the interior less the margin, or null
+        boolean hidden;
+        // For a visible entry, the parts of bounds not covered from above,
+        // or null if there are too many to keep track of, and a rectangle
+        // that contains them all.
+        List<Rectangle> uncovered;
+        Rectangle uncoveredBounds;
+
+        void setUncovered(List<Rectangle> pieces) {
+            uncovered = pieces;
+            uncoveredBounds = null;
+            if (pieces != null)
+                for (Rectangle r : pieces)
+                    uncoveredBounds = uncoveredBounds == null ? new Rectangle(r)
+                            : uncoveredBounds.union(r);
+        }
+
+        Entry(long seq, ImageItem item, Rectangle bounds, Rectangle cover) {
+            this.seq = seq;
+            this.item = item;
+            this.bounds = bounds;
+            this.cover = cover;
+        }
+    }
+
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final HashMap<Long, Set<Entry>> visibleCells = new HashMap<>();
+    private final HashMap<Long, Set<Entry>> hiddenCells = new HashMap<>();
+    private long nextSeq;
+    private int hiddenCount;
+
+    /**
+     * Return the largest rectangle of fully opaque pixels in image, in the
+     * image's own coordinates, or an empty rectangle if there is none. The
+     * result is remembered for as long as the image is in use.
+     */
+    public static Rectangle opaqueInterior(BufferedImage image) {
+        synchronized (INTERIORS) {
+            Rectangle r = INTERIORS.get(image);
+            if (r != null)
+                return new Rectangle(r);
+        }
+        Rectangle r = findOpaqueInterior(image);
+        synchronized (INTERIORS) {
+            INTERIORS.put(image, r);
+        }
+        return new Rectangle(r);
+    }
+
+    /**
+     * Add a stamp on top of the others.
+     */
+    public void add(ImageItem item) {
+        Rectangle bounds = item.getBounds();
+        Rectangle interior = opaqueInterior(item.getTransformedImage());
+        Rectangle cover = null;
+        if (interior.width > 2 * MARGIN && interior.height > 2 * MARGIN) {
+            cover = new Rectangle(bounds.x + interior.x + MARGIN,
+                    bounds.y + interior.y + MARGIN,
+                    interior.width - 2 * MARGIN, interior.height - 2 * MARGIN);
+        }
+        Entry entry = new Entry(nextSeq++, item, bounds, cover);
+        entry.setUncovered(new ArrayList<>(Collections.singletonList(bounds)));
+        entries.add(entry);
+        addToCells(visibleCells, entry);
+        if (cover == null)
+            return;
+        for (Entry below : near(visibleCells, cover)) {
+            if (below == entry || below.uncovered == null
+                    || !below.uncoveredBounds.intersects(cover))
+                continue;
+            List<Rectangle> rest = subtract(below.uncovered, cover);
+            if (rest != null && rest.isEmpty())
+                setHidden(below, true);
+            else
+                below.setUncovered(rest);
+        }
+    }
+
+    /**
+     * Remove the stamp at the given position in the stack, counting from
+     * the bottom. Stamps that it was hiding are shown again unless others
+     * still hide them.
+     */
+    public void remove(int index) {
+        Entry entry = entries.remove(index);
+        if (entry.hidden) {
+            removeFromCells(hiddenCells, entry);
+            hiddenCount--;
+            return;
+        }
+        removeFromCells(visibleCells, entry);
+        if (entry.cover == null)
+            return;
+        // The hole is the part of the interior that nothing above or between
+        // covers; only the stamps that it touches are checked again.
+        List<Rectangle> hole = new ArrayList<>();
+        hole.add(entry.cover);
+        for (Entry above : near(visibleCells, entry.cover))
+            if (above.seq > entry.seq)
+                hole = cut(hole, above);
+        List<Entry> affected = near(hiddenCells, entry.cover);
+        affected.addAll(near(visibleCells, entry.cover));
+        affected.sort((a, b) -> Long.compare(b.seq, a.seq));
+        for (Entry below : affected) {
+            if (hole.isEmpty())
+                break;
+            if (below.seq > entry.seq)
+                continue;
+            if (intersects(hole, below.bounds)) {
+                List<Rectangle> rest = findUncovered(below);
+                if (rest != null && rest.isEmpty()) {
+                    setHidden(below, true);
+                } else {
+                    setHidden(below, false);
+                    below.setUncovered(rest);
+                }
+            }
+            if (!below.hidden)
+                hole = cut(hole, below);
+        }
+    }
+
+    /**
+     * Return the pieces that are left of hole when the interior of entry is
+     * cut out of it. If that would leave too many, hole is returned as it
+     * is, which only means that more stamps are checked.
+     */
+    private static List<Rectangle> cut(List<Rectangle> hole, Entry entry) {
+        if (entry.cover == null)
+            return hole;
+        List<Rectangle> rest = subtract(hole, entry.cover);
+        return rest == null ? hole : rest;
+    }
+
+    private static boolean intersects(List<Rectangle> pieces, Rectangle r) {
+        for (Rectangle piece : pieces)
+            if (piece.intersects(r))
+                return true;
+        return false;
+    }
+
+    /**
+     * Remove all of the stamps.
+     */
+    public void clear() {
+        entries.clear();
+        visibleCells.clear();
+        hiddenCells.clear();
+        hiddenCount = 0;
+    }
+
+    /**
+     * Return true if the stamp at the given position in the stack is
+     * completely hidden by the stamps above it.
+     */
+    public boolean isHidden(int index) {
+        return entries.get(index).hidden;
+    }
+
+    /**
+     * Return the stamps that are not hidden and whose bounds intersect area,
+     * from the bottom of the stack up. Only the cells of the grid that area
+     * touches are looked at.
+     */
+    public List<ImageItem> visibleIn(Rectangle area) {
+        List<Entry> found = near(visibleCells, area);
+        found.sort((a, b) -> Long.compare(a.seq, b.seq));
+        List<ImageItem> items = new ArrayList<>(found.size());
+        for (Entry e : found)
+            items.add(e.item);
+        return items;
+    }
+
+    /**
+     * Return the number of stamps that are completely hidden.
+     */
+    public int getHiddenCount() {
+        return hiddenCount;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Mark an entry as hidden or visible, and move it to the grid for
+     * entries of that kind.
+     */
+    private void setHidden(Entry entry, boolean hidden) {
+        if (entry.hidden == hidden)
+            return;
+        removeFromCells(hidden ? visibleCells : hiddenCells, entry);
+        addToCells(hidden ? hiddenCells : visibleCells, entry);
+        hiddenCount += hidden ? 1 : -1;
+        entry.hidden = hidden;
+        entry.setUncovered(null);
+    }
+
+    private static void addToCells(HashMap<Long, Set<Entry>> grid,
+                                   Entry entry) {
+        forCells(entry.bounds, (cx, cy) -> grid.computeIfAbsent(key(cx, cy),
+                k -> new HashSet<>()).add(entry));
+    }
+
+    private static void removeFromCells(HashMap<Long, Set<Entry>> grid,
+                                        Entry entry) {
+        forCells(entry.bounds, (cx, cy) -> {
+            long cell = key(cx, cy);
+            Set<Entry> set = grid.get(cell);
+            set.remove(entry);
+            if (set.isEmpty())
+                grid.remove(cell);
+        });
+    }
+
+    /**
+     * Find the parts of the bounds of entry that are not covered by the
+     * interiors of the visible entries above it.
+     *
+     * @return the parts, or null if there are too many.
+     */
+    private List<Rectangle> findUncovered(Entry entry) {
+        List<Entry> above = new ArrayList<>();
+        for (Entry e : near(visibleCells, entry.bounds)) {
+            if (e.seq > entry.seq && e.cover != null
+                    && e.cover.intersects(entry.bounds)) {
+                if (e.cover.contains(entry.bounds))
+                    return new ArrayList<>();
+                above.add(e);
+            }
+        }
+        List<Rectangle> uncovered = new ArrayList<>();
+        uncovered.add(entry.bounds);
+        for (Entry e : above) {
+            uncovered = subtract(uncovered, e.cover);
+            if (uncovered == null || uncovered.isEmpty())
+                break;
+        }
+        return uncovered;
+    }
+
+    /**
+     * Cut hole out of each of the rectangles in pieces.
+     *
+     * @return the rectangles that are left, or null if there are more than
+     * MAX_PIECES of them. If hole misses them all, pieces itself.
+     */
+    private static List<Rectangle> subtract(List<Rectangle> pieces,
+                                            Rectangle hole) {
+        if (!intersects(pieces, hole))
+            return pieces;
+        List<Rectangle> rest = new ArrayList<>();
+        for (Rectangle r : pieces) {
+            subtract(r, hole, rest);
+            if (rest.size() > MAX_PIECES)
+                return null;
+        }
+        return rest;
+    }
+
+    /**
+     * Add to out the parts of r that lie outside of hole, as at most four
+     * rectangles.
+     */
+    private static void subtract(Rectangle r, Rectangle hole,
+                                 List<Rectangle> out) {
+        Rectangle overlap = r.intersection(hole);
+        if (overlap.isEmpty()) {
+            out.add(r);
+            return;
+        }
+        int right = r.x + r.width;
+        int bottom = r.y + r.height;
+        int overlapRight = overlap.x + overlap.width;
+        int overlapBottom = overlap.y + overlap.height;
+        if (overlap.y > r.y)
+            out.add(new Rectangle(r.x, r.y, r.width, overlap.y - r.y));
+        if (overlapBottom < bottom)
+            out.add(new Rectangle(r.x, overlapBottom, r.width,
+                    bottom - overlapBottom));
+        if (overlap.x > r.x)
+            out.add(new Rectangle(r.x, overlap.y, overlap.x - r.x,
+                    overlap.height));
+        if (overlapRight < right)
+            out.add(new Rectangle(overlapRight, overlap.y,
+                    right - overlapRight, overlap.height));
+    }
+
+    /**
+     * Return the entries in grid whose bounds intersect area. An entry is in
+     * every cell that its bounds touch, so it is only taken from the cell
+     * that holds the top left corner of its intersection with area.
+     */
+    private static List<Entry> near(HashMap<Long, Set<Entry>> grid,
+                                    Rectangle area) {
+        List<Entry> found = new ArrayList<>();
+        forCells(area, (cx, cy) -> {
+            Set<Entry> set = grid.get(key(cx, cy));
+            if (set == null)
+                return;
+            for (Entry e : set) {
+                Rectangle b = e.bounds;
+                if (!b.intersects(area))
+                    continue;
+                int x = Math.max(b.x, area.x);
+                int y = Math.max(b.y, area.y);
+                if (Math.floorDiv(x, CELL_SIZE) == cx
+                        && Math.floorDiv(y, CELL_SIZE) == cy)
+                    found.add(e);
+            }
+        });
+        return found;
+    }
+
+    private interface CellVisitor {
+        void visit(int cx, int cy);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private static void forCells(Rectangle area, CellVisitor visitor) {
+        if (area.isEmpty())
+            return;
+        int cx0 = Math.floorDiv(area.x, CELL_SIZE);
+        int cy0 = Math.floorDiv(area.y, CELL_SIZE);
+        int cx1 = Math.floorDiv(area.x + area.width - 1, CELL_SIZE);
+        int cy1 = Math.floorDiv(area.y + area.height - 1, CELL_SIZE);
+        for (int cy = cy0; cy <= cy1; cy++)
+            for (int cx = cx0; cx <= cx1; cx++)
+                visitor.visit(cx, cy);
+    }
+
+    /**
+     * Find the largest rectangle of fully opaque pixels, row by row, from
+     * the height of the opaque column above each pixel.
+     */
+    private static Rectangle findOpaqueInterior(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (!image.getColorModel().hasAlpha())
+            return new Rectangle(0, 0, w, h);
+        int[] row = new int[w];
+        int[] heights = new int[w + 1];
+        int[] stack = new int[w + 1];
+        Rectangle best = new Rectangle();
+        long bestArea = 0;
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++)
+                heights[x] = (row[x] >>> 24) == 255 ? heights[x] + 1 : 0;
+            int top = 0;
+            for (int x = 0; x <= w; x++) {
+                while (top > 0 && heights[stack[top - 1]] >= heights[x]) {
+                    int height = heights[stack[--top]];
+                    int left = top == 0 ? 0 : stack[top - 1] + 1;
+                    long area = (long) height * (x - left);
+                    if (area > bestArea) {
+                        bestArea = area;
+                        best = new Rectangle(left, y - height + 1, x - left,
+                                height);
+                    }
+                }
+                stack[top++] = x;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,144 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/**
+ * An RGB image whose pixels are stored outside of the Java heap, in a direct
+ * ByteBuffer, so that large offscreen pictures don't fill the old generation
+ * or lengthen garbage collection pauses. The image is an ordinary
+ * BufferedImage that can be drawn on with Graphics2D and written with
+ * ImageIO; its raster uses a SinglePixelPackedSampleModel over a custom
+ * DataBuffer. Buffers are expensive to allocate and are only freed by the
+ * garbage collector, so canvases are taken from a pool with acquire() and
+ * must be given back with release() when the picture is no longer needed.
+ * <p>
+ * Java2D has no fast drawing loops for custom rasters, so drawing is slower
+ * than on a heap image; OverlayKernel blends directly into the buffer.
+ */
+public class OffHeapCanvas {
+
+    /**
+     * The largest total number of bytes kept in the pool for reuse.
+     */
+    public static final long MAX_POOLED_BYTES = 256L << 20;
+
+    private static final ArrayList<ByteBuffer> POOL = new ArrayList<>();
+    private static long pooledBytes;
+
+    private final ByteBuffer buffer;
+    private final IntBuffer pixels;
+    private final BufferedImage image;
+    private boolean released;
+
+    private OffHeapCanvas(ByteBuffer buffer, int width, int height) {
+        this.buffer = buffer;
+        buffer.clear();
+        pixels = buffer.asIntBuffer();
+        DirectIntBuffer data = new DirectIntBuffer(pixels, width * height);
+        int[] masks = {0xFF0000, 0xFF00, 0xFF};
+        SinglePixelPackedSampleModel model = new SinglePixelPackedSampleModel(
+                DataBuffer.TYPE_INT, width, height, masks);
+        WritableRaster raster = Raster.createWritableRaster(model, data, null);
+        image = new BufferedImage(new DirectColorModel(24, masks[0], masks[1],
+                masks[2]), raster, false, null);
+    }
+
+    /**
+     * Return a canvas of the given size, reusing a pooled buffer if one is
+     * large enough. The pixels are not cleared.
+     */
+    public static OffHeapCanvas acquire(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Bad canvas size.");
+        long needed = 4L * width * height;
+        if (needed > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Canvas is too large.");
+        ByteBuffer found = null;
+        synchronized (POOL) {
+            for (int i = 0; i < POOL.size(); i++) {
+                ByteBuffer b = POOL.get(i);
+                // Reuse the smallest buffer that fits.
+                if (b.capacity() >= needed && (found == null
+                        || b.capacity() < found.capacity()))
+                    found = b;
+            }
+            if (found != null) {
+                POOL.remove(found);
+                pooledBytes -= found.capacity();
+            }
+        }
+        if (found == null)
+            found = ByteBuffer.allocateDirect((int) needed)
+                    .order(ByteOrder.nativeOrder());
+        return new OffHeapCanvas(found, width, height);
+    }
+
+    /**
+     * Return the image, which is valid until release() is called.
+     */
+    public BufferedImage getImage() {
+        if (released)
+            throw new IllegalStateException("The canvas has been released.");
+        return image;
+    }
+
+    /**
+     * Return the pixels, one int (0xRRGGBB) per pixel, row by row.
+     */
+    public IntBuffer getPixels() {
+        return pixels.duplicate();
+    }
+
+    /**
+     * Give the buffer back to the pool. The image must not be used after
+     * this.
+     */
+    public void release() {
+        if (released)
+            return;
+        released = true;
+        synchronized (POOL) {
+            if (pooledBytes + buffer.capacity() <= MAX_POOLED_BYTES) {
+                POOL.add(buffer);
+                pooledBytes += buffer.capacity();
+            }
+        }
+    }
+
+    /**
+     * Return the IntBuffer behind image if it is the image of an
+     * OffHeapCanvas, otherwise null.
+     */
+    static IntBuffer pixelsOf(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return data instanceof DirectIntBuffer
+                ? ((DirectIntBuffer) data).PIXELS.duplicate() : null;
+    }
+
+    /**
+     * A DataBuffer with one bank of ints stored in an IntBuffer.
+     */
+    private static final class DirectIntBuffer extends DataBuffer {
+        final IntBuffer PIXELS;
+
+        DirectIntBuffer(IntBuffer pixels, int size) {
+            super(TYPE_INT, size);
+            PIXELS = pixels;
+        }
+
+        public int getElem(int bank, int i) {
+            return PIXELS.get(i);
+        }
+
+        public void setElem(int bank, int i, int val) {
+            PIXELS.put(i, val);
+        }
+    }
+}
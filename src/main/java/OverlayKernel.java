@@ -0,0 +1,158 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.IntBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Blends the gradient overlay of a DrawPanel directly into the pixels of a
+ * TYPE_INT_RGB image or an OffHeapCanvas, which is much faster than filling
+ * the image with a GradientPaint through Java2D. The alpha of the gradient,
+ * and the overlay color multiplied by it, are computed once per row (for a
+ * vertical gradient) or per column (for a horizontal one) and kept in
+ * tables, so blending is a loop over the pixels with no allocation. Large
+ * images are blended in parallel bands of rows.
+ */
+public class OverlayKernel {
+
+    /**
+     * The alpha of the overlay color at the top or left of the picture.
+     */
+    public static final int START_ALPHA = 50;
+
+    /**
+     * The alpha of the overlay color at the bottom or right of the picture.
+     */
+    public static final int END_ALPHA = 200;
+
+    private static final int PARALLEL_PIXELS = 256 * 1024;
+    private static final int BAND_ROWS = 64;
+
+    // Tables for the most recent gradient; rebuilt when it changes.
+    private int tableLength = -1;
+    private int tableRgb;
+    private int[] inverseAlpha; // 255 - alpha
+    private int[] red; // overlay red times alpha, and so on
+    private int[] green;
+    private int[] blue;
+
+    /**
+     * Return true if blend() can be used for image: a TYPE_INT_RGB image or
+     * the image of an OffHeapCanvas.
+     */
+    public static boolean canBlend(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_RGB
+                || OffHeapCanvas.pixelsOf(image) != null;
+    }
+
+    /**
+     * Blend a gradient of color, from START_ALPHA at the top (or left) to
+     * END_ALPHA at the bottom (or right), over every pixel of image. The
+     * result matches filling the image with the GradientPaint that DrawPanel
+     * uses on the screen.
+     *
+     * @param image      an image for which canBlend() is true.
+     * @param horizontal true for a gradient from left to right.
+     */
+    public void blend(BufferedImage image, Color color, boolean horizontal) {
+        if (!canBlend(image))
+            throw new IllegalArgumentException("Image must be TYPE_INT_RGB.");
+        int w = image.getWidth();
+        int h = image.getHeight();
+        IntBuffer direct = OffHeapCanvas.pixelsOf(image);
+        int[] pixels = direct != null ? null
+                : ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        synchronized (this) {
+            buildTables(horizontal ? w : h, color.getRGB() & 0xFFFFFF);
+            int[] inv = inverseAlpha;
+            int[] r = red;
+            int[] g = green;
+            int[] b = blue;
+            int bands = (long) w * h < PARALLEL_PIXELS ? 1
+                    : (h + BAND_ROWS - 1) / BAND_ROWS;
+            int rows = (h + bands - 1) / bands;
+            IntStream range = IntStream.range(0, bands);
+            (bands > 1 ? range.parallel() : range).forEach(band -> {
+                int y0 = band * rows;
+                int y1 = Math.min(h, y0 + rows);
+                if (pixels != null) {
+                    for (int y = y0; y < y1; y++)
+                        blendRow(pixels, y * w, w, y, horizontal, inv, r, g, b);
+                } else {
+                    // Copy each row out of the direct buffer and back.
+                    int[] row = new int[w];
+                    IntBuffer buf = direct.duplicate();
+                    for (int y = y0; y < y1; y++) {
+                        buf.position(y * w);
+                        buf.get(row);
+                        blendRow(row, 0, w, y, horizontal, inv, r, g, b);
+                        buf.position(y * w);
+                        buf.put(row);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Blend row y of the picture, which is stored in pixels starting at p.
+     */
+    private static void blendRow(int[] pixels, int p, int w, int y,
+                                 boolean horizontal, int[] inv, int[] r,
+                                 int[] g, int[] b) {
+        if (horizontal) {
+            for (int x = 0; x < w; x++, p++) {
+                int d = pixels[p];
+                int k = inv[x];
+                pixels[p] = div255(r[x] + ((d >> 16) & 0xFF) * k) << 16
+                        | div255(g[x] + ((d >> 8) & 0xFF) * k) << 8
+                        | div255(b[x] + (d & 0xFF) * k);
+            }
+        } else {
+            int k = inv[y];
+            int ry = r[y];
+            int gy = g[y];
+            int by = b[y];
+            for (int x = 0; x < w; x++, p++) {
+                int d = pixels[p];
+                pixels[p] = div255(ry + ((d >> 16) & 0xFF) * k) << 16
+                        | div255(gy + ((d >> 8) & 0xFF) * k) << 8
+                        | div255(by + (d & 0xFF) * k);
+            }
+        }
+    }
+
+    /**
+     * Return v / 255, rounded, for 0 <= v <= 255 * 255.
+     */
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    /**
+     * Compute the alpha at the center of each of length rows or columns, as
+     * GradientPaint does, and the overlay color multiplied by it.
+     */
+    private void buildTables(int length, int rgb) {
+        if (length == tableLength && rgb == tableRgb)
+            return;
+        inverseAlpha = new int[length];
+        red = new int[length];
+        green = new int[length];
+        blue = new int[length];
+        int cr = (rgb >> 16) & 0xFF;
+        int cg = (rgb >> 8) & 0xFF;
+        int cb = rgb & 0xFF;
+        for (int i = 0; i < length; i++) {
+            double t = Math.min(1, (i + 0.5) / length);
+            int a = (int) Math.round(START_ALPHA + (END_ALPHA - START_ALPHA) * t);
+            inverseAlpha[i] = 255 - a;
+            red[i] = cr * a;
+            green[i] = cg * a;
+            blue[i] = cb * a;
+        }
+        tableLength = length;
+        tableRgb = rgb;
+    }
+}
@@ -0,0 +1,176 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes large image files on several threads. The image is split into
+ * bands of rows; each band is read by its own ImageReader, with its own
+ * stream, as a source region, straight into its place in the image.
+ * <p>
+ * This is only faster when the reader can go straight to a region. Readers
+ * of tiled images and of TIFF files, which are stored in strips, can do so;
+ * readers of formats such as JPEG and PNG have to decode every row above a
+ * region to reach it, so the last band costs nearly as much as the whole
+ * image. Those images, and small ones, are decoded in one piece on the
+ * calling thread, as by ImageIO.read().
+ */
+public class RegionDecoder {
+
+    /**
+     * Images with fewer pixels than this are always decoded in one piece.
+     */
+    public static final long MIN_PARALLEL_PIXELS = 4_000_000;
+
+    /**
+     * The smallest number of rows in a band.
+     */
+    public static final int MIN_BAND_ROWS = 256;
+
+    private static final ExecutorService DECODERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "RegionDecoder decoder");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private RegionDecoder() {
+    }
+
+    /**
+     * Read the first image in a file, using as many threads as there are
+     * processors.
+     *
+     * @return the image, or null if no reader can read the file, as for
+     * ImageIO.read().
+     */
+    public static BufferedImage read(File file) throws IOException {
+        return read(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Read the first image in a file, in at most the given number of bands
+     * at once.
+     *
+     * @return the image, or null if no reader can read the file.
+     */
+    public static BufferedImage read(File file, int threads)
+            throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null)
+                throw new IOException("Can't open " + file);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int bandRows = bandRows(reader, height, threads);
+                if ((long) width * height < MIN_PARALLEL_PIXELS
+                        || bandRows >= height || !readsRegions(reader))
+                    return reader.read(0, reader.getDefaultReadParam());
+                BufferedImage image = reader.getImageTypes(0).next()
+                        .createBufferedImage(width, height);
+                readBands(file, reader.getOriginatingProvider(), image,
+                        bandRows);
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Return true if reader can read a region without decoding the rest of
+     * the image.
+     */
+    private static boolean readsRegions(ImageReader reader)
+            throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        return reader.isImageTiled(0) || format.equals("tif")
+                || format.equals("tiff");
+    }
+
+    /**
+     * Return the number of rows in each band: enough for no more than
+     * threads bands, at least MIN_BAND_ROWS, and a whole number of the
+     * image's tiles or strips, so that no tile is decoded twice.
+     */
+    private static int bandRows(ImageReader reader, int height, int threads)
+            throws IOException {
+        int rows = Math.max(MIN_BAND_ROWS,
+                (height + Math.max(1, threads) - 1) / Math.max(1, threads));
+        int tile = reader.getTileHeight(0);
+        if (tile > 0 && tile < height)
+            rows = (rows + tile - 1) / tile * tile;
+        return rows;
+    }
+
+    /**
+     * Decode the bands of the image in file into image, each with a new
+     * reader from provider.
+     */
+    private static void readBands(File file, ImageReaderSpi provider,
+                                  BufferedImage image, int bandRows)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<Future<?>> bands = new ArrayList<>();
+        for (int y = 0; y < height; y += bandRows) {
+            Rectangle region = new Rectangle(0, y, width,
+                    Math.min(bandRows, height - y));
+            bands.add(DECODERS.submit(() -> {
+                readBand(file, provider, image, region);
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<?> band : bands) {
+            try {
+                band.get();
+            } catch (InterruptedException e) {
+                if (failure == null)
+                    failure = new IOException("Decoding was interrupted.");
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void readBand(File file, ImageReaderSpi provider,
+                                 BufferedImage image, Rectangle region)
+            throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = provider.createReaderInstance();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setDestination(image);
+                param.setDestinationOffset(region.getLocation());
+                reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
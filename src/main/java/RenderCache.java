@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of encoded pictures (PNG or JPEG files), keyed by the SceneHash
+ * of the scene they show followed by a description of the output, such as
+ * "&lt;hash&gt;-320w.jpeg" for a reduced size written by ExportProfile, or
+ * "&lt;hash&gt;.png" for a picture of TemplateRenderer. When a scene is
+ * rendered again, the file can be copied from the cache without drawing or
+ * encoding anything. The total size of the files is kept under a limit by
+ * deleting the least recently used ones; a file's modification time records
+ * when it was last used, so the order survives from one run of the program
+ * to the next.
+ */
+public class RenderCache {
+
+    /**
+     * Temporary files older than this, in milliseconds, were left by a
+     * crash. Newer ones may be being written by another process that shares
+     * the directory.
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private static RenderCache shared;
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(64,
+            0.75f, true); // file name to size, least recently used first
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    /**
+     * Create a cache in directory that holds at most maxBytes bytes of files.
+     * Files that are already in the directory are kept, oldest first in the
+     * eviction order.
+     */
+    public RenderCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) {
+                    if (System.currentTimeMillis() - f.lastModified()
+                            > STALE_TEMP_MILLIS)
+                        f.delete(); // left by a crash
+                } else {
+                    sizes.put(f.getName(), f.length());
+                    bytes += f.length();
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Return the cache kept in the "renders" subdirectory of the program's
+     * data directory. Its size is set by the system property
+     * sayings.renderCacheMB, and is 256 MB by default.
+     */
+    public static synchronized RenderCache getShared() {
+        if (shared == null) {
+            long mb = 256;
+            try {
+                mb = Long.parseLong(System.getProperty("sayings.renderCacheMB",
+                        "256").trim());
+            } catch (NumberFormatException ignored) {
+            }
+            shared = new RenderCache(new File(Util.getAppDataDirectory(),
+                    "renders"), mb << 20);
+        }
+        return shared;
+    }
+
+    /**
+     * Return true if there is a file for the given key.
+     */
+    public synchronized boolean contains(String key) {
+        return sizes.containsKey(key);
+    }
+
+    /**
+     * Copy the cached file for key to target, and mark it as recently used.
+     *
+     * @return true if the file was found and copied, false if it is not in
+     * the cache.
+     */
+    public boolean copyTo(String key, File target) throws IOException {
+        File cached = new File(directory, key);
+        synchronized (this) {
+            if (sizes.get(key) == null || !cached.exists()) {
+                if (sizes.containsKey(key))
+                    bytes -= sizes.remove(key);
+                misses++;
+                return false;
+            }
+            hits++;
+            cached.setLastModified(System.currentTimeMillis());
+        }
+        try {
+            Files.copy(cached.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            if (!cached.exists())
+                return false; // evicted by another thread while copying
+            throw e;
+        }
+    }
+
+    /**
+     * Store a copy of file in the cache under key, evicting the least
+     * recently used files if the cache is then too large.
+     */
+    public void put(String key, File file) throws IOException {
+        File tmp = File.createTempFile("put", ".tmp", directory);
+        try {
+            Files.copy(file.toPath(), tmp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                Files.move(tmp.toPath(), new File(directory, key).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Long old = sizes.put(key, file.length());
+                bytes += file.length() - (old == null ? 0 : old);
+                evict();
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Return the number of lookups that found (and missed) a file since the
+     * cache was created, as a two-element array.
+     */
+    public synchronized int[] getHitsAndMisses() {
+        return new int[]{hits, misses};
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(directory, eldest.getKey()).delete();
+            bytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+}
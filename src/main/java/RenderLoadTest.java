@@ -0,0 +1,156 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends render requests to a RenderServer from several client threads at
+ * once, then prints the throughput, the latency percentiles and the server's
+ * own metrics. Each request has a different text, so that no two pictures
+ * are the same. With --start, a server is started in this program first.
+ * <p>
+ * Usage: java RenderLoadTest [--start] [--port N] [--clients N] [--requests N] [--format png|jpeg]
+ */
+public class RenderLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        boolean start = false;
+        int port = RenderServer.DEFAULT_PORT;
+        int clients = 16;
+        int requests = 400;
+        String format = "png";
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--start"))
+                    start = true;
+                else if (args[i].equals("--port"))
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--clients"))
+                    clients = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--requests"))
+                    requests = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--format"))
+                    format = args[++i];
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java RenderLoadTest [--start] [--port N] "
+                    + "[--clients N] [--requests N] [--format png|jpeg]");
+            System.exit(1);
+        }
+        RenderServer server = null;
+        if (start) {
+            server = new RenderServer(port,
+                    Runtime.getRuntime().availableProcessors(), 64, false);
+            server.start();
+            port = server.getPort();
+        }
+        String base = "http://localhost:" + port;
+        URL renderUrl = new URL(base + "/render?format=" + format);
+
+        long[] latencies = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        long begin = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            threads[c] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < latencies.length) {
+                    String scene = "{\"width\": 640, \"height\": 400, "
+                            + "\"text\": \"Request " + i + "\\nof the load test\", "
+                            + "\"size\": 32, \"justify\": \"center\", "
+                            + "\"backgroundColor\": \"#204060\", "
+                            + "\"overlay\": \"#ffffff\", \"shadow\": " + (i % 2 == 0)
+                            + "}";
+                    long t = System.nanoTime();
+                    try {
+                        int status = post(renderUrl, scene);
+                        if (status == 200)
+                            ok.incrementAndGet();
+                        else if (status == 503)
+                            busy.incrementAndGet();
+                        else
+                            errors.incrementAndGet();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - t;
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d requests from %d clients in %.2f s "
+                        + "(%.1f per second): %d ok, %d busy, %d errors%n",
+                requests, clients, seconds, requests / seconds, ok.get(),
+                busy.get(), errors.get());
+        System.out.printf("latency ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), percentile(latencies, 100));
+        System.out.print("server metrics: " + new String(
+                get(new URL(base + "/metrics")), StandardCharsets.UTF_8));
+        if (server != null)
+            server.stop(0);
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        int i = Math.min(sorted.length - 1,
+                (int) Math.ceil(sorted.length * p / 100.0) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    /**
+     * Post body to url and read the whole response.
+     *
+     * @return the status code.
+     */
+    private static int post(URL url, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream()
+                : conn.getErrorStream();
+        if (in != null)
+            readAll(in);
+        return status;
+    }
+
+    private static byte[] get(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        return readAll(conn.getInputStream());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
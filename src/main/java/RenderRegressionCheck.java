@@ -0,0 +1,502 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a fixed set of reference scenes without the GUI and checks them
+ * against golden images and performance budgets, so that changes to the
+ * rendering code can't silently change the pictures or undo earlier
+ * speedups. Scenes are drawn with DrawPanel.copyImage(), except one that
+ * draws only the text with TextItem.draw(). The backgrounds and stamps are
+ * made in code, so the scenes don't depend on any resource files.
+ * <p>
+ * A picture passes if no pixel differs from the golden image by more than
+ * the tolerance in any channel. Each scene is also drawn several times to
+ * measure the median CPU time per picture and the median number of bytes
+ * allocated per picture, by the calling thread and the threads of the common
+ * fork/join pool, on which large pictures are partly drawn. These use the
+ * ThreadMXBean of the JVM where it supports them (wall time is used
+ * otherwise); the scene fails if either grows well beyond the budget
+ * recorded with the golden image. When a picture differs, the new picture
+ * is saved next to the golden one as name.actual.png.
+ * <p>
+ * With --update, the golden images and budgets are written instead of
+ * checked. Text is drawn with the font in the file FONT_FILE of the golden
+ * directory, so that the pictures don't depend on the fonts that are
+ * installed; if there is no such file, the installed fonts are used. Times
+ * and allocations do depend on the computer, so budgets should be made on
+ * the one that checks them. The program exits with status 1 if any scene
+ * fails. The golden images in src/test/render-golden are checked, without
+ * the budgets, by "mvn verify -Prender-check".
+ * <p>
+ * Usage: java RenderRegressionCheck [--update] [--tolerance N] [--no-perf]
+ * goldendir
+ */
+public class RenderRegressionCheck {
+
+    /**
+     * The largest difference in any channel of a pixel that is not counted
+     * as a change, by default.
+     */
+    public static final int DEFAULT_TOLERANCE = 2;
+
+    /**
+     * A scene fails if its median time is more than this multiple of its
+     * budget, plus TIME_SLACK_MS.
+     */
+    public static final double TIME_FACTOR = 2;
+    public static final double TIME_SLACK_MS = 2;
+
+    /**
+     * A scene fails if it allocates more than this multiple of its budget,
+     * plus ALLOCATION_SLACK bytes.
+     */
+    public static final double ALLOCATION_FACTOR = 1.25;
+    public static final long ALLOCATION_SLACK = 64 * 1024;
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 15;
+    private static final String BUDGET_FILE = "budgets.properties";
+
+    /**
+     * The name of the font file in the golden directory.
+     */
+    public static final String FONT_FILE = "DejaVuSans.ttf";
+
+    private final File dir;
+    private final int tolerance;
+    private final boolean checkPerformance;
+    private final Properties budgets = new Properties();
+
+    public RenderRegressionCheck(File dir, int tolerance,
+                                 boolean checkPerformance) {
+        this.dir = dir;
+        this.tolerance = tolerance;
+        this.checkPerformance = checkPerformance;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        boolean update = false;
+        boolean perf = true;
+        int tolerance = DEFAULT_TOLERANCE;
+        File dir = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].isEmpty())
+                    continue;
+                else if (args[i].equals("--update"))
+                    update = true;
+                else if (args[i].equals("--tolerance"))
+                    tolerance = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--no-perf"))
+                    perf = false;
+                else if (args[i].startsWith("--") || dir != null)
+                    throw new IllegalArgumentException(args[i]);
+                else
+                    dir = new File(args[i]);
+            }
+            if (dir == null)
+                throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java RenderRegressionCheck [--update] "
+                    + "[--tolerance N] [--no-perf] goldendir");
+            System.exit(1);
+        }
+        RenderRegressionCheck check = new RenderRegressionCheck(dir, tolerance,
+                perf);
+        boolean ok = update ? check.update() : check.check();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Write the golden image and the budget of every scene.
+     *
+     * @return true if everything was written.
+     */
+    public boolean update() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        Map<String, Supplier<BufferedImage>> scenes = scenes(fontFamily());
+        for (Map.Entry<String, Supplier<BufferedImage>> e : scenes.entrySet()) {
+            String name = e.getKey();
+            BufferedImage picture = e.getValue().get();
+            ImageIO.write(picture, "PNG", new File(dir, name + ".png"));
+            Measurement m = measure(e.getValue());
+            budgets.setProperty(name + ".millis", String.format("%.3f", m.MILLIS));
+            if (m.BYTES >= 0)
+                budgets.setProperty(name + ".bytes", Long.toString(m.BYTES));
+            System.out.println("wrote " + name + ": " + m);
+        }
+        try (OutputStream out = new FileOutputStream(new File(dir, BUDGET_FILE))) {
+            budgets.store(out, "Median time and allocation per picture");
+        }
+        return true;
+    }
+
+    /**
+     * Check every scene against its golden image and budget, and print a
+     * line for each.
+     *
+     * @return true if all scenes passed.
+     */
+    public boolean check() throws IOException {
+        File budgetFile = new File(dir, BUDGET_FILE);
+        if (budgetFile.exists()) {
+            try (InputStream in = new FileInputStream(budgetFile)) {
+                budgets.load(in);
+            }
+        }
+        int failures = 0;
+        Map<String, Supplier<BufferedImage>> scenes = scenes(fontFamily());
+        for (Map.Entry<String, Supplier<BufferedImage>> e : scenes.entrySet()) {
+            String name = e.getKey();
+            List<String> problems = new ArrayList<>();
+            BufferedImage picture = e.getValue().get();
+            File goldenFile = new File(dir, name + ".png");
+            BufferedImage golden = goldenFile.exists()
+                    ? ImageIO.read(goldenFile) : null;
+            if (golden == null)
+                problems.add("no golden image");
+            else {
+                String diff = compare(golden, picture);
+                if (diff != null) {
+                    problems.add(diff);
+                    ImageIO.write(picture, "PNG",
+                            new File(dir, name + ".actual.png"));
+                }
+            }
+            String perf = "";
+            if (checkPerformance) {
+                Measurement m = measure(e.getValue());
+                perf = " " + m;
+                String millis = budgets.getProperty(name + ".millis");
+                String bytes = budgets.getProperty(name + ".bytes");
+                if (millis == null)
+                    problems.add("no time budget");
+                else if (m.MILLIS > Double.parseDouble(millis) * TIME_FACTOR
+                        + TIME_SLACK_MS)
+                    problems.add("time over budget of " + millis + " ms");
+                if (bytes != null && m.BYTES >= 0 && m.BYTES > Long.parseLong(bytes)
+                        * ALLOCATION_FACTOR + ALLOCATION_SLACK)
+                    problems.add("allocation over budget of " + bytes + " bytes");
+            }
+            if (problems.isEmpty())
+                System.out.println("ok   " + name + perf);
+            else {
+                failures++;
+                System.out.println("FAIL " + name + perf + ": "
+                        + String.join("; ", problems));
+            }
+        }
+        System.out.println(failures == 0 ? "All scenes passed."
+                : failures + " scene(s) failed.");
+        return failures == 0;
+    }
+
+    /**
+     * Add the font in FONT_FILE to the shared FontRegistry, and return its
+     * family name; or return the name of the logical sans-serif font if
+     * there is no such file.
+     */
+    private String fontFamily() throws IOException {
+        File file = new File(dir, FONT_FILE);
+        if (!file.isFile()) {
+            System.out.println("No " + file + "; using the installed fonts.");
+            return Font.SANS_SERIF;
+        }
+        try {
+            Font font = Font.createFont(Font.TRUETYPE_FONT, file);
+            FontRegistry.getShared().addFont(font);
+            return font.getFamily();
+        } catch (FontFormatException e) {
+            throw new IOException("Bad font " + file, e);
+        }
+    }
+
+    /**
+     * Compare two pictures, including their alpha.
+     *
+     * @return null if they match within the tolerance, otherwise a
+     * description of the difference.
+     */
+    String compare(BufferedImage expected, BufferedImage actual) {
+        int w = expected.getWidth();
+        int h = expected.getHeight();
+        if (actual.getWidth() != w || actual.getHeight() != h)
+            return "size is " + actual.getWidth() + "x" + actual.getHeight()
+                    + ", expected " + w + "x" + h;
+        int[] a = expected.getRGB(0, 0, w, h, null, 0, w);
+        int[] b = actual.getRGB(0, 0, w, h, null, 0, w);
+        int changed = 0;
+        int worst = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i])
+                continue;
+            int d = 0;
+            for (int shift = 0; shift < 32; shift += 8)
+                d = Math.max(d, Math.abs(((a[i] >>> shift) & 0xFF)
+                        - ((b[i] >>> shift) & 0xFF)));
+            worst = Math.max(worst, d);
+            if (d > tolerance)
+                changed++;
+        }
+        return changed == 0 ? null : changed + " pixels differ, by up to "
+                + worst;
+    }
+
+    /**
+     * The median time and allocation of drawing one picture.
+     */
+    static class Measurement {
+        final double MILLIS;
+        final long BYTES; // -1 if the JVM can't measure allocation
+
+        Measurement(double millis, long bytes) {
+            MILLIS = millis;
+            BYTES = bytes;
+        }
+
+        public String toString() {
+            return String.format("%.2f ms", MILLIS)
+                    + (BYTES < 0 ? "" : ", " + BYTES / 1024 + " KB allocated");
+        }
+    }
+
+    /**
+     * Draw a scene several times, after a few runs to warm up the JIT and
+     * the caches, and return the medians. The CPU time and allocation of a
+     * run are those of the calling thread and of the workers of the common
+     * fork/join pool, which OverlayKernel and TextEffects use for large
+     * pictures; the JVM's own threads, such as the JIT compiler's, are not
+     * counted. Work done by a worker that ends during the run is missed.
+     */
+    static Measurement measure(Supplier<BufferedImage> scene) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations =
+                mx instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) mx)
+                        .isThreadAllocatedMemorySupported()
+                        ? (com.sun.management.ThreadMXBean) mx : null;
+        if (allocations != null && !allocations.isThreadAllocatedMemoryEnabled())
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        boolean cpuTime = mx.isThreadCpuTimeSupported();
+        if (cpuTime && !mx.isThreadCpuTimeEnabled())
+            mx.setThreadCpuTimeEnabled(true);
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            scene.get();
+        long[] nanos = new long[MEASURED_RUNS];
+        long[] bytes = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            Map<Long, long[]> before = threadTotals(mx, allocations);
+            long t = System.nanoTime();
+            scene.get();
+            long wall = System.nanoTime() - t;
+            Map<Long, long[]> after = threadTotals(mx, allocations);
+            long cpu = 0;
+            long b = 0;
+            for (Map.Entry<Long, long[]> e : after.entrySet()) {
+                long[] start = before.get(e.getKey());
+                cpu += Math.max(0, e.getValue()[0]
+                        - (start == null ? 0 : start[0]));
+                b += Math.max(0, e.getValue()[1]
+                        - (start == null ? 0 : start[1]));
+            }
+            nanos[i] = cpuTime ? cpu : wall;
+            bytes[i] = allocations == null ? -1 : b;
+        }
+        Arrays.sort(nanos);
+        Arrays.sort(bytes);
+        return new Measurement(nanos[MEASURED_RUNS / 2] / 1e6,
+                bytes[MEASURED_RUNS / 2]);
+    }
+
+    /**
+     * Return the IDs of the calling thread and of the live workers of the
+     * common fork/join pool.
+     */
+    private static long[] measuredThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null)
+            root = root.getParent();
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int n = root.enumerate(threads, true);
+        long[] ids = new long[n + 1];
+        int count = 0;
+        ids[count++] = Thread.currentThread().getId();
+        for (int i = 0; i < n; i++)
+            if (threads[i] instanceof ForkJoinWorkerThread
+                    && ((ForkJoinWorkerThread) threads[i]).getPool()
+                    == ForkJoinPool.commonPool())
+                ids[count++] = threads[i].getId();
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Return the CPU time and the bytes allocated so far by the threads of
+     * measuredThreads(), by thread ID. A value the JVM can't measure is 0.
+     */
+    private static Map<Long, long[]> threadTotals(ThreadMXBean mx,
+            com.sun.management.ThreadMXBean allocations) {
+        long[] ids = measuredThreads();
+        long[] allocated = allocations == null ? null
+                : allocations.getThreadAllocatedBytes(ids);
+        Map<Long, long[]> totals = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            long cpu = mx.isThreadCpuTimeSupported()
+                    ? mx.getThreadCpuTime(ids[i]) : 0;
+            long b = allocated == null ? 0 : allocated[i];
+            // -1 for a thread that ended after getAllThreadIds()
+            totals.put(ids[i], new long[]{Math.max(0, cpu), Math.max(0, b)});
+        }
+        return totals;
+    }
+
+    /**
+     * Return the reference scenes, by name. Each call of a scene's supplier
+     * draws the picture again from the start.
+     */
+    static Map<String, Supplier<BufferedImage>> scenes(String font)
+            throws IOException {
+        Map<String, Supplier<BufferedImage>> scenes = new LinkedHashMap<>();
+        BufferedImage background = makeBackground(1024, 768, font);
+        BufferedImage[] stamps = {makeStamp(48, Color.RED),
+                makeStamp(64, Color.YELLOW), makeStamp(32, Color.GREEN)};
+
+        scenes.put("plain-text", panelScene(scene(font, "{\"width\": 640, "
+                + "\"height\": 400, \"text\": \"A plain saying\\n"
+                + "on two lines\", \"size\": 36, "
+                + "\"backgroundColor\": \"#204060\", "
+                + "\"overlay\": \"#ffffff\"}"), null, null));
+        scenes.put("styled-text", panelScene(scene(font, "{\"width\": 640, "
+                + "\"height\": 400, \"text\": \"Bold, italic,\\nshadowed "
+                + "and outlined\\ntext on the left\", \"size\": 40, "
+                + "\"bold\": true, \"italic\": true, \"shadow\": true, "
+                + "\"outline\": true, \"justify\": \"left\", "
+                + "\"color\": \"#ffcc00\", \"lineHeight\": 1.2, "
+                + "\"backgroundColor\": \"#402020\", \"overlay\": \"#000000\", "
+                + "\"horizontalOverlay\": true}"), null, null));
+        List<ImageItem> items = new ArrayList<>();
+        for (int i = 0; i < 24; i++)
+            items.add(new ImageItem(stamps[i % stamps.length],
+                    40 + (i % 8) * 120, 80 + (i / 8) * 260,
+                    0.5 + (i % 4) * 0.25, i * Math.PI / 12));
+        scenes.put("background-stamps", panelScene(scene(font, "{"
+                + "\"width\": 1024, \"height\": 768, \"text\": \"Stamps over a picture\", "
+                + "\"size\": 48, \"shadow\": true, "
+                + "\"overlay\": \"#ffffff\"}"), background, items));
+        scenes.put("large", panelScene(scene(font, "{\"width\": 2400, "
+                + "\"height\": 1600, \"text\": \"A large picture\\nfor "
+                + "printing\", \"size\": 120, \"outline\": true, "
+                + "\"overlay\": \"#ffffff\"}"), background, null));
+
+        TextItem text = new DrawPanel().getTextItem();
+        text.setFontName(font);
+        text.setText("Only the text,\ndrawn by TextItem");
+        text.setFontSize(32);
+        text.setShadow(true);
+        scenes.put("text-only", () -> {
+            BufferedImage image = new BufferedImage(640, 400,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            text.draw(g, 320, 200);
+            g.dispose();
+            return image;
+        });
+        return scenes;
+    }
+
+    /**
+     * Return the scene described by json, drawn with the given font.
+     */
+    private static Map<String, Object> scene(String font, String json)
+            throws IOException {
+        Map<String, Object> scene = Json.parseObject(json);
+        scene.put("font", font);
+        return scene;
+    }
+
+    /**
+     * Return a scene that is drawn by a DrawPanel set up from a scene
+     * description, with an optional background image and stamps.
+     */
+    private static Supplier<BufferedImage> panelScene(Map<String, Object> scene,
+                                                      BufferedImage background,
+                                                      List<ImageItem> stamps)
+            throws IOException {
+        DrawPanel panel = new DrawPanel();
+        SceneSpec.apply(scene, panel, null);
+        if (background != null)
+            panel.setBackgroundImage(background);
+        if (stamps != null)
+            panel.setImageItems(stamps);
+        return panel::copyImage;
+    }
+
+    /**
+     * Make a background picture with gradients and shapes, so that scaling
+     * and blending show up in the output.
+     */
+    private static BufferedImage makeBackground(int w, int h, String font) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(20, 40, 120), w, h,
+                new Color(200, 120, 40)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color((i * 53) % 256, (i * 97) % 256,
+                    (i * 31) % 256, 160));
+            int r = 20 + (i * 37) % 120;
+            g.fillOval((i * 193) % w - r / 2, (i * 311) % h - r / 2, r, r);
+        }
+        g.setColor(Color.WHITE);
+        g.setFont(FontRegistry.getShared().getFont(font, Font.PLAIN, 24));
+        g.drawString("Reference background", 20, h - 20);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Make a round stamp with a transparent outside and a translucent ring.
+     */
+    private static BufferedImage makeStamp(int size, Color color) {
+        BufferedImage image = new BufferedImage(size, size,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(color);
+        g.fillOval(0, 0, size, size);
+        g.setColor(new Color(0, 0, 0, 128));
+        g.fillOval(size / 4, size / 4, size / 2, size / 2);
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,302 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+
+/**
+ * A small HTTP server that renders pictures without the GUI, so that other
+ * programs on the same computer can use it. It listens only on the loopback
+ * address and has two endpoints:
+ * <ul>
+ * <li>POST /render?format=png|jpeg, with a JSON scene (see SceneSpec) as the
+ * body, returns the rendered picture.
+ * <li>GET /metrics returns a JSON object with counts and times for the
+ * requests that have been served.
+ * </ul>
+ * Each request runs on its own thread: a virtual thread when the Java
+ * runtime has them (Java 21 and later), otherwise a thread from a pool. Only
+ * a fixed number of pictures are rendered at once; other requests wait in a
+ * queue of limited length, and requests that find the queue full are turned
+ * away with status 503. Large pictures are drawn on pooled off-heap
+ * canvases. Scenes may only use built-in background resources,
+ * unless the server is started with --allow-files.
+ * <p>
+ * Usage: java RenderServer [--port N] [--concurrency N] [--queue N] [--allow-files]
+ */
+public class RenderServer {
+
+    public static final int DEFAULT_PORT = 8765;
+
+    private static final int MAX_BODY = 1 << 20;
+
+    /**
+     * Pictures with at least this many pixels are drawn on an OffHeapCanvas,
+     * to keep large rasters out of the heap.
+     */
+    private static final long OFF_HEAP_PIXELS = 4L << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StampCatalog stamps;
+    private final int concurrency;
+    private final int maxQueue;
+    private final boolean allowFiles;
+    private final boolean virtualThreads;
+
+    private final Semaphore renderers;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger rendering = new AtomicInteger();
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+
+    /**
+     * Create a server on the given port of the loopback address. It does not
+     * accept requests until start() is called.
+     *
+     * @param concurrency the largest number of pictures rendered at once.
+     * @param maxQueue    the largest number of requests that wait for their
+     *                    turn to render.
+     * @param allowFiles  whether scenes may load backgrounds from files.
+     */
+    public RenderServer(int port, int concurrency, int maxQueue,
+                        boolean allowFiles) throws IOException {
+        this.concurrency = concurrency;
+        this.maxQueue = maxQueue;
+        this.allowFiles = allowFiles;
+        renderers = new Semaphore(concurrency, true);
+        stamps = new IconSupport(new DrawPanel());
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "RenderServer request");
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Return an executor that starts a virtual thread for each task, or null
+     * if this Java runtime does not have virtual threads. Reflection is used
+     * so that the program still compiles and runs on older versions.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests, and wait up to delay seconds for the ones that
+     * are being served to finish.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int port = DEFAULT_PORT;
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        int queue = 64;
+        boolean allowFiles = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--port"))
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--concurrency"))
+                    concurrency = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--queue"))
+                    queue = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--allow-files"))
+                    allowFiles = true;
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java RenderServer [--port N] "
+                    + "[--concurrency N] [--queue N] [--allow-files]");
+            System.exit(1);
+        }
+        RenderServer rs = new RenderServer(port, concurrency, queue, allowFiles);
+        rs.start();
+        System.out.println("Rendering on http://localhost:" + rs.getPort()
+                + "/render (" + (rs.virtualThreads ? "virtual threads"
+                : "thread pool") + ", " + concurrency + " at once)");
+    }
+
+    private void handleRender(HttpExchange ex) throws IOException {
+        try {
+            if (!ex.getRequestMethod().equals("POST")) {
+                send(ex, 405, "text/plain", bytes("Use POST."));
+                return;
+            }
+            String format = "png";
+            String query = ex.getRequestURI().getQuery();
+            if (query != null && query.startsWith("format="))
+                format = query.substring(7).toLowerCase();
+            if (!format.equals("png") && !format.equals("jpeg")) {
+                send(ex, 400, "text/plain", bytes("Unknown format " + format));
+                return;
+            }
+            Map<String, Object> scene;
+            try {
+                scene = Json.parseObject(new String(readBody(ex),
+                        StandardCharsets.UTF_8));
+                Object bg = scene.get("background");
+                if (!allowFiles && bg instanceof String
+                        && !((String) bg).startsWith("resource:"))
+                    throw new IOException("Only resource: backgrounds are allowed");
+            } catch (IOException | RuntimeException e) {
+                failed.increment();
+                send(ex, 400, "text/plain", bytes(String.valueOf(
+                        e.getMessage())));
+                return;
+            }
+            if (waiting.incrementAndGet() > maxQueue) {
+                waiting.decrementAndGet();
+                rejected.increment();
+                ex.getResponseHeaders().set("Retry-After", "1");
+                send(ex, 503, "text/plain", bytes("Too many requests."));
+                return;
+            }
+            maxWaiting.accumulateAndGet(waiting.get(), Math::max);
+            long queued = System.nanoTime();
+            renderers.acquireUninterruptibly();
+            waiting.decrementAndGet();
+            rendering.incrementAndGet();
+            long start = System.nanoTime();
+            queueNanos.add(start - queued);
+            byte[] image;
+            try {
+                image = render(scene, format);
+            } catch (IOException e) {
+                failed.increment();
+                send(ex, 400, "text/plain", bytes(e.getMessage()));
+                return;
+            } catch (RuntimeException e) {
+                failed.increment();
+                send(ex, 500, "text/plain", bytes("The picture could not be "
+                        + "rendered: " + e));
+                return;
+            } finally {
+                renderNanos.add(System.nanoTime() - start);
+                rendering.decrementAndGet();
+                renderers.release();
+            }
+            completed.increment();
+            send(ex, 200, "image/" + format, image);
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Draw a scene with the same code that the GUI uses, and encode it.
+     */
+    private byte[] render(Map<String, Object> scene, String format)
+            throws IOException {
+        DrawPanel panel = new DrawPanel();
+        SceneSpec.apply(scene, panel, stamps);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ((long) panel.getPictureWidth() * panel.getPictureHeight()
+                < OFF_HEAP_PIXELS) {
+            if (!ImageIO.write(panel.copyImage(), format, out))
+                throw new IOException("No writer for " + format);
+            return out.toByteArray();
+        }
+        OffHeapCanvas canvas = OffHeapCanvas.acquire(panel.getPictureWidth(),
+                panel.getPictureHeight());
+        try {
+            panel.paintInto(canvas.getImage());
+            if (!ImageIO.write(canvas.getImage(), format, out))
+                throw new IOException("No writer for " + format);
+        } finally {
+            canvas.release();
+        }
+        return out.toByteArray();
+    }
+
+    private void handleMetrics(HttpExchange ex) throws IOException {
+        try {
+            long done = completed.sum();
+            String json = "{\"executor\": " + Json.quote(virtualThreads
+                    ? "virtual" : "pool")
+                    + ", \"concurrency\": " + concurrency
+                    + ", \"maxQueue\": " + maxQueue
+                    + ", \"rendering\": " + rendering.get()
+                    + ", \"waiting\": " + waiting.get()
+                    + ", \"maxWaiting\": " + maxWaiting.get()
+                    + ", \"completed\": " + done
+                    + ", \"rejected\": " + rejected.sum()
+                    + ", \"failed\": " + failed.sum()
+                    + ", \"meanQueueMillis\": " + String.format("%.3f",
+                    done == 0 ? 0.0 : queueNanos.sum() / 1e6 / done)
+                    + ", \"meanRenderMillis\": " + String.format("%.3f",
+                    done == 0 ? 0.0 : renderNanos.sum() / 1e6 / done)
+                    + "}\n";
+            send(ex, 200, "application/json", bytes(json));
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static byte[] readBody(HttpExchange ex) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try (InputStream in = ex.getRequestBody()) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                body.write(buf, 0, n);
+                if (body.size() > MAX_BODY)
+                    throw new IOException("The scene is too large.");
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static void send(HttpExchange ex, int status, String type,
+                             byte[] body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", type);
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Computes a SHA-256 hash of everything that affects the picture shown by a
+ * DrawPanel: its size, background color and image, gradient overlay, all of
+ * the properties of its TextItem, and the image, position, scale and angle of
+ * every stamp in each visible layer. Two scenes with the same hash render to
+ * the same picture, so the hash can be used as the key of a cache of
+ * rendered results (see RenderCache). Images are hashed by their pixels, and
+ * the pixel hash of each image is remembered for as long as the image
+ * exists, so hashing a scene is cheap even with a large background.
+ */
+public class SceneHash {
+
+    /**
+     * Changed whenever the way that scenes are drawn changes, so that
+     * pictures cached by older versions of the program are not used.
+     */
+    private static final int RENDER_VERSION = 2;
+
+    private static final Map<Image, byte[]> IMAGE_HASHES = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private final MessageDigest sha = newDigest();
+    private final ByteBuffer buf = ByteBuffer.allocate(8);
+
+    private SceneHash() {
+    }
+
+    /**
+     * Return the hash of the scene shown by panel, as a string of 64 hex
+     * digits. Must be called on the thread that owns the panel (normally the
+     * Event Dispatch Thread).
+     */
+    public static String of(DrawPanel panel) {
+        SceneHash h = new SceneHash();
+        h.putInt(RENDER_VERSION);
+        h.putInt(panel.getPictureWidth());
+        h.putInt(panel.getPictureHeight());
+        h.putColor(panel.getBackground());
+        Image background = panel.getBackgroundImage();
+        h.putBoolean(background != null);
+        if (background != null)
+            h.sha.update(imageHash(background));
+        h.putColor(panel.getGradientOverlayColor());
+        h.putBoolean(panel.isHorizontalOverlay());
+        TextItem text = panel.getTextItem();
+        h.putString(text.getText());
+        h.putColor(text.getColor());
+        h.putDouble(text.getLineHeightMultiplier());
+        h.putBoolean(text.isBold());
+        h.putBoolean(text.isItalic());
+        h.putInt(text.getFontSize());
+        h.putString(text.getFontName());
+        h.putInt(text.getJustify());
+        h.putBoolean(text.hasShadow());
+        h.putBoolean(text.hasOutline());
+        for (StampLayer layer : panel.getLayers()) {
+            if (!layer.isVisible())
+                continue;
+            h.putBoolean(layer.isBelowText());
+            h.putInt(layer.getItems().size());
+            for (ImageItem item : layer.getItems()) {
+                h.sha.update(imageHash(item.getImage()));
+                h.putInt(item.getCenterX());
+                h.putInt(item.getCenterY());
+                h.putDouble(item.getScale());
+                h.putDouble(item.getAngle());
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : h.sha.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Return the SHA-256 hash of the size and pixels of image, computing it
+     * only the first time it is asked for.
+     */
+    static byte[] imageHash(Image image) {
+        byte[] hash = IMAGE_HASHES.get(image);
+        if (hash != null)
+            return hash;
+        BufferedImage b = toBufferedImage(image);
+        MessageDigest sha = newDigest();
+        int w = b.getWidth();
+        int h = b.getHeight();
+        ByteBuffer row = ByteBuffer.allocate(4 * Math.max(2, w));
+        row.putInt(w).putInt(h);
+        sha.update(row.array(), 0, 8);
+        int[] pixels = new int[w];
+        for (int y = 0; y < h; y++) {
+            b.getRGB(0, y, w, 1, pixels, 0, w);
+            row.clear();
+            row.asIntBuffer().put(pixels);
+            sha.update(row.array(), 0, 4 * w);
+        }
+        hash = sha.digest();
+        IMAGE_HASHES.put(image, hash);
+        return hash;
+    }
+
+    private static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage)
+            return (BufferedImage) image;
+        int w = Math.max(1, image.getWidth(null));
+        int h = Math.max(1, image.getHeight(null));
+        BufferedImage b = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = b.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return b;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    private void putInt(int v) {
+        buf.clear();
+        buf.putInt(v);
+        sha.update(buf.array(), 0, 4);
+    }
+
+    private void putDouble(double v) {
+        buf.clear();
+        buf.putDouble(v);
+        sha.update(buf.array(), 0, 8);
+    }
+
+    private void putBoolean(boolean v) {
+        sha.update((byte) (v ? 1 : 0));
+    }
+
+    private void putColor(Color c) {
+        putBoolean(c != null);
+        if (c != null)
+            putInt(c.getRGB());
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        sha.update(bytes);
+    }
+}
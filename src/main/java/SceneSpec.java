@@ -0,0 +1,216 @@
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sets up a DrawPanel from a scene described in JSON, so that pictures can be
+ * rendered without the GUI. Every property is optional:
+ * <pre>
+ * {"width": 800, "height": 600,
+ *  "text": "Hello World", "font": "Serif", "size": 30, "bold": false,
+ *  "italic": false, "justify": "left", "color": "#000000",
+ *  "lineHeight": 1, "shadow": false, "outline": false,
+ *  "background": "resource:resources/images/space.jpeg",
+ *  "backgroundColor": "#404040", "overlay": "#ffffff",
+ *  "horizontalOverlay": false,
+ *  "stamps": [{"name": "star", "x": 100, "y": 80, "scale": 1, "angle": 0}]}
+ * </pre>
+ * Colors are written as "#rrggbb"; an "overlay" of null turns the gradient
+ * overlay off. The background is a source string as accepted by
+ * DrawPanel.loadBackground(). The text can't be empty, the size must be
+ * from 1 to MAX_FONT_SIZE, the line height can't be negative, and the scale
+ * of a stamp must be more than 0.
+ */
+public class SceneSpec {
+
+    public static final int DEFAULT_WIDTH = 800;
+    public static final int DEFAULT_HEIGHT = 600;
+
+    /**
+     * The largest number of pixels a scene may have.
+     */
+    public static final long MAX_PIXELS = 32L << 20;
+
+    /**
+     * The largest font size a scene may have.
+     */
+    public static final int MAX_FONT_SIZE = 2000;
+
+    private SceneSpec() {
+    }
+
+    /**
+     * Read a scene from a JSON file.
+     */
+    public static Map<String, Object> read(File file) throws IOException {
+        return Json.parseObject(new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Apply the properties given in a scene to a panel and its TextItem.
+     * Properties that are not given are left as they are, except that the
+     * panel is given the default size if it has none.
+     *
+     * @throws IOException if a property has a value of the wrong kind or
+     *                     out of range, or a stamp or background can't be
+     *                     found.
+     */
+    public static void apply(Map<String, Object> scene, DrawPanel panel,
+                             StampCatalog stamps) throws IOException {
+        int width = getInt(scene, "width", panel.getPictureWidth() > 0
+                ? panel.getPictureWidth() : DEFAULT_WIDTH);
+        int height = getInt(scene, "height", panel.getPictureHeight() > 0
+                ? panel.getPictureHeight() : DEFAULT_HEIGHT);
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS)
+            throw new IOException("Bad picture size " + width + "x" + height);
+        panel.setSize(width, height);
+        TextItem text = panel.getTextItem();
+        if (scene.containsKey("text")) {
+            String s = getString(scene, "text");
+            if (s.trim().isEmpty())
+                throw new IOException("\"text\" can't be empty");
+            text.setText(s);
+        }
+        if (scene.containsKey("font"))
+            text.setFontName(getString(scene, "font"));
+        if (scene.containsKey("size")) {
+            int size = getInt(scene, "size", text.getFontSize());
+            if (size < 1 || size > MAX_FONT_SIZE)
+                throw new IOException("Bad font size " + size);
+            text.setFontSize(size);
+        }
+        if (scene.containsKey("bold"))
+            text.setBold(getBoolean(scene, "bold"));
+        if (scene.containsKey("italic"))
+            text.setItalic(getBoolean(scene, "italic"));
+        if (scene.containsKey("justify"))
+            text.setJustify(parseJustify(getString(scene, "justify")));
+        if (scene.containsKey("color"))
+            text.setColor(parseColor(getString(scene, "color")));
+        if (scene.containsKey("lineHeight")) {
+            double lineHeight = getNumber(scene, "lineHeight");
+            if (lineHeight < 0)
+                throw new IOException("Bad line height " + lineHeight);
+            text.setLineHeightMultiplier(lineHeight);
+        }
+        if (scene.containsKey("shadow"))
+            text.setShadow(getBoolean(scene, "shadow"));
+        if (scene.containsKey("outline"))
+            text.setOutline(getBoolean(scene, "outline"));
+        if (scene.containsKey("backgroundColor"))
+            panel.setBackground(parseColor(getString(scene, "backgroundColor")));
+        if (scene.containsKey("background")) {
+            if (scene.get("background") == null)
+                panel.setBackgroundImage(null);
+            else {
+                String source = getString(scene, "background");
+                Image img = DrawPanel.loadBackground(source);
+                if (img == null)
+                    throw new IOException("Can't load background " + source);
+                panel.setBackgroundImage(img, source);
+            }
+        }
+        if (scene.containsKey("overlay")) {
+            panel.setGradientOverlayColor(scene.get("overlay") == null ? null
+                    : parseColor(getString(scene, "overlay")));
+        }
+        if (scene.containsKey("horizontalOverlay"))
+            panel.setHorizontalOverlay(getBoolean(scene, "horizontalOverlay"));
+        if (scene.containsKey("stamps")) {
+            Object list = scene.get("stamps");
+            if (!(list instanceof List))
+                throw new IOException("\"stamps\" must be an array");
+            ArrayList<ImageItem> items = new ArrayList<>();
+            for (Object o : (List<?>) list) {
+                if (!(o instanceof Map))
+                    throw new IOException("A stamp must be an object");
+                @SuppressWarnings("unchecked")
+                Map<String, Object> s = (Map<String, Object>) o;
+                String name = getString(s, "name");
+                BufferedImage image = stamps.getStampImage(name);
+                if (image == null)
+                    throw new IOException("No stamp named " + name);
+                double scale = s.containsKey("scale") ? getNumber(s, "scale") : 1;
+                if (scale <= 0)
+                    throw new IOException("Bad scale " + scale);
+                items.add(new ImageItem(image, getInt(s, "x", 0),
+                        getInt(s, "y", 0), scale,
+                        s.containsKey("angle") ? getNumber(s, "angle") : 0));
+            }
+            panel.setImageItems(items);
+        }
+    }
+
+    /**
+     * Parse a color of the form "#rrggbb".
+     */
+    public static Color parseColor(String s) throws IOException {
+        if (s == null || !s.matches("#[0-9a-fA-F]{6}"))
+            throw new IOException("Bad color " + s);
+        return new Color(Integer.parseInt(s.substring(1), 16));
+    }
+
+    private static int parseJustify(String s) throws IOException {
+        switch (s.toLowerCase()) {
+            case "left":
+                return TextItem.LEFT;
+            case "right":
+                return TextItem.RIGHT;
+            case "center":
+                return TextItem.CENTER;
+            default:
+                throw new IOException("Bad justify value " + s);
+        }
+    }
+
+    static String getString(Map<String, Object> map, String key)
+            throws IOException {
+        Object v = map.get(key);
+        if (!(v instanceof String))
+            throw new IOException("\"" + key + "\" must be a string");
+        return (String) v;
+    }
+
+    /**
+     * Return a number from map, which must be finite; a number such as 1e999
+     * is read as infinity.
+     */
+    static double getNumber(Map<String, Object> map, String key)
+            throws IOException {
+        Object v = map.get(key);
+        if (!(v instanceof Double) || ((Double) v).isInfinite()
+                || ((Double) v).isNaN())
+            throw new IOException("\"" + key + "\" must be a finite number");
+        return (Double) v;
+    }
+
+    /**
+     * Return a whole number from map, rounding the number there; it must be
+     * in the range of an int.
+     */
+    static int getInt(Map<String, Object> map, String key, int defaultValue)
+            throws IOException {
+        if (!map.containsKey(key))
+            return defaultValue;
+        double v = getNumber(map, key);
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw new IOException("\"" + key + "\" is out of range");
+        return (int) Math.round(v);
+    }
+
+    static boolean getBoolean(Map<String, Object> map, String key)
+            throws IOException {
+        Object v = map.get(key);
+        if (!(v instanceof Boolean))
+            throw new IOException("\"" + key + "\" must be true or false");
+        return (Boolean) v;
+    }
+}
@@ -1,7 +1,21 @@
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.Icon;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.filechooser.FileView;
+import javax.swing.plaf.basic.BasicFileChooserUI;
 
 /**
  * This class provides a slightly simplified interface to one of Java's standard
@@ -13,10 +27,15 @@ import javax.swing.JOptionPane;
  * However, methods are provided for setting the current directory. (Note: On
  * Windows, the user's home directory will probably mean the user's
  * "My Documents" directory".)
+ * <p>
+ * Images are chosen with a separate dialog (see getImageInputFile()) that shows
+ * a preview of the selected image and is tuned for directories that hold
+ * many files.
  */
 public class SimpleFileChooser {
 
     private JFileChooser dialog;
+    private JFileChooser imageDialog;
 
     /**
      * Reset the default directory in the dialog box to the user's home
@@ -52,6 +71,8 @@ public class SimpleFileChooser {
         if (dialog == null)
             dialog = new JFileChooser();
         dialog.setCurrentDirectory(directory);
+        if (imageDialog != null)
+            imageDialog.setCurrentDirectory(directory);
     }
 
     /**
@@ -109,6 +130,142 @@ public class SimpleFileChooser {
         return dialog.getSelectedFile();
     }
 
+    /**
+     * Show a dialog box where the user can select an image file for reading.
+     * This works like getInputFile(parent,dialogTitle), but the dialog shows
+     * only image files, with a thumbnail preview of the selected file. The
+     * directory listing is read on a background thread (as in any
+     * JFileChooser), and the dialog gets file icons without asking the file
+     * system about each file on the Event Dispatch Thread, so that
+     * directories on slow network drives with thousands of files open
+     * quickly.
+     *
+     * @return the selected file, or null if the user did not select a file.
+     * @see #getInputFile(Component, String)
+     */
+    public File getImageInputFile(Component parent, String dialogTitle) {
+        if (imageDialog == null) {
+            imageDialog = new JFileChooser(dialog == null ? null
+                    : dialog.getCurrentDirectory());
+            imageDialog.putClientProperty("FileChooser.useShellFolder",
+                    Boolean.FALSE);
+            imageDialog.setFileView(new NameOnlyFileView(imageDialog));
+            imageDialog.setAccessory(new ImagePreview(imageDialog));
+            imageDialog.setFileFilter(new FileNameExtensionFilter(
+                    "Images", "png", "jpg", "jpeg", "gif", "bmp"));
+        }
+        imageDialog.setDialogTitle(dialogTitle != null ? dialogTitle
+                : "Select Image File");
+        int option = imageDialog.showOpenDialog(parent);
+        if (option != JFileChooser.APPROVE_OPTION)
+            return null;
+        return imageDialog.getSelectedFile();
+    }
+
+    /**
+     * A FileView that chooses icons by looking only at file names. The
+     * standard FileView asks the operating system for an icon and other
+     * details of every file, which can stall the Event Dispatch Thread on a
+     * network drive. Which files are directories is found out by listing the
+     * chooser's current directory on a background thread each time it
+     * changes. Until a file has been listed, its icon on the Event Dispatch
+     * Thread is a guess from its name, and isTraversable() returns null, so
+     * that the chooser asks the file system about that one file if the user
+     * tries to open it. When the listing is done, the chooser's list is
+     * refreshed.
+     */
+    private static class NameOnlyFileView extends FileView {
+        private static final ExecutorService LISTER = Executors
+                .newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "SimpleFileChooser lister");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        private final JFileChooser chooser;
+        private final ConcurrentHashMap<File, Boolean> directories = new ConcurrentHashMap<>();
+        private volatile File listed; // the directory that directories is for
+
+        NameOnlyFileView(JFileChooser chooser) {
+            this.chooser = chooser;
+            chooser.addPropertyChangeListener(
+                    JFileChooser.DIRECTORY_CHANGED_PROPERTY,
+                    evt -> list(chooser.getCurrentDirectory()));
+            list(chooser.getCurrentDirectory());
+        }
+
+        public Icon getIcon(File f) {
+            Boolean d = isDirectory(f);
+            if (d == null) // a guess, until the directory has been listed
+                d = f.getName().lastIndexOf('.') <= 0;
+            return UIManager.getIcon(d ? "FileView.directoryIcon"
+                    : "FileView.fileIcon");
+        }
+
+        public Boolean isTraversable(File f) {
+            return isDirectory(f);
+        }
+
+        public String getTypeDescription(File f) {
+            if (Boolean.TRUE.equals(isDirectory(f)))
+                return "Folder";
+            String name = f.getName();
+            int dot = name.lastIndexOf('.');
+            return dot < 0 ? "File"
+                    : name.substring(dot + 1).toUpperCase(Locale.ROOT) + " File";
+        }
+
+        /**
+         * Forget the files of the previous directory and start listing the
+         * ones in dir. The chooser's list is refreshed when the listing is
+         * done.
+         */
+        private void list(File dir) {
+            listed = dir;
+            directories.clear();
+            if (dir == null)
+                return;
+            LISTER.execute(() -> {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+                        dir.toPath())) {
+                    for (Path entry : entries) {
+                        if (listed != dir)
+                            return; // the user has moved on
+                        directories.put(entry.toFile(),
+                                Files.isDirectory(entry));
+                    }
+                } catch (IOException | RuntimeException ignored) {
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (listed != dir)
+                        return;
+                    if (chooser.getUI() instanceof BasicFileChooserUI)
+                        ((BasicFileChooserUI) chooser.getUI()).getModel()
+                                .fireContentsChanged();
+                    else
+                        chooser.rescanCurrentDirectory();
+                    chooser.repaint();
+                });
+            });
+        }
+
+        /**
+         * Return whether f is a directory, or null on the Event Dispatch
+         * Thread if that is not known yet.
+         */
+        private Boolean isDirectory(File f) {
+            Boolean d = directories.get(f);
+            if (d != null || SwingUtilities.isEventDispatchThread())
+                return d;
+            // The chooser's own loading thread can afford to ask.
+            d = f.isDirectory();
+            if (f.getParentFile() != null
+                    && f.getParentFile().equals(listed))
+                directories.put(f, d);
+            return d;
+        }
+    }
+
     /**
      * Show a dialog box where the user can select a file for writing. This
      * method simply calls <code>getOutputFile(null,null,null)</code>
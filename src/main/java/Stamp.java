@@ -0,0 +1,102 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * An image that can be stamped, which is not decoded until it is first
+ * needed. Only the name and a way of getting the encoded bytes are kept until
+ * then, so a library of thousands of stamps costs very little to open. The
+ * decoded images are counted by the shared MemoryGovernor.
+ */
+public class Stamp {
+
+    private static final AtomicLong DECODED_BYTES = new AtomicLong();
+
+    static {
+        MemoryGovernor.getShared().register("stamps",
+                MemoryGovernor.PRIORITY_PINNED, new MemoryGovernor.Tracker() {
+                    public long getBytes() {
+                        return DECODED_BYTES.get();
+                    }
+
+                    public long reclaim(long bytes) {
+                        return 0; // stamps in the picture share these images
+                    }
+                });
+    }
+
+    private final String name;
+    private final Callable<BufferedImage> decoder;
+    private BufferedImage image;
+    private boolean failed;
+
+    /**
+     * Create a stamp whose encoded image data will be read from the stream
+     * returned by source.
+     */
+    public Stamp(String name, Callable<InputStream> source) {
+        this.name = name;
+        this.decoder = () -> {
+            try (InputStream in = source.call()) {
+                return in == null ? null : ImageIO.read(in);
+            }
+        };
+    }
+
+    // The parameters are in the opposite order from the public constructor,
+    // which would otherwise have the same erasure.
+    private Stamp(Callable<BufferedImage> decoder, String name) {
+        this.name = name;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Create a stamp from encoded image data that is already in memory.
+     */
+    public Stamp(String name, byte[] data) {
+        this(name, () -> new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Create a stamp whose image is stored in a resource. The image comes
+     * from the shared StartupCache, so it is only decoded the first time the
+     * program uses it.
+     */
+    public static Stamp fromResource(String name, String pathToResource) {
+        return new Stamp(() -> StartupCache.getShared().getResourceImage(
+                pathToResource), name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return true if the image has already been decoded (or failed to decode).
+     */
+    public synchronized boolean isLoaded() {
+        return image != null || failed;
+    }
+
+    /**
+     * Return the image, decoding it the first time this is called.
+     *
+     * @return the image, or null if it can't be read.
+     */
+    public synchronized BufferedImage getImage() {
+        if (image == null && !failed) {
+            try {
+                image = decoder.call();
+            } catch (Exception e) {
+                image = null;
+            }
+            failed = image == null;
+            if (image != null)
+                DECODED_BYTES.addAndGet(MemoryGovernor.sizeOf(image));
+        }
+        return image;
+    }
+}
@@ -0,0 +1,21 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Translates between the images that can be stamped on a DrawPanel and names
+ * for them that stay the same from one run of the program to the next, so
+ * that stamps can be saved and restored.
+ */
+public interface StampCatalog {
+
+    /**
+     * Return the name of the stamp that shows image, or null if image is not
+     * one of the stamps.
+     */
+    String getStampName(BufferedImage image);
+
+    /**
+     * Return the image for the stamp with the given name, or null if there is
+     * no such stamp.
+     */
+    BufferedImage getStampImage(String name);
+}
@@ -0,0 +1,245 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named layer of stamps in a DrawPanel. Every panel has a layer that is
+ * drawn below the text and one that is drawn above it; the user can add more
+ * layers, which are drawn above those. A layer can be hidden.
+ * <p>
+ * For painting on the screen, each layer keeps its stamps drawn in a
+ * transparent raster the size of the panel, so a frame is painted with one
+ * drawImage() per layer no matter how many stamps there are. A stamp that is
+ * added is drawn into the raster; any other change throws the raster away,
+ * and it is drawn again the next time the layer is painted, so a change to
+ * one layer never redraws the stamps of the others. Rasters are counted by
+ * the shared MemoryGovernor, which may discard them when memory is short. A
+ * layer that is no longer used should be given to discardRaster().
+ * Stamps that are hidden by opaque stamps above them in the same layer are
+ * not drawn at all; see OcclusionIndex.
+ */
+public class StampLayer {
+
+    public static final String BELOW_TEXT = "Below Text";
+    public static final String ABOVE_TEXT = "Above Text";
+
+    private static final AtomicLong RASTER_BYTES = new AtomicLong();
+    private static final LinkedHashSet<StampLayer> CACHED = new LinkedHashSet<>();
+
+    static {
+        MemoryGovernor.getShared().register("stamp layers",
+                MemoryGovernor.PRIORITY_RENDERED, new MemoryGovernor.Tracker() {
+                    public long getBytes() {
+                        return RASTER_BYTES.get();
+                    }
+
+                    public long reclaim(long bytes) {
+                        ArrayList<StampLayer> layers;
+                        synchronized (CACHED) {
+                            layers = new ArrayList<>(CACHED);
+                        }
+                        long freed = 0;
+                        for (StampLayer layer : layers) {
+                            if (freed >= bytes)
+                                break;
+                            freed += layer.setRaster(null);
+                        }
+                        return freed;
+                    }
+                });
+    }
+
+    private final String NAME;
+    private final boolean BELOW;
+    private final ArrayList<ImageItem> ITEMS = new ArrayList<>();
+    private final OcclusionIndex OCCLUSION = new OcclusionIndex();
+    private boolean visible = true;
+    private volatile BufferedImage raster; // null when it must be redrawn
+
+    /**
+     * Create an empty, visible layer.
+     *
+     * @param belowText true if the layer is drawn below the text.
+     */
+    public StampLayer(String name, boolean belowText) {
+        NAME = name;
+        BELOW = belowText;
+    }
+
+    /**
+     * Return a new list holding the two layers that every picture has: the
+     * one below the text and the one above it.
+     */
+    public static List<StampLayer> defaultLayers() {
+        ArrayList<StampLayer> layers = new ArrayList<>();
+        layers.add(new StampLayer(BELOW_TEXT, true));
+        layers.add(new StampLayer(ABOVE_TEXT, false));
+        return layers;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public boolean isBelowText() {
+        return BELOW;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Show or hide the layer. This doesn't record anything in a journal; use
+     * DrawPanel.setLayerVisible() for that.
+     */
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    /**
+     * Return the stamps of this layer, in the order in which they are
+     * drawn. The list can't be modified.
+     */
+    public List<ImageItem> getItems() {
+        return Collections.unmodifiableList(ITEMS);
+    }
+
+    /**
+     * Add a stamp on top of the others in this layer. If the layer has a
+     * raster, only the new stamp is drawn into it.
+     */
+    public void add(ImageItem item) {
+        ITEMS.add(item);
+        OCCLUSION.add(item);
+        BufferedImage r = raster;
+        if (r != null) {
+            Graphics2D g = r.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            item.draw(g);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Remove the stamp at the given position in getItems().
+     */
+    public void remove(int index) {
+        ITEMS.remove(index);
+        OCCLUSION.remove(index);
+        setRaster(null);
+    }
+
+    /**
+     * Replace all of the stamps of this layer.
+     */
+    public void setItems(List<ImageItem> items) {
+        ITEMS.clear();
+        ITEMS.addAll(items);
+        OCCLUSION.clear();
+        for (ImageItem item : items)
+            OCCLUSION.add(item);
+        setRaster(null);
+    }
+
+    /**
+     * Return the position in getItems() of the topmost stamp that contains
+     * the point (x,y), or -1 if there is none.
+     */
+    public int find(int x, int y) {
+        for (int i = ITEMS.size() - 1; i >= 0; i--)
+            if (ITEMS.get(i).contains(x, y))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Return the number of stamps in this layer that are completely hidden
+     * by opaque stamps above them in the same layer.
+     */
+    public int getHiddenCount() {
+        return OCCLUSION.getHiddenCount();
+    }
+
+    /**
+     * Draw the stamps of this layer directly, one by one, leaving out those
+     * that are completely hidden. This is used for pictures that are drawn
+     * only once, such as copies of the panel, and to fill the raster.
+     */
+    public void draw(Graphics2D g) {
+        for (int i = 0; i < ITEMS.size(); i++)
+            if (!OCCLUSION.isHidden(i))
+                ITEMS.get(i).draw(g);
+    }
+
+    /**
+     * Draw the stamps of this layer that are not hidden and that touch area,
+     * which is in the coordinates of the picture. This is used to render
+     * part of a picture, such as a tile of a TilePyramid.
+     */
+    public void draw(Graphics2D g, Rectangle area) {
+        for (ImageItem item : OCCLUSION.visibleIn(area))
+            item.draw(g);
+    }
+
+    /**
+     * Paint the layer from its raster, which is drawn first if it is missing
+     * or is not of the given size. Should only be called on the Event
+     * Dispatch Thread.
+     */
+    public void paint(Graphics2D g, int width, int height) {
+        if (ITEMS.isEmpty() || width <= 0 || height <= 0)
+            return;
+        BufferedImage r = raster;
+        if (r == null || r.getWidth() != width || r.getHeight() != height) {
+            r = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D rg = r.createGraphics();
+            rg.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            draw(rg);
+            rg.dispose();
+            setRaster(r);
+            MemoryGovernor.getShared().check();
+        }
+        g.drawImage(r, 0, 0, null);
+    }
+
+    /**
+     * Free the raster of this layer. It will be drawn again if the layer is
+     * painted.
+     */
+    public void discardRaster() {
+        setRaster(null);
+    }
+
+    /**
+     * Replace the raster and update the count of bytes held by rasters.
+     *
+     * @return the number of bytes freed by dropping the old raster.
+     */
+    private long setRaster(BufferedImage r) {
+        long freed;
+        synchronized (CACHED) {
+            BufferedImage old = raster;
+            if (old == r)
+                return 0;
+            raster = r;
+            freed = old == null ? 0 : MemoryGovernor.sizeOf(old);
+            RASTER_BYTES.addAndGet((r == null ? 0 : MemoryGovernor.sizeOf(r))
+                    - freed);
+            if (r == null)
+                CACHED.remove(this);
+            else
+                CACHED.add(this);
+        }
+        return freed;
+    }
+}
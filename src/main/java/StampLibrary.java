@@ -0,0 +1,246 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A named set of stamps, loaded from a directory of image files or from a zip
+ * or jar archive. Opening a library reads only the names of the images; each
+ * image is decoded when it is first used (see Stamp). An archive is memory
+ * mapped and its central directory is read straight from the mapping, so the
+ * entries are found without reading the archive sequentially, and the bytes of
+ * an entry are only touched when that stamp is decoded.
+ */
+public class StampLibrary {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private final String name;
+    private final File file;
+    private final List<Stamp> stamps;
+
+    private StampLibrary(String name, File file, List<Stamp> stamps) {
+        this.name = name;
+        this.file = file;
+        this.stamps = Collections.unmodifiableList(stamps);
+    }
+
+    /**
+     * Open a library from a directory or a zip or jar archive. The name of the
+     * library is the name of the directory or archive, without an extension.
+     *
+     * @throws IOException if the file can't be read or is not a valid archive.
+     */
+    public static StampLibrary open(File file) throws IOException {
+        return open(file, defaultName(file));
+    }
+
+    /**
+     * Open a library from a directory or a zip or jar archive, giving it the
+     * name libName, which is the first part of the names of its stamps.
+     *
+     * @throws IOException if the file can't be read or is not a valid archive.
+     */
+    public static StampLibrary open(File file, String libName)
+            throws IOException {
+        List<Stamp> stamps = file.isDirectory() ? readDirectory(file, libName)
+                : readArchive(file, libName);
+        return new StampLibrary(libName, file, stamps);
+    }
+
+    /**
+     * Return the name of the directory or archive file, without an extension.
+     */
+    public static String defaultName(File file) {
+        String libName = file.getName();
+        int dot = libName.lastIndexOf('.');
+        if (dot > 0 && !file.isDirectory())
+            libName = libName.substring(0, dot);
+        return libName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the directory or archive from which the library was loaded.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the stamps in the library, sorted by name. The list can't be
+     * modified.
+     */
+    public List<Stamp> getStamps() {
+        return stamps;
+    }
+
+    /**
+     * Return true if name looks like the name of an image file.
+     */
+    static boolean isImageName(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".png") || n.endsWith(".gif") || n.endsWith(".jpg")
+                || n.endsWith(".jpeg") || n.endsWith(".bmp");
+    }
+
+    /**
+     * Return the names of the stamps of a library whose image files have the
+     * given paths in it. A stamp is named after the library and its file
+     * name, with the directories and extension removed ("lib/star"), unless
+     * another file of the library would get the same name; then the whole
+     * path is used ("lib/a/star.png"), so that no two stamps share a name.
+     */
+    private static String[] stampNames(String libName, List<String> paths) {
+        String[] names = new String[paths.size()];
+        HashMap<String, Integer> uses = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            String path = paths.get(i);
+            String n = path.substring(path.lastIndexOf('/') + 1);
+            int dot = n.lastIndexOf('.');
+            names[i] = libName + "/" + (dot > 0 ? n.substring(0, dot) : n);
+            uses.merge(names[i], 1, Integer::sum);
+        }
+        for (int i = 0; i < names.length; i++)
+            if (uses.get(names[i]) > 1)
+                names[i] = libName + "/" + paths.get(i);
+        return names;
+    }
+
+    private static List<Stamp> readDirectory(File dir, String libName)
+            throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Can't list " + dir);
+        Arrays.sort(files);
+        ArrayList<File> images = new ArrayList<>();
+        ArrayList<String> paths = new ArrayList<>();
+        for (File f : files) {
+            if (f.isFile() && isImageName(f.getName())) {
+                images.add(f);
+                paths.add(f.getName());
+            }
+        }
+        String[] names = stampNames(libName, paths);
+        ArrayList<Stamp> stamps = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            File f = images.get(i);
+            stamps.add(new Stamp(names[i], () -> new FileInputStream(f)));
+        }
+        return stamps;
+    }
+
+    /**
+     * Read the central directory of a zip archive from a memory mapping of the
+     * archive. ZIP64 archives are not supported.
+     */
+    private static List<Stamp> readArchive(File zip, String libName)
+            throws IOException {
+        MappedByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(zip, "r");
+             FileChannel ch = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        ByteBuffer buf = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = -1;
+        for (int p = buf.limit() - 22; p >= 0 && p >= buf.limit() - 65557; p--)
+            if (buf.getInt(p) == EOCD_SIGNATURE) {
+                eocd = p;
+                break;
+            }
+        if (eocd < 0)
+            throw new IOException("Not a zip archive: " + zip);
+        int count = buf.getShort(eocd + 10) & 0xFFFF;
+        int p = buf.getInt(eocd + 16);
+        ArrayList<String> paths = new ArrayList<>();
+        ArrayList<Callable<InputStream>> sources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (p < 0 || p + 46 > buf.limit() || buf.getInt(p) != CENTRAL_SIGNATURE)
+                throw new IOException("Damaged zip archive: " + zip);
+            int method = buf.getShort(p + 10) & 0xFFFF;
+            int compressedSize = buf.getInt(p + 20);
+            int size = buf.getInt(p + 24);
+            int nameLength = buf.getShort(p + 28) & 0xFFFF;
+            int extraLength = buf.getShort(p + 30) & 0xFFFF;
+            int commentLength = buf.getShort(p + 32) & 0xFFFF;
+            int localHeader = buf.getInt(p + 42);
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nb = buf.duplicate();
+            nb.position(p + 46);
+            nb.get(nameBytes);
+            String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+            if (!entryName.endsWith("/") && isImageName(entryName)
+                    && (method == 0 || method == 8)) {
+                paths.add(entryName);
+                sources.add(() -> new ByteArrayInputStream(entryData(buf,
+                        localHeader, method, compressedSize, size)));
+            }
+            p += 46 + nameLength + extraLength + commentLength;
+        }
+        String[] names = stampNames(libName, paths);
+        ArrayList<Stamp> stamps = new ArrayList<>();
+        for (int i = 0; i < names.length; i++)
+            stamps.add(new Stamp(names[i], sources.get(i)));
+        stamps.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return stamps;
+    }
+
+    /**
+     * Return the uncompressed data of the zip entry whose local header starts
+     * at offset.
+     */
+    private static byte[] entryData(ByteBuffer zip, int offset, int method,
+                                    int compressedSize, int size)
+            throws IOException {
+        if (zip.getInt(offset) != LOCAL_SIGNATURE)
+            throw new IOException("Damaged zip entry");
+        int start = offset + 30 + (zip.getShort(offset + 26) & 0xFFFF)
+                + (zip.getShort(offset + 28) & 0xFFFF);
+        ByteBuffer data = zip.duplicate();
+        data.position(start);
+        data.limit(start + compressedSize);
+        byte[] compressed = new byte[compressedSize];
+        data.get(compressed);
+        if (method == 0)
+            return compressed;
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] out = new byte[size];
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int k = inflater.inflate(out, n, size - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += k;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps the results of slow work that every start of the program repeats in
+ * a file, "startup.cache" in the program's data directory: the list of font
+ * families, and the decoded pixels of small image resources such as the
+ * toolbar icons, stamp images and background thumbnails. The file is memory
+ * mapped when the cache is opened, and an image is only copied out of it when
+ * it is asked for, so a warm start neither enumerates the fonts nor decodes
+ * an image.
+ * <p>
+ * Each image is stored with a fingerprint of its resource: the length and
+ * modification time of the file, or of the jar that holds it. The font list
+ * is stored with a fingerprint of the Java version and the modification times
+ * of the system's font directories. An entry whose fingerprint no longer
+ * matches is ignored and made again. The file is rewritten by save(), and only
+ * if something had to be made again.
+ * <p>
+ * A mapped file can't be replaced on Windows, and Java has no way to unmap
+ * it, so save() writes the new cache as "startup.cache.new". It takes the
+ * place of the old file the next time the cache is opened, before the old
+ * file is mapped.
+ */
+public class StartupCache {
+
+    private static final int MAGIC = 0x53434331; // "SCC1"
+    private static final int VERSION = 1;
+
+    /**
+     * Images with more pixels than this are not kept in the cache.
+     */
+    public static final int MAX_PIXELS = 256 * 256;
+
+    private static StartupCache shared;
+
+    private final File file;
+    private final File next; // written by save(), used at the next start
+    private ByteBuffer mapped; // the file as it was read, or null
+    private String[] fontFamilies;
+    private String fontFingerprint;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private boolean dirty;
+
+    /**
+     * An image in the cache. Until it is asked for, its pixels are only in
+     * the mapped file, at offset.
+     */
+    private static class Entry {
+        final String fingerprint;
+        final int width;
+        final int height;
+        final int offset;
+        BufferedImage image;
+
+        Entry(String fingerprint, int width, int height, int offset,
+              BufferedImage image) {
+            this.fingerprint = fingerprint;
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Open the cache kept in file. If the file is missing or can't be read,
+     * the cache starts empty.
+     */
+    public StartupCache(File file) {
+        this.file = file;
+        next = new File(file.getPath() + ".new");
+        if (next.exists()) {
+            try {
+                Files.move(next.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // another process has the old file mapped; use it this time
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            read(mapped.duplicate());
+        } catch (IOException | RuntimeException e) {
+            mapped = null;
+            fontFamilies = null;
+            fontFingerprint = null;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Return the cache in the program's data directory, which is saved when
+     * the program ends.
+     */
+    public static synchronized StartupCache getShared() {
+        if (shared == null) {
+            shared = new StartupCache(new File(Util.getAppDataDirectory(),
+                    "startup.cache"));
+            Runtime.getRuntime().addShutdownHook(new Thread(shared::save));
+        }
+        return shared;
+    }
+
+    /**
+     * Return the names of the font families that are available, as returned
+     * by GraphicsEnvironment.getAvailableFontFamilyNames().
+     */
+    public synchronized String[] getFontFamilies() {
+        String fingerprint = fontFingerprint();
+        if (fontFamilies == null || !fingerprint.equals(fontFingerprint)) {
+            fontFamilies = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getAvailableFontFamilyNames();
+            fontFingerprint = fingerprint;
+            dirty = true;
+        }
+        return fontFamilies.clone();
+    }
+
+    /**
+     * Return the image stored in a resource, from the cache if it holds the
+     * current version of the resource, or else by decoding it. Each call
+     * returns the same image, which should not be modified.
+     *
+     * @return the image, or null if the resource can't be loaded.
+     */
+    public synchronized BufferedImage getResourceImage(String pathToResource) {
+        URL loc = StartupCache.class.getClassLoader().getResource(
+                pathToResource);
+        if (loc == null)
+            return null;
+        String fingerprint = fingerprint(loc);
+        Entry entry = entries.get(pathToResource);
+        if (entry != null && entry.fingerprint.equals(fingerprint)) {
+            if (entry.image == null)
+                entry.image = copyPixels(entry);
+            return entry.image;
+        }
+        BufferedImage image;
+        try {
+            image = ImageIO.read(loc);
+        } catch (Exception e) {
+            return null;
+        }
+        if (image == null)
+            return null;
+        if (fingerprint == null
+                || (long) image.getWidth() * image.getHeight() > MAX_PIXELS) {
+            entries.remove(pathToResource);
+            return image;
+        }
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage argb = new BufferedImage(image.getWidth(),
+                    image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            image.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                    pixels(argb), 0, image.getWidth());
+            image = argb;
+        }
+        entries.put(pathToResource, new Entry(fingerprint, image.getWidth(),
+                image.getHeight(), -1, image));
+        dirty = true;
+        return image;
+    }
+
+    /**
+     * Write the cache, if anything in it has changed, to the file that
+     * replaces the cache's file when it is next opened. That file is
+     * replaced in one step, so a reader never sees half of it.
+     */
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fontFingerprint == null ? "" : fontFingerprint);
+            out.writeInt(fontFamilies == null ? -1 : fontFamilies.length);
+            if (fontFamilies != null)
+                for (String family : fontFamilies)
+                    writeString(out, family);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writeString(out, e.getKey());
+                writeString(out, entry.fingerprint);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+                int[] pixels = entry.image != null ? pixels(entry.image)
+                        : null;
+                ByteBuffer in = pixels == null ? mapped.duplicate() : null;
+                if (in != null)
+                    in.position(entry.offset);
+                for (int i = 0; i < entry.width * entry.height; i++)
+                    out.writeInt(pixels != null ? pixels[i] : in.getInt());
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), next.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Read the contents of the file. Images are not copied; only their
+     * positions are noted.
+     */
+    private void read(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION)
+            throw new IOException("Not a startup cache of this version.");
+        fontFingerprint = readString(in);
+        int families = in.getInt();
+        if (families >= 0) {
+            fontFamilies = new String[families];
+            for (int i = 0; i < families; i++)
+                fontFamilies[i] = readString(in);
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String path = readString(in);
+            String fingerprint = readString(in);
+            int width = in.getInt();
+            int height = in.getInt();
+            if (width <= 0 || height <= 0
+                    || (long) width * height > MAX_PIXELS)
+                throw new IOException("Bad image size.");
+            entries.put(path, new Entry(fingerprint, width, height,
+                    in.position(), null));
+            in.position(in.position() + 4 * width * height);
+        }
+    }
+
+    private BufferedImage copyPixels(Entry entry) {
+        BufferedImage image = new BufferedImage(entry.width, entry.height,
+                BufferedImage.TYPE_INT_ARGB);
+        ByteBuffer in = mapped.duplicate();
+        in.position(entry.offset);
+        in.asIntBuffer().get(pixels(image));
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Return a string that changes when the resource at loc is changed, or
+     * null if there is no cheap way to tell.
+     */
+    private static String fingerprint(URL loc) {
+        String path = loc.getPath();
+        if (loc.getProtocol().equals("jar")) {
+            int bang = path.indexOf("!/");
+            if (bang < 0 || !path.startsWith("file:"))
+                return null;
+            path = path.substring(5, bang);
+        } else if (!loc.getProtocol().equals("file")) {
+            return null;
+        }
+        try {
+            File f = new File(URLDecoder.decode(path, "UTF-8"));
+            if (!f.exists())
+                return null;
+            return f.length() + ":" + f.lastModified();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return a string that changes when the Java version changes or a font is
+     * installed or removed. Fonts are looked for in the usual directories of
+     * Linux, macOS and Windows, and in the directories just inside them.
+     */
+    private static String fontFingerprint() {
+        String home = System.getProperty("user.home", "");
+        String windows = System.getenv("WINDIR");
+        String local = System.getenv("LOCALAPPDATA");
+        String[] dirs = {"/usr/share/fonts", "/usr/local/share/fonts",
+                "/var/cache/fontconfig", home + "/.fonts",
+                home + "/.local/share/fonts", "/Library/Fonts",
+                "/System/Library/Fonts", home + "/Library/Fonts",
+                windows == null ? null : windows + "\\Fonts",
+                local == null ? null
+                        : local + "\\Microsoft\\Windows\\Fonts"};
+        StringBuilder b = new StringBuilder();
+        b.append(System.getProperty("java.version")).append(';')
+                .append(System.getProperty("os.name"));
+        for (String dir : dirs) {
+            if (dir == null)
+                continue;
+            File d = new File(dir);
+            if (!d.isDirectory())
+                continue;
+            long newest = d.lastModified();
+            File[] subdirs = d.listFiles(File::isDirectory);
+            if (subdirs != null)
+                for (File sub : subdirs)
+                    newest = Math.max(newest, sub.lastModified());
+            b.append(';').append(dir).append('=').append(newest);
+        }
+        return b.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new IOException("Bad string length.");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,404 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes a picture as an SVG file, which can be printed or scaled to any size
+ * without losing sharpness. The background image is embedded once, as a PNG
+ * at its own resolution; the gradient overlay becomes a linearGradient; and
+ * the text is written either as text elements, which can still be edited, or
+ * as the outlines of its glyphs, which look the same without the font.
+ * <p>
+ * Each distinct stamp image is embedded only once, as a symbol, and every
+ * stamp is a short use element that refers to it, so the size of the file
+ * grows with the number of stamps rather than with their area. The file is
+ * written straight to a buffered stream, one element at a time.
+ * <p>
+ * The picture is copied from the panel when the exporter is made, so write()
+ * can be called on any thread.
+ */
+public class SvgExporter {
+
+    private final int width;
+    private final int height;
+    private final Color background;
+    private final Image backgroundImage;
+    private final Color overlayColor;
+    private final boolean horizontalOverlay;
+    private final List<List<ImageItem>> belowText = new ArrayList<>();
+    private final List<List<ImageItem>> aboveText = new ArrayList<>();
+
+    private final String[] lines;
+    private final Point[] baselines;
+    private final FontRenderContext frc;
+    private final Font font;
+    private final Color textColor;
+    private final boolean shadow;
+    private final boolean outline;
+    private final int spread;
+    private final Color outlineColor;
+
+    private boolean outlineText;
+
+    /**
+     * Copy the picture shown by panel. Must be called on the thread that owns
+     * the panel.
+     */
+    public SvgExporter(DrawPanel panel) {
+        width = panel.getPictureWidth();
+        height = panel.getPictureHeight();
+        background = panel.getBackground();
+        backgroundImage = panel.getBackgroundImage();
+        overlayColor = panel.getGradientOverlayColor();
+        horizontalOverlay = panel.isHorizontalOverlay();
+        for (StampLayer layer : panel.getLayers()) {
+            if (layer.isVisible() && !layer.getItems().isEmpty())
+                (layer.isBelowText() ? belowText : aboveText).add(
+                        new ArrayList<>(layer.getItems()));
+        }
+        TextItem text = panel.getTextItem();
+        lines = text.getLines();
+        font = text.getFont();
+        textColor = text.getColor() == null ? Color.BLACK : text.getColor();
+        shadow = text.hasShadow();
+        outline = text.hasOutline();
+        spread = text.getEffectSpread();
+        outlineColor = text.getOutlineColor();
+        BufferedImage scratch = new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scratch.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setFont(font);
+        baselines = text.getBaselines(g, width / 2, height / 2);
+        frc = g.getFontRenderContext();
+        g.dispose();
+    }
+
+    /**
+     * Choose whether the text is written as the outlines of its glyphs
+     * instead of as text elements. The default is false.
+     */
+    public void setOutlineText(boolean outlineText) {
+        this.outlineText = outlineText;
+    }
+
+    public boolean isOutlineText() {
+        return outlineText;
+    }
+
+    /**
+     * Write the picture to file, encoded in UTF-8.
+     *
+     * @return the number of stamps written.
+     */
+    public int write(File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            return write(out);
+        }
+    }
+
+    /**
+     * Write the picture to out, which is not closed.
+     *
+     * @return the number of stamps written.
+     */
+    public int write(Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\""
+                + " xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\""
+                + " width=\"" + width + "\" height=\"" + height
+                + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+
+        IdentityHashMap<BufferedImage, String> symbols = new IdentityHashMap<>();
+        out.write("<defs>\n");
+        writeSymbols(out, belowText, symbols);
+        writeSymbols(out, aboveText, symbols);
+        if (overlayColor != null)
+            writeGradient(out);
+        if (shadow) {
+            // TextEffects blurs the shadow with three box passes of total
+            // radius 2*spread, which is close to a Gaussian of this width.
+            out.write("<filter id=\"shadow\" x=\"-20%\" y=\"-20%\" width=\"140%\""
+                    + " height=\"140%\"><feGaussianBlur stdDeviation=\""
+                    + num(2 * spread / Math.sqrt(3)) + "\"/></filter>\n");
+        }
+        out.write("</defs>\n");
+
+        out.write("<rect width=\"" + width + "\" height=\"" + height
+                + "\" fill=\"" + rgb(background) + "\"/>\n");
+        if (backgroundImage != null) {
+            out.write("<image width=\"" + width + "\" height=\"" + height
+                    + "\" preserveAspectRatio=\"none\" xlink:href=\"");
+            writePng(out, toBufferedImage(backgroundImage));
+            out.write("\"/>\n");
+        }
+        if (overlayColor != null)
+            out.write("<rect width=\"" + width + "\" height=\"" + height
+                    + "\" fill=\"url(#overlay)\"/>\n");
+        int count = writeStamps(out, belowText, symbols);
+        writeText(out);
+        count += writeStamps(out, aboveText, symbols);
+        out.write("</svg>\n");
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Write a symbol for each stamp image that does not have one yet, and
+     * record its id in symbols.
+     */
+    private void writeSymbols(Writer out, List<List<ImageItem>> layers,
+                              IdentityHashMap<BufferedImage, String> symbols)
+            throws IOException {
+        for (List<ImageItem> items : layers) {
+            for (ImageItem item : items) {
+                BufferedImage img = item.getImage();
+                if (symbols.containsKey(img))
+                    continue;
+                String id = "s" + symbols.size();
+                symbols.put(img, id);
+                int w = img.getWidth();
+                int h = img.getHeight();
+                out.write("<symbol id=\"" + id + "\" viewBox=\"0 0 " + w + " "
+                        + h + "\"><image width=\"" + w + "\" height=\"" + h
+                        + "\" xlink:href=\"");
+                writePng(out, img);
+                out.write("\"/></symbol>\n");
+            }
+        }
+    }
+
+    /**
+     * Write the gradient that is used for the overlay, with the same colors
+     * as the one that DrawPanel paints.
+     */
+    private void writeGradient(Writer out) throws IOException {
+        out.write("<linearGradient id=\"overlay\" gradientUnits=\"userSpaceOnUse\""
+                + " x1=\"0\" y1=\"0\" x2=\"" + (horizontalOverlay ? width : 0)
+                + "\" y2=\"" + (horizontalOverlay ? 0 : height) + "\">");
+        out.write("<stop offset=\"0\" stop-color=\"" + rgb(overlayColor)
+                + "\" stop-opacity=\"" + num(OverlayKernel.START_ALPHA / 255.0)
+                + "\"/>");
+        out.write("<stop offset=\"1\" stop-color=\"" + rgb(overlayColor)
+                + "\" stop-opacity=\"" + num(OverlayKernel.END_ALPHA / 255.0)
+                + "\"/>");
+        out.write("</linearGradient>\n");
+    }
+
+    /**
+     * Write a use element for each stamp, one group per layer.
+     *
+     * @return the number of stamps.
+     */
+    private int writeStamps(Writer out, List<List<ImageItem>> layers,
+                            IdentityHashMap<BufferedImage, String> symbols)
+            throws IOException {
+        int count = 0;
+        for (List<ImageItem> items : layers) {
+            out.write("<g>\n");
+            for (ImageItem item : items) {
+                BufferedImage img = item.getImage();
+                int w = img.getWidth();
+                int h = img.getHeight();
+                out.write("<use xlink:href=\"#");
+                out.write(symbols.get(img));
+                double scale = item.getScale();
+                double angle = item.getAngle();
+                if (scale == 1 && angle == 0) {
+                    out.write("\" x=\"" + (item.getCenterX() - w / 2) + "\" y=\""
+                            + (item.getCenterY() - h / 2));
+                } else {
+                    out.write("\" x=\"" + num(-w / 2.0) + "\" y=\""
+                            + num(-h / 2.0) + "\" transform=\"translate("
+                            + item.getCenterX() + " " + item.getCenterY() + ")");
+                    if (angle != 0)
+                        out.write(" rotate(" + num(Math.toDegrees(angle)) + ")");
+                    if (scale != 1)
+                        out.write(" scale(" + num(scale) + ")");
+                }
+                out.write("\" width=\"" + w + "\" height=\"" + h + "\"/>\n");
+                count++;
+            }
+            out.write("</g>\n");
+        }
+        return count;
+    }
+
+    /**
+     * Write the text, below which come its shadow and outline if it has
+     * them. The shadow is a blurred, offset copy of the text; the outline is
+     * a copy drawn with a wide stroke.
+     */
+    private void writeText(Writer out) throws IOException {
+        out.write("<g>\n");
+        if (shadow)
+            writeTextCopy(out, "fill=\"#000000\" fill-opacity=\""
+                    + num(160 / 255.0) + "\" filter=\"url(#shadow)\""
+                    + " transform=\"translate(" + spread + " " + spread + ")\"");
+        if (outline)
+            writeTextCopy(out, "fill=\"" + rgb(outlineColor)
+                    + "\" stroke=\"" + rgb(outlineColor)
+                    + "\" stroke-width=\"" + 2 * spread
+                    + "\" stroke-linejoin=\"round\"");
+        writeTextCopy(out, "fill=\"" + rgb(textColor) + "\""
+                + opacity("fill-opacity", textColor));
+        out.write("</g>\n");
+    }
+
+    /**
+     * Write the lines of the text in a group with the given attributes.
+     */
+    private void writeTextCopy(Writer out, String attributes)
+            throws IOException {
+        if (outlineText) {
+            out.write("<path " + attributes + " d=\"");
+            for (int i = 0; i < lines.length; i++)
+                writePath(out, font.createGlyphVector(frc, lines[i])
+                        .getOutline(baselines[i].x, baselines[i].y));
+            out.write("\"/>\n");
+            return;
+        }
+        out.write("<g " + attributes + " font-family=\""
+                + escape(fontFamily(font)) + "\" font-size=\""
+                + font.getSize() + "\"");
+        if (font.isBold())
+            out.write(" font-weight=\"bold\"");
+        if (font.isItalic())
+            out.write(" font-style=\"italic\"");
+        out.write(" xml:space=\"preserve\">\n");
+        for (int i = 0; i < lines.length; i++)
+            out.write("<text x=\"" + baselines[i].x + "\" y=\""
+                    + baselines[i].y + "\">" + escape(lines[i]) + "</text>\n");
+        out.write("</g>\n");
+    }
+
+    /**
+     * Write the path data of shape.
+     */
+    private static void writePath(Writer out, Shape shape) throws IOException {
+        double[] c = new double[6];
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone();
+             it.next()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    out.write("M" + num(c[0]) + " " + num(c[1]));
+                    break;
+                case PathIterator.SEG_LINETO:
+                    out.write("L" + num(c[0]) + " " + num(c[1]));
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    out.write("Q" + num(c[0]) + " " + num(c[1]) + " "
+                            + num(c[2]) + " " + num(c[3]));
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    out.write("C" + num(c[0]) + " " + num(c[1]) + " "
+                            + num(c[2]) + " " + num(c[3]) + " " + num(c[4])
+                            + " " + num(c[5]));
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    out.write("Z");
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write img as a PNG data URI.
+     */
+    private static void writePng(Writer out, BufferedImage img)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, "PNG", bytes);
+        out.write("data:image/png;base64,");
+        out.write(Base64.getEncoder().encodeToString(bytes.toByteArray()));
+    }
+
+    private static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage)
+            return (BufferedImage) image;
+        BufferedImage copy = new BufferedImage(image.getWidth(null),
+                image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    /**
+     * Return the CSS font family for font, with a generic family after it
+     * for the logical Java fonts.
+     */
+    private static String fontFamily(Font font) {
+        switch (font.getName()) {
+            case Font.SERIF:
+                return "serif";
+            case Font.SANS_SERIF:
+            case Font.DIALOG:
+                return "sans-serif";
+            case Font.MONOSPACED:
+            case Font.DIALOG_INPUT:
+                return "monospace";
+            default:
+                return "'" + font.getFamily().replace("'", "") + "'";
+        }
+    }
+
+    private static String rgb(Color c) {
+        return String.format("#%06x", c.getRGB() & 0xFFFFFF);
+    }
+
+    private static String opacity(String attribute, Color c) {
+        return c.getAlpha() == 255 ? ""
+                : " " + attribute + "=\"" + num(c.getAlpha() / 255.0) + "\"";
+    }
+
+    /**
+     * Return x with at most three decimal places.
+     */
+    private static String num(double x) {
+        long thousandths = Math.round(x * 1000);
+        if (thousandths % 1000 == 0)
+            return Long.toString(thousandths / 1000);
+        return Double.toString(thousandths / 1000.0);
+    }
+
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '<')
+                b.append("&lt;");
+            else if (ch == '>')
+                b.append("&gt;");
+            else if (ch == '&')
+                b.append("&amp;");
+            else if (ch == '"')
+                b.append("&quot;");
+            else if (ch >= 0x20 || ch == '\t')
+                b.append(ch);
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,321 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders many pictures that share everything except their text, as in a
+ * mail merge. The layers that don't change (background color and image,
+ * gradient overlay, and stamps) are drawn once, from a scene file (see
+ * SceneSpec); each job then copies the base layer, draws its own text and
+ * puts the stamp layer on top. Jobs are read one at a time from a CSV file
+ * with a header line, or from a file of JSON objects, one per line, so a job
+ * list of any length can be processed. Each job has a "text" field and may
+ * have an "output" field giving the name of its file. Encoding is done on a
+ * pool of threads while the next pictures are drawn. Pictures are kept in the
+ * shared RenderCache, keyed by their SceneHash, so a job whose picture was
+ * made before is copied from the cache without drawing or encoding;
+ * --no-cache turns this off.
+ * <p>
+ * Usage: java TemplateRenderer [--format png|jpeg] [--no-cache] scene.json
+ * jobs.csv|jobs.jsonl outdir
+ */
+public class TemplateRenderer {
+
+    private final DrawPanel panel;
+    private final BufferedImage base;
+    private final BufferedImage stampLayer;
+    private final TextItem text;
+    private RenderCache cache;
+
+    /**
+     * Set up a renderer for the scene that is currently shown by panel. The
+     * panel's text is used as the template for the text style; its content
+     * is replaced by each job.
+     */
+    public TemplateRenderer(DrawPanel panel) {
+        this.panel = panel;
+        base = panel.renderBaseLayer();
+        stampLayer = panel.renderStampLayer();
+        text = panel.getTextItem();
+    }
+
+    /**
+     * Return the picture for one job: the scene with the given text.
+     */
+    public BufferedImage render(String jobText) {
+        int w = base.getWidth();
+        int h = base.getHeight();
+        BufferedImage picture = new BufferedImage(w, h,
+                BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(
+                ((DataBufferInt) base.getRaster().getDataBuffer()).getData(), 0,
+                ((DataBufferInt) picture.getRaster().getDataBuffer()).getData(),
+                0, w * h);
+        Graphics2D g = picture.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        text.setText(jobText);
+        text.draw(g, w / 2, h / 2);
+        if (stampLayer != null)
+            g.drawImage(stampLayer, 0, 0, null);
+        g.dispose();
+        return picture;
+    }
+
+    public DrawPanel getPanel() {
+        return panel;
+    }
+
+    /**
+     * Set the cache used by renderAll(), or null (the default) for none.
+     */
+    public void setCache(RenderCache cache) {
+        this.cache = cache;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String format = "png";
+        boolean useCache = true;
+        int a = 0;
+        while (a < args.length && args[a].startsWith("--")) {
+            if (args[a].equals("--format") && a + 1 < args.length) {
+                format = args[a + 1].toLowerCase();
+                a += 2;
+            } else if (args[a].equals("--no-cache")) {
+                useCache = false;
+                a++;
+            } else
+                break;
+        }
+        if (args.length - a != 3 || !(format.equals("png")
+                || format.equals("jpeg"))) {
+            System.err.println("Usage: java TemplateRenderer [--format png|jpeg] "
+                    + "[--no-cache] scene.json jobs.csv|jobs.jsonl outdir");
+            System.exit(1);
+        }
+        File outDir = new File(args[a + 2]);
+        outDir.mkdirs();
+        try {
+            DrawPanel panel = new DrawPanel();
+            IconSupport stamps = new IconSupport(panel);
+            stamps.openSavedLibraries();
+            SceneSpec.apply(SceneSpec.read(new File(args[a])), panel, stamps);
+            TemplateRenderer renderer = new TemplateRenderer(panel);
+            if (useCache)
+                renderer.setCache(RenderCache.getShared());
+            long start = System.nanoTime();
+            int count;
+            try (JobReader jobs = new JobReader(new File(args[a + 1]))) {
+                count = renderer.renderAll(jobs, outDir, format);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d pictures in %.2f s (%.1f per second)%n",
+                    count, seconds, count / seconds);
+            if (useCache) {
+                int[] hm = RenderCache.getShared().getHitsAndMisses();
+                System.out.printf("%d from the cache, %d rendered%n", hm[0],
+                        hm[1]);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Render every job from jobs into outDir, encoding on a pool of threads.
+     * Only a few pictures are waiting to be encoded at any time.
+     *
+     * @return the number of pictures written.
+     * @throws IOException if a job is invalid or a file can't be written.
+     */
+    public int renderAll(JobReader jobs, File outDir, String format)
+            throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService encoders = Executors.newFixedThreadPool(threads);
+        Semaphore pending = new Semaphore(2 * threads);
+        AtomicInteger written = new AtomicInteger();
+        IOException[] failure = new IOException[1];
+        int n = 0;
+        try {
+            Map<String, Object> job;
+            while ((job = jobs.next()) != null && failure[0] == null) {
+                n++;
+                if (!(job.get("text") instanceof String)
+                        || ((String) job.get("text")).trim().isEmpty())
+                    throw new IOException("Job " + n + " has no text");
+                File file = outputFile(outDir, job.get("output"), n, format);
+                String key = null;
+                if (cache != null) {
+                    text.setText((String) job.get("text"));
+                    key = SceneHash.of(panel) + "." + format;
+                    if (cache.copyTo(key, file)) {
+                        written.incrementAndGet();
+                        continue;
+                    }
+                }
+                BufferedImage picture = render((String) job.get("text"));
+                String cacheKey = key;
+                pending.acquireUninterruptibly();
+                encoders.execute(() -> {
+                    try {
+                        if (!ImageIO.write(picture, format, file))
+                            throw new IOException("No writer for " + format);
+                        if (cacheKey != null)
+                            cache.put(cacheKey, file);
+                        written.incrementAndGet();
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } finally {
+            encoders.shutdown();
+            try {
+                encoders.awaitTermination(1, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
+        return written.get();
+    }
+
+    /**
+     * Return the file for the job with the given number, named by its
+     * "output" field or, if it has none, by its number.
+     */
+    private static File outputFile(File outDir, Object name, int n,
+                                   String format) throws IOException {
+        String base = name instanceof String ? (String) name
+                : String.format("saying-%06d", n);
+        if (base.isEmpty() || base.contains("..") || base.contains("/")
+                || base.contains("\\"))
+            throw new IOException("Bad output name in job " + n + ": " + base);
+        String lower = base.toLowerCase();
+        if (!lower.endsWith("." + format) && !(format.equals("jpeg")
+                && lower.endsWith(".jpg")))
+            base += "." + format;
+        return new File(outDir, base);
+    }
+
+    /**
+     * Reads jobs one at a time from a CSV file with a header line, or from a
+     * file with one JSON object per line (if its name ends with ".jsonl" or
+     * ".json"). CSV fields may be quoted with double quotes, and quoted fields
+     * may contain commas, doubled quotes and line breaks.
+     */
+    public static class JobReader implements AutoCloseable {
+        private final BufferedReader in;
+        private final boolean json;
+        private String[] header;
+        private int line;
+
+        public JobReader(File file) throws IOException {
+            in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8));
+            String name = file.getName().toLowerCase();
+            json = name.endsWith(".jsonl") || name.endsWith(".json");
+            if (!json) {
+                ArrayList<String> h = readRecord();
+                if (h == null)
+                    throw new IOException("The job file is empty");
+                header = h.toArray(new String[0]);
+            }
+        }
+
+        /**
+         * Return the next job, or null at the end of the file.
+         */
+        public Map<String, Object> next() throws IOException {
+            if (json) {
+                String s;
+                do {
+                    s = in.readLine();
+                    line++;
+                    if (s == null)
+                        return null;
+                } while (s.trim().isEmpty());
+                try {
+                    return Json.parseObject(s);
+                } catch (IOException e) {
+                    throw new IOException("Line " + line + ": "
+                            + e.getMessage());
+                }
+            }
+            ArrayList<String> fields = readRecord();
+            if (fields == null)
+                return null;
+            HashMap<String, Object> job = new HashMap<>();
+            for (int i = 0; i < header.length && i < fields.size(); i++)
+                job.put(header[i].trim(), fields.get(i));
+            return job;
+        }
+
+        /**
+         * Read one CSV record, or return null at the end of the file.
+         */
+        private ArrayList<String> readRecord() throws IOException {
+            int c = in.read();
+            while (c == '\r' || c == '\n')
+                c = in.read(); // skip blank lines
+            if (c < 0)
+                return null;
+            ArrayList<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0)
+                        throw new IOException("Unterminated quote in job file");
+                    if (c == '"') {
+                        c = in.read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.append((char) c);
+                } else if (c == '"' && field.length() == 0)
+                    quoted = true;
+                else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c < 0 || c == '\n' || c == '\r') {
+                    fields.add(field.toString());
+                    return fields;
+                } else
+                    field.append((char) c);
+                c = in.read();
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
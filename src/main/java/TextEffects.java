@@ -0,0 +1,176 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Static methods for making soft shadows and outlines of a shape, such as the
+ * outline of some text. The shape is rasterized once into an alpha mask,
+ * which is blurred by repeated box blurs computed directly on an int array.
+ * Each pass of the box blur uses a running sum, so its cost per pixel does not
+ * depend on the radius; three passes give a good approximation of a Gaussian
+ * blur. For large masks, the rows (and then the columns) are blurred in
+ * parallel.
+ */
+public class TextEffects {
+
+    /**
+     * Masks with more pixels than this are blurred in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 128 * 128;
+
+    private static final int PASSES = 3;
+
+    /**
+     * An image that is to be drawn with its upper left corner at (x,y),
+     * relative to the point at which the shape's coordinates are measured.
+     */
+    public static class Effect {
+        public final BufferedImage IMAGE;
+        public final int X;
+        public final int Y;
+
+        Effect(BufferedImage image, int x, int y) {
+            IMAGE = image;
+            X = x;
+            Y = y;
+        }
+    }
+
+    /**
+     * Make a soft shadow of shape.
+     *
+     * @param radius  the radius of the blur, in pixels.
+     * @param offsetX the horizontal offset of the shadow from the shape.
+     * @param offsetY the vertical offset of the shadow from the shape.
+     * @param color   the color of the shadow; its alpha is used too.
+     */
+    public static Effect shadow(Shape shape, boolean antialias, int radius,
+                                int offsetX, int offsetY, Color color) {
+        Rectangle r = paddedBounds(shape, radius);
+        int[] alpha = rasterize(shape, antialias, r);
+        blur(alpha, r.width, r.height, radius);
+        return new Effect(colorize(alpha, r.width, r.height, color, 1),
+                r.x + offsetX, r.y + offsetY);
+    }
+
+    /**
+     * Make an outline around shape, by blurring it slightly and then
+     * strengthening the result so that it becomes nearly opaque close to the
+     * shape.
+     *
+     * @param width the approximate width of the outline, in pixels.
+     * @param color the color of the outline.
+     */
+    public static Effect outline(Shape shape, boolean antialias, int width,
+                                 Color color) {
+        Rectangle r = paddedBounds(shape, width);
+        int[] alpha = rasterize(shape, antialias, r);
+        blur(alpha, r.width, r.height, width);
+        return new Effect(colorize(alpha, r.width, r.height, color, 4), r.x,
+                r.y);
+    }
+
+    /**
+     * Blur an array of alpha values (0 to 255), in place.
+     *
+     * @param alpha  the values, row by row.
+     * @param width  the number of values in a row.
+     * @param height the number of rows.
+     * @param radius the radius of the blur.
+     */
+    public static void blur(int[] alpha, int width, int height, int radius) {
+        if (radius < 1)
+            return;
+        // Each pass has radius r/sqrt(passes), so the total spread matches
+        // a single box of the requested radius.
+        int r = Math.max(1, (int) Math.round(radius / Math.sqrt(PASSES)));
+        boolean parallel = width * height > PARALLEL_THRESHOLD;
+        for (int pass = 0; pass < PASSES; pass++) {
+            IntStream rows = IntStream.range(0, height);
+            (parallel ? rows.parallel() : rows).forEach(y -> {
+                int[] line = new int[width];
+                boxBlur(alpha, y * width, 1, width, r, line);
+            });
+            IntStream cols = IntStream.range(0, width);
+            (parallel ? cols.parallel() : cols).forEach(x -> {
+                int[] line = new int[height];
+                boxBlur(alpha, x, width, height, r, line);
+            });
+        }
+    }
+
+    /**
+     * Box blur the n values of data that start at offset and are stride
+     * apart, using a running sum. Values beyond the ends count as zero.
+     */
+    private static void boxBlur(int[] data, int offset, int stride, int n,
+                                int r, int[] line) {
+        for (int i = 0; i < n; i++)
+            line[i] = data[offset + i * stride];
+        int size = 2 * r + 1;
+        int sum = 0;
+        for (int i = 0; i < r && i < n; i++)
+            sum += line[i];
+        for (int i = 0; i < n; i++) {
+            if (i + r < n)
+                sum += line[i + r];
+            if (i - r - 1 >= 0)
+                sum -= line[i - r - 1];
+            data[offset + i * stride] = sum / size;
+        }
+    }
+
+    private static Rectangle paddedBounds(Shape shape, int radius) {
+        Rectangle r = shape.getBounds();
+        int pad = 2 * radius + 2;
+        r.grow(pad, pad);
+        return r;
+    }
+
+    /**
+     * Fill shape, translated so that bounds starts at (0,0), and return the
+     * alpha value of each pixel.
+     */
+    private static int[] rasterize(Shape shape, boolean antialias,
+                                   Rectangle bounds) {
+        BufferedImage mask = new BufferedImage(bounds.width, bounds.height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = mask.createGraphics();
+        if (antialias)
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+        g.translate(-bounds.x, -bounds.y);
+        g.setColor(Color.WHITE);
+        g.fill(shape);
+        g.dispose();
+        int[] pixels = ((DataBufferInt) mask.getRaster().getDataBuffer())
+                .getData();
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] >>>= 24;
+        return pixels;
+    }
+
+    /**
+     * Make an image in the given color whose alpha at each pixel is the mask
+     * value multiplied by gain and by the alpha of the color.
+     */
+    private static BufferedImage colorize(int[] alpha, int width, int height,
+                                          Color color, int gain) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData();
+        int rgb = color.getRGB() & 0xFFFFFF;
+        int colorAlpha = color.getAlpha();
+        for (int i = 0; i < pixels.length; i++) {
+            int a = Math.min(255, alpha[i] * gain) * colorAlpha / 255;
+            pixels[i] = (a << 24) | rgb;
+        }
+        return image;
+    }
+}
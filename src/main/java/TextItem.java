@@ -1,11 +1,14 @@
 import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 /**
  * Represents a multiline text, with various properties that can be set. A
  * draw() method is included that will draw the text in a graphics context,
- * centered at a specified point.
+ * centered at a specified point. The text can have a soft drop shadow and an
+ * outline; these are made by TextEffects and cached until the text changes.
  */
 public class TextItem {
 
@@ -23,12 +26,44 @@ public class TextItem {
     private String fontName = "Serif";
     private int justify = LEFT;
 
+    private boolean shadow;
+    private boolean outline;
+
     private String[] lines = {"Hello", "World"}; // same as text, but broken
 // into individual lines.
 
+    private Font font; // from the FontRegistry; null when a property changes
+    private TextEffects.Effect shadowEffect; // cached effects, or null
+    private TextEffects.Effect outlineEffect;
+    private FontRenderContext effectsFrc;
+    private boolean effectsAntialias;
+
     public void draw(Graphics2D g, int centerX, int centerY) {
         Color saveColor = g.getColor();
         Font saveFont = g.getFont();
+        Font font = getFont();
+        g.setFont(font);
+        FontRegistry.Metrics fm = FontRegistry.getShared().getMetrics(g, font);
+        int[] xs = new int[lines.length];
+        int[] ys = new int[lines.length];
+        layout(fm, xs, ys);
+        if (shadow || outline)
+            drawEffects(g, font, xs, ys, centerX, centerY);
+        if (color != null)
+            g.setColor(color);
+        for (int i = 0; i < lines.length; i++)
+            g.drawString(lines[i], centerX + xs[i], centerY + ys[i]);
+        g.setColor(saveColor);
+        g.setFont(saveFont);
+    }
+
+    /**
+     * Return the font in which the text is drawn. Fonts are shared through
+     * the FontRegistry.
+     */
+    public Font getFont() {
+        if (font != null)
+            return font;
         int style;
         if (italic && bold)
             style = Font.BOLD | Font.ITALIC;
@@ -38,14 +73,41 @@ public class TextItem {
             style = Font.BOLD;
         else
             style = Font.PLAIN;
-        Font font = new Font(fontName, style, fontSize);
-        g.setFont(font);
-        FontMetrics fm = g.getFontMetrics(font);
-        double lineHeight = fm.getHeight() * lineHeightMultiplier;
+        font = FontRegistry.getShared().getFont(fontName, style, fontSize);
+        return font;
+    }
+
+    /**
+     * Return the lines of the text, in the order in which they are drawn.
+     */
+    public String[] getLines() {
+        return lines.clone();
+    }
+
+    /**
+     * Return the point at which the baseline of each line starts when the
+     * text is drawn with g, centered at (centerX,centerY).
+     */
+    public Point[] getBaselines(Graphics2D g, int centerX, int centerY) {
+        FontRegistry.Metrics fm = FontRegistry.getShared().getMetrics(g,
+                getFont());
+        int[] xs = new int[lines.length];
+        int[] ys = new int[lines.length];
+        layout(fm, xs, ys);
+        Point[] points = new Point[lines.length];
+        for (int i = 0; i < lines.length; i++)
+            points[i] = new Point(centerX + xs[i], centerY + ys[i]);
+        return points;
+    }
+
+    /**
+     * Compute the position of the baseline of each line, relative to the
+     * point at which the text is centered.
+     */
+    private void layout(FontRegistry.Metrics fm, int[] xs, int[] ys) {
+        double lineHeight = fm.HEIGHT * lineHeightMultiplier;
         int totalHeight = (int) (lineHeight * (lines.length - 1))
-                + fm.getAscent() + fm.getDescent();
-        if (color != null)
-            g.setColor(color);
+                + fm.ASCENT + fm.DESCENT;
         int[] widths = new int[lines.length];
         int totalWidth = 0;
         for (int i = 0; i < lines.length; i++) {
@@ -54,19 +116,78 @@ public class TextItem {
                 totalWidth = widths[i];
         }
         for (int i = 0; i < lines.length; i++) {
-            int x;
             if (justify == CENTER)
-                x = centerX - widths[i] / 2;
+                xs[i] = -widths[i] / 2;
             else if (justify == LEFT)
-                x = centerX - totalWidth / 2;
+                xs[i] = -totalWidth / 2;
             else
-                x = centerX + totalWidth / 2 - fm.stringWidth(lines[i]);
-            int y = centerY - totalHeight / 2 + fm.getAscent()
-                    + (int) (i * lineHeight);
-            g.drawString(lines[i], x, y);
+                xs[i] = totalWidth / 2 - widths[i];
+            ys[i] = -totalHeight / 2 + fm.ASCENT + (int) (i * lineHeight);
         }
-        g.setColor(saveColor);
-        g.setFont(saveFont);
+    }
+
+    /**
+     * Draw the shadow and/or outline of the text. The effect images are
+     * computed once and reused until a property of the text changes or the
+     * text is drawn in a graphics context with different antialiasing.
+     */
+    private void drawEffects(Graphics2D g, Font font, int[] xs, int[] ys,
+                             int centerX, int centerY) {
+        FontRenderContext frc = g.getFontRenderContext();
+        boolean antialias = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING)
+                == RenderingHints.VALUE_ANTIALIAS_ON;
+        if (effectsFrc == null || !effectsFrc.equals(frc)
+                || effectsAntialias != antialias) {
+            effectsFrc = frc;
+            effectsAntialias = antialias;
+            shadowEffect = null;
+            outlineEffect = null;
+        }
+        if ((shadow && shadowEffect == null)
+                || (outline && outlineEffect == null)) {
+            Path2D.Float shape = new Path2D.Float();
+            for (int i = 0; i < lines.length; i++)
+                shape.append(font.createGlyphVector(frc, lines[i])
+                        .getOutline(xs[i], ys[i]), false);
+            int spread = getEffectSpread();
+            if (shadow && shadowEffect == null)
+                shadowEffect = TextEffects.shadow(shape, antialias, 2 * spread,
+                        spread, spread, new Color(0, 0, 0, 160));
+            if (outline && outlineEffect == null)
+                outlineEffect = TextEffects.outline(shape, antialias, spread,
+                        getOutlineColor());
+        }
+        if (shadow)
+            g.drawImage(shadowEffect.IMAGE, centerX + shadowEffect.X,
+                    centerY + shadowEffect.Y, null);
+        if (outline)
+            g.drawImage(outlineEffect.IMAGE, centerX + outlineEffect.X,
+                    centerY + outlineEffect.Y, null);
+    }
+
+    /**
+     * Return the size of the shadow and outline, in pixels. The shadow is
+     * blurred with twice this radius and offset by this amount down and to
+     * the right; the outline is about this wide.
+     */
+    public int getEffectSpread() {
+        return Math.max(1, fontSize / 12);
+    }
+
+    /**
+     * Return a color that contrasts with the text color, for use as the color
+     * of the outline.
+     */
+    public Color getOutlineColor() {
+        Color c = color == null ? Color.BLACK : color;
+        int luma = (c.getRed() * 299 + c.getGreen() * 587 + c.getBlue() * 114)
+                / 1000;
+        return luma < 128 ? Color.WHITE : Color.BLACK;
+    }
+
+    private void invalidateEffects() {
+        shadowEffect = null;
+        outlineEffect = null;
     }
 
     public String getText() {
@@ -89,6 +210,7 @@ public class TextItem {
         for (int i = 0; i < lines.length; i++)
             lines[i] = s.get(i);
         text = newText;
+        invalidateEffects();
     }
 
     public Color getColor() {
@@ -97,6 +219,7 @@ public class TextItem {
 
     public void setColor(Color color) {
         this.color = color;
+        invalidateEffects();
     }
 
     public double getLineHeightMultiplier() {
@@ -108,14 +231,27 @@ public class TextItem {
             throw new IllegalArgumentException(
                     "Line height multiplier cannot be negative.");
         this.lineHeightMultiplier = lineHeightMultiplier;
+        invalidateEffects();
+    }
+
+    public boolean isBold() {
+        return bold;
     }
 
     public void setBold(boolean bold) {
         this.bold = bold;
+        font = null;
+        invalidateEffects();
+    }
+
+    public boolean isItalic() {
+        return italic;
     }
 
     public void setItalic(boolean italic) {
         this.italic = italic;
+        font = null;
+        invalidateEffects();
     }
 
     public int getFontSize() {
@@ -126,10 +262,22 @@ public class TextItem {
         if (fontSize <= 0)
             throw new IllegalArgumentException("Font size must be positive.");
         this.fontSize = fontSize;
+        font = null;
+        invalidateEffects();
+    }
+
+    public String getFontName() {
+        return fontName;
     }
 
     public void setFontName(String fontName) {
         this.fontName = fontName;
+        font = null;
+        invalidateEffects();
+    }
+
+    public int getJustify() {
+        return justify;
     }
 
     public void setJustify(int justify) {
@@ -137,5 +285,22 @@ public class TextItem {
             throw new IllegalArgumentException(
                     "Justify can only be CENTER, LEFT, or RIGHT");
         this.justify = justify;
+        invalidateEffects();
+    }
+
+    public boolean hasShadow() {
+        return shadow;
+    }
+
+    public void setShadow(boolean shadow) {
+        this.shadow = shadow;
+    }
+
+    public boolean hasOutline() {
+        return outline;
+    }
+
+    public void setOutline(boolean outline) {
+        this.outline = outline;
     }
-}
\ No newline at end of file
+}
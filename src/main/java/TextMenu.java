@@ -11,9 +11,13 @@ public class TextMenu extends JMenu
     private final DrawPanel panel;
     private final JCheckBoxMenuItem bold;
     private final JCheckBoxMenuItem italic;
+    private final JCheckBoxMenuItem shadow;
+    private final JCheckBoxMenuItem outline;
 // not.
 
     private JRadioButtonMenuItem left;
+    private JRadioButtonMenuItem right;
+    private JRadioButtonMenuItem center;
 
     /**
      * Constructor creates all the menu commands and adds them to the menu.
@@ -32,7 +36,7 @@ public class TextMenu extends JMenu
             if (newText != null && newText.trim().length() > 0)
             {
                 panel.getTextItem().setText(newText);
-                panel.repaint();
+                panel.textChanged();
             }
         });
         final JMenuItem size = new JMenuItem("Set Size...");
@@ -48,7 +52,7 @@ public class TextMenu extends JMenu
 // NumberFormatException
                     panel.getTextItem().setFontSize(newSize); // can throw
 // IllegalArgumentException
-                    panel.repaint();
+                    panel.textChanged();
                 }
                 catch (Exception e)
                 {
@@ -78,7 +82,7 @@ public class TextMenu extends JMenu
                             .setLineHeightMultiplier(newLineSpace); // can
 // throw
 // IllegalArgumentException
-                    panel.repaint();
+                    panel.textChanged();
                 }
                 catch (Exception e)
                 {
@@ -98,7 +102,7 @@ public class TextMenu extends JMenu
             if (newColor != null)
             {
                 panel.getTextItem().setColor(newColor);
-                panel.repaint();
+                panel.textChanged();
             }
         });
 
@@ -106,12 +110,22 @@ public class TextMenu extends JMenu
         italic = new JCheckBoxMenuItem("Italic");
         italic.addActionListener(evt -> {
             panel.getTextItem().setItalic(italic.isSelected());
-            panel.repaint();
+            panel.textChanged();
         });
         bold = new JCheckBoxMenuItem("Bold");
         bold.addActionListener(evt -> {
             panel.getTextItem().setBold(bold.isSelected());
-            panel.repaint();
+            panel.textChanged();
+        });
+        shadow = new JCheckBoxMenuItem("Drop Shadow");
+        shadow.addActionListener(evt -> {
+            panel.getTextItem().setShadow(shadow.isSelected());
+            panel.textChanged();
+        });
+        outline = new JCheckBoxMenuItem("Outline");
+        outline.addActionListener(evt -> {
+            panel.getTextItem().setOutline(outline.isSelected());
+            panel.textChanged();
         });
 
 
@@ -122,6 +136,8 @@ public class TextMenu extends JMenu
         add(color);
         add(italic);
         add(bold);
+        add(shadow);
+        add(outline);
         add(makeJustifyMenu());
         addSeparator();
         add(makeFontNameSubmenu());
@@ -135,8 +151,8 @@ public class TextMenu extends JMenu
         left = new JRadioButtonMenuItem("Left");
         left.setSelected(true);
 
-        JRadioButtonMenuItem right = new JRadioButtonMenuItem("Right");
-        JRadioButtonMenuItem center = new JRadioButtonMenuItem("Center");
+        right = new JRadioButtonMenuItem("Right");
+        center = new JRadioButtonMenuItem("Center");
 
         ButtonGroup bg = new ButtonGroup();
         bg.add(left);
@@ -149,15 +165,15 @@ public class TextMenu extends JMenu
 
         left.addActionListener(evt -> {
             panel.getTextItem().setJustify(TextItem.LEFT);
-            panel.repaint();
+            panel.textChanged();
         });
         right.addActionListener(evt -> {
             panel.getTextItem().setJustify(TextItem.RIGHT);
-            panel.repaint();
+            panel.textChanged();
         });
         center.addActionListener(evt -> {
             panel.getTextItem().setJustify(TextItem.CENTER);
-            panel.repaint();
+            panel.textChanged();
         });
 
         return justify;
@@ -165,20 +181,42 @@ public class TextMenu extends JMenu
 
     /**
      * Reset the state of the menu to reflect the default settings for text in a
-     * DrawPanel. (Sets the italic and bold checkboxes to unselected.) This
-     * method is called by the main program when the user selects the "New"
-     * command, to make sure that the menu state reflects the contents of the
-     * panel.
+     * DrawPanel. (Sets the italic, bold, shadow and outline checkboxes to
+     * unselected.) This method is called by the main program when the user
+     * selects the "New" command, to make sure that the menu state reflects the
+     * contents of the panel.
      */
     public void setDefaults()
     {
         italic.setSelected(false);
         bold.setSelected(false);
+        shadow.setSelected(false);
+        outline.setSelected(false);
 
 // set the left JRadioButtonMenuItem item to default value true.
         left.setSelected(true);
     }
 
+    /**
+     * Set the state of the menu to reflect the current settings of the text
+     * in the DrawPanel, for example after the panel has been restored from a
+     * journal.
+     */
+    public void syncWithText()
+    {
+        TextItem text = panel.getTextItem();
+        italic.setSelected(text.isItalic());
+        bold.setSelected(text.isBold());
+        shadow.setSelected(text.hasShadow());
+        outline.setSelected(text.hasOutline());
+        if (text.getJustify() == TextItem.RIGHT)
+            right.setSelected(true);
+        else if (text.getJustify() == TextItem.CENTER)
+            center.setSelected(true);
+        else
+            left.setSelected(true);
+    }
+
     /**
      * Create a menu containing a list of all available fonts. (It turns out
      * this can be very messy, at least on Linux, but it does show the use what
@@ -188,7 +226,7 @@ public class TextMenu extends JMenu
     {
         ActionListener setFontAction = evt -> {
             panel.getTextItem().setFontName(evt.getActionCommand());
-            panel.repaint();
+            panel.textChanged();
         };
         JMenu menu = new JMenu("Font Name");
         String[] basic = { "Serif", "SansSerif", "Monospace" };
@@ -197,19 +235,18 @@ public class TextMenu extends JMenu
             JMenuItem m = new JMenuItem(f + " Default");
             m.setActionCommand(f);
             m.addActionListener(setFontAction);
-            m.setFont(new Font(f, Font.PLAIN, 12));
+            m.setFont(FontRegistry.getShared().getFont(f, Font.PLAIN, 12));
             menu.add(m);
         }
         menu.addSeparator();
-        String[] fonts = GraphicsEnvironment.getLocalGraphicsEnvironment()
-                .getAvailableFontFamilyNames();
+        String[] fonts = StartupCache.getShared().getFontFamilies();
         if (fonts.length <= 20)
         {
             for (String f : fonts)
             {
                 JMenuItem m = new JMenuItem(f);
                 m.addActionListener(setFontAction);
-                m.setFont(new Font(f, Font.PLAIN, 12));
+                m.setFont(FontRegistry.getShared().getFont(f, Font.PLAIN, 12));
                 menu.add(m);
             }
         }
@@ -228,7 +265,8 @@ public class TextMenu extends JMenu
                 {
                     JMenuItem item = new JMenuItem(fonts[i]);
                     item.addActionListener(setFontAction);
-                    item.setFont(new Font(fonts[i], Font.PLAIN, 12));
+                    item.setFont(FontRegistry.getShared().getFont(fonts[i],
+                            Font.PLAIN, 12));
                     m.add(item);
                     i++;
                 }
@@ -0,0 +1,321 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * Makes small preview images of image files and keeps them in a directory on
+ * disk, so that a thumbnail only has to be made once. Thumbnails are keyed by
+ * a hash of the file's modification time, its length and its first and last
+ * 64 KB, so a cached thumbnail is found again if the file is renamed or
+ * moved, and is not used once the file has been changed. The directory is
+ * kept below MAX_DISK_BYTES by deleting the thumbnails that were least
+ * recently used. Large images are decoded with
+ * subsampling, which reads only every n-th pixel and is far faster than
+ * decoding the full image. A few recent thumbnails are also kept in memory;
+ * the shared cache gives them up first when the MemoryGovernor needs room.
+ */
+public class ThumbnailCache {
+
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final int MEMORY_ENTRIES = 256;
+
+    /**
+     * The most space that the thumbnails on disk may take.
+     */
+    public static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+
+    private static ThumbnailCache shared;
+
+    private final File directory;
+    private final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "ThumbnailCache worker");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+    private final LinkedHashMap<String, BufferedImage> recent = new LinkedHashMap<>(
+            64, 0.75f, true);
+    private long recentBytes;
+    private long diskBytes = -1; // not yet counted
+
+    /**
+     * Create a cache that keeps its thumbnails in the given directory.
+     */
+    public ThumbnailCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /**
+     * Return the cache that is kept in the "thumbnails" subdirectory of the
+     * program's data directory.
+     */
+    public static synchronized ThumbnailCache getShared() {
+        if (shared == null) {
+            ThumbnailCache cache = new ThumbnailCache(new File(
+                    Util.getAppDataDirectory(), "thumbnails"));
+            MemoryGovernor.getShared().register("thumbnails",
+                    MemoryGovernor.PRIORITY_DISPOSABLE, new MemoryGovernor.Tracker() {
+                        public long getBytes() {
+                            synchronized (cache.recent) {
+                                return cache.recentBytes;
+                            }
+                        }
+
+                        public long reclaim(long bytes) {
+                            return cache.evict(bytes);
+                        }
+                    });
+            shared = cache;
+        }
+        return shared;
+    }
+
+    /**
+     * Make or look up a thumbnail of file on a background thread, then pass
+     * it to callback on the Event Dispatch Thread. The callback gets null if
+     * the file is not a readable image.
+     */
+    public void requestThumbnail(File file, int maxSize,
+                                 Consumer<BufferedImage> callback) {
+        workers.execute(() -> {
+            BufferedImage thumb;
+            try {
+                thumb = getThumbnail(file, maxSize);
+            } catch (IOException e) {
+                thumb = null;
+            }
+            final BufferedImage result = thumb;
+            SwingUtilities.invokeLater(() -> callback.accept(result));
+        });
+    }
+
+    /**
+     * Return a thumbnail of file that is no more than maxSize pixels wide or
+     * high, making it and storing it in the cache if necessary.
+     *
+     * @return the thumbnail, or null if the file is not a readable image.
+     */
+    public BufferedImage getThumbnail(File file, int maxSize)
+            throws IOException {
+        if (!file.isFile())
+            return null;
+        String key = contentKey(file) + "-" + maxSize;
+        synchronized (recent) {
+            BufferedImage thumb = recent.get(key);
+            if (thumb != null)
+                return thumb;
+        }
+        File cached = new File(directory, key + ".png");
+        BufferedImage thumb = null;
+        if (cached.exists()) {
+            try {
+                thumb = ImageIO.read(cached);
+                cached.setLastModified(System.currentTimeMillis());
+            } catch (IOException ignored) { // damaged; make it again
+            }
+        }
+        if (thumb == null) {
+            thumb = decodeSubsampled(file, maxSize);
+            if (thumb == null)
+                return null;
+            File tmp = new File(directory, key + ".tmp");
+            if (ImageIO.write(thumb, "PNG", tmp)) {
+                if (tmp.renameTo(cached))
+                    stored(cached.length());
+                else
+                    tmp.delete();
+            }
+        }
+        synchronized (recent) {
+            BufferedImage old = recent.put(key, thumb);
+            if (old != null)
+                recentBytes -= MemoryGovernor.sizeOf(old);
+            recentBytes += MemoryGovernor.sizeOf(thumb);
+            Iterator<Map.Entry<String, BufferedImage>> it = recent.entrySet()
+                    .iterator();
+            while (recent.size() > MEMORY_ENTRIES && it.hasNext()) {
+                recentBytes -= MemoryGovernor.sizeOf(it.next().getValue());
+                it.remove();
+            }
+        }
+        if (this == shared)
+            MemoryGovernor.getShared().check();
+        return thumb;
+    }
+
+    /**
+     * Count a thumbnail of the given size that has been written to disk, and
+     * if the directory has grown past MAX_DISK_BYTES, delete the least
+     * recently used thumbnails until it is back to three quarters of that.
+     * The directory is only listed the first time, and when it is too big.
+     */
+    private synchronized void stored(long bytes) {
+        File[] files = null;
+        if (diskBytes < 0) {
+            files = directory.listFiles();
+            diskBytes = 0;
+            if (files != null)
+                for (File f : files)
+                    diskBytes += f.length();
+        } else {
+            diskBytes += bytes;
+        }
+        if (diskBytes <= MAX_DISK_BYTES)
+            return;
+        if (files == null)
+            files = directory.listFiles();
+        if (files == null)
+            return;
+        long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+        for (Integer i : order) {
+            if (diskBytes <= MAX_DISK_BYTES * 3 / 4)
+                break;
+            long length = files[i].length();
+            if (files[i].delete())
+                diskBytes -= length;
+        }
+    }
+
+    /**
+     * Remove least recently used thumbnails from memory until at least the
+     * given number of bytes has been freed, or none are left.
+     *
+     * @return the number of bytes freed.
+     */
+    private long evict(long wanted) {
+        long freed = 0;
+        synchronized (recent) {
+            Iterator<BufferedImage> it = recent.values().iterator();
+            while (freed < wanted && it.hasNext()) {
+                freed += MemoryGovernor.sizeOf(it.next());
+                it.remove();
+            }
+            recentBytes -= freed;
+        }
+        return freed;
+    }
+
+    /**
+     * Remove the thumbnails that are held in memory (but not the ones on
+     * disk).
+     */
+    public void clearMemory() {
+        synchronized (recent) {
+            recent.clear();
+            recentBytes = 0;
+        }
+    }
+
+    /**
+     * Decode an image file at reduced resolution, so that the result is no
+     * more than maxSize pixels wide or high. The decoder skips pixels, so
+     * that it does not have to build the full-size image first.
+     *
+     * @return the reduced image, or null if the file is not a readable image.
+     */
+    public static BufferedImage decodeSubsampled(File file, int maxSize)
+            throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null)
+                return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                // Decode at about twice the final size, then scale smoothly.
+                int step = Math.max(1, Math.max(w, h) / (2 * maxSize));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                return fit(image, maxSize);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scale image down, if necessary, so that it is no more than maxSize
+     * pixels wide or high.
+     */
+    public static BufferedImage fit(BufferedImage image, int maxSize) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double scale = Math.min(1, (double) maxSize / Math.max(w, h));
+        int tw = Math.max(1, (int) Math.round(w * scale));
+        int th = Math.max(1, (int) Math.round(h * scale));
+        BufferedImage thumb = new BufferedImage(tw, th,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, tw, th, null);
+        g.dispose();
+        return thumb;
+    }
+
+    /**
+     * Return a hex string that identifies the contents of file, computed from
+     * its modification time, its length and its first and last SAMPLE_BYTES
+     * bytes. The time catches changes in the middle of the file, which the
+     * samples miss.
+     */
+    static String contentKey(File file) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long modified = file.lastModified();
+            for (int i = 0; i < 8; i++) {
+                sha.update((byte) (length >>> (8 * i)));
+                sha.update((byte) (modified >>> (8 * i)));
+            }
+            byte[] buf = new byte[(int) Math.min(SAMPLE_BYTES, length)];
+            raf.readFully(buf);
+            sha.update(buf);
+            if (length > SAMPLE_BYTES) {
+                raf.seek(Math.max(SAMPLE_BYTES, length - SAMPLE_BYTES));
+                buf = new byte[(int) (length - raf.getFilePointer())];
+                raf.readFully(buf);
+                sha.update(buf);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
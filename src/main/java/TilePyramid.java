@@ -0,0 +1,294 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Draws a picture on the screen through a Viewport, from square tiles that
+ * are rendered only when they are first needed. Tiles are kept for each zoom
+ * level, where level L holds the picture rendered at scale 2^L; the viewport
+ * is drawn from the level at or just above its zoom, scaled down slightly. So
+ * panning renders only the tiles that come into view, and returning to a
+ * zoom that was shown before costs nothing.
+ * <p>
+ * Only a limited time is spent rendering in each paint. Tiles that are not
+ * ready are drawn from a coarser level if one has them, or are left empty,
+ * and paint() reports that the panel should be painted again; the picture
+ * sharpens over a few frames. Tiles are dropped in least recently used
+ * order when there are more than twice as many as can cover the panel (and
+ * at least MIN_TILES), or when the MemoryGovernor needs room, but never the
+ * tiles of the most recent frame. When part of the picture changes, the
+ * tiles that cover it are dropped at every level. A pyramid that is no
+ * longer used should be given to dispose().
+ */
+public class TilePyramid {
+
+    /**
+     * The width and height of a tile, in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The number of tiles that are kept however small the panel is.
+     */
+    public static final int MIN_TILES = 192;
+
+    public static final int MIN_LEVEL = -4;
+    public static final int MAX_LEVEL = 4;
+
+    /**
+     * The time after which a paint stops rendering tiles. At least one tile
+     * is rendered in each paint.
+     */
+    private static final long RENDER_NANOS = 25_000_000;
+
+    /**
+     * Draws the whole picture, at its actual size, with g. The transform and
+     * clip of g select the part that is needed.
+     */
+    public interface Renderer {
+        void render(Graphics2D g, BufferedImage target);
+    }
+
+    private final Renderer renderer;
+    private final LinkedHashMap<Long, BufferedImage> tiles =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private final HashSet<Long> frame = new HashSet<>(); // tiles last drawn
+    private int maxTiles = MIN_TILES;
+    private final MemoryGovernor.Tracker tracker =
+            new MemoryGovernor.Tracker() {
+                public long getBytes() {
+                    synchronized (tiles) {
+                        return 4L * TILE_SIZE * TILE_SIZE * tiles.size();
+                    }
+                }
+
+                public long reclaim(long bytes) {
+                    return evict(bytes);
+                }
+            };
+
+    /**
+     * Create an empty pyramid that renders tiles with renderer. Its tiles
+     * are counted by the shared MemoryGovernor.
+     */
+    public TilePyramid(Renderer renderer) {
+        this.renderer = renderer;
+        MemoryGovernor.getShared().register("view tiles",
+                MemoryGovernor.PRIORITY_DISPOSABLE, tracker);
+    }
+
+    /**
+     * Drop every tile and stop being counted by the MemoryGovernor, which
+     * otherwise keeps the pyramid, and so its renderer, reachable.
+     */
+    public void dispose() {
+        MemoryGovernor.getShared().unregister(tracker);
+        invalidate();
+    }
+
+    /**
+     * Return the level whose tiles are used to show the picture at zoom.
+     */
+    public static int levelFor(double zoom) {
+        int level = (int) Math.ceil(Math.log(zoom) / Math.log(2) - 1e-9);
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * Paint the part of a picture of the given size that the viewport shows
+     * in a panel of the given size. The area outside of the picture is not
+     * painted.
+     *
+     * @return true if every tile was drawn at the right level; if false, the
+     * panel should be painted again to finish.
+     */
+    public boolean paint(Graphics2D g, Viewport view, int panelWidth,
+                         int panelHeight, int pictureWidth, int pictureHeight) {
+        double zoom = view.getZoom();
+        int level = levelFor(zoom);
+        double levelScale = Math.pow(2, level);
+        double span = TILE_SIZE / levelScale; // picture units per tile
+        int tx0 = (int) Math.floor(Math.max(0, view.toPictureX(0)) / span);
+        int ty0 = (int) Math.floor(Math.max(0, view.toPictureY(0)) / span);
+        int tx1 = (int) Math.ceil(Math.min(pictureWidth,
+                view.toPictureX(panelWidth)) / span);
+        int ty1 = (int) Math.ceil(Math.min(pictureHeight,
+                view.toPictureY(panelHeight)) / span);
+
+        Shape saveClip = g.getClip();
+        int left = (int) Math.round(view.toPanelX(0));
+        int top = (int) Math.round(view.toPanelY(0));
+        g.clipRect(left, top, (int) Math.round(view.toPanelX(pictureWidth)) - left,
+                (int) Math.round(view.toPanelY(pictureHeight)) - top);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        // A tile covers at least TILE_SIZE / 2 pixels of the panel.
+        int across = (panelWidth + TILE_SIZE / 2 - 1) / (TILE_SIZE / 2) + 1;
+        int down = (panelHeight + TILE_SIZE / 2 - 1) / (TILE_SIZE / 2) + 1;
+        synchronized (tiles) {
+            maxTiles = Math.max(MIN_TILES, 2 * across * down);
+            frame.clear();
+        }
+        long deadline = System.nanoTime() + RENDER_NANOS;
+        boolean complete = true;
+        for (int ty = ty0; ty < ty1; ty++) {
+            for (int tx = tx0; tx < tx1; tx++) {
+                int x0 = (int) Math.round(view.toPanelX(tx * span));
+                int y0 = (int) Math.round(view.toPanelY(ty * span));
+                int x1 = (int) Math.round(view.toPanelX((tx + 1) * span));
+                int y1 = (int) Math.round(view.toPanelY((ty + 1) * span));
+                BufferedImage tile = get(level, tx, ty);
+                if (tile == null && System.nanoTime() < deadline)
+                    tile = render(level, tx, ty);
+                if (tile != null) {
+                    g.drawImage(tile, x0, y0, x1 - x0, y1 - y0, null);
+                } else {
+                    drawCoarser(g, level, tx, ty, x0, y0, x1, y1);
+                    complete = false;
+                }
+            }
+        }
+        g.setClip(saveClip);
+        if (tx1 > tx0 && ty1 > ty0)
+            MemoryGovernor.getShared().check();
+        return complete;
+    }
+
+    /**
+     * Drop every tile, for example when the whole picture has changed.
+     */
+    public void invalidate() {
+        synchronized (tiles) {
+            tiles.clear();
+            frame.clear();
+        }
+    }
+
+    /**
+     * Drop the tiles, at every level, that show any part of the given area
+     * of the picture.
+     */
+    public void invalidate(Rectangle area) {
+        synchronized (tiles) {
+            Iterator<Long> it = tiles.keySet().iterator();
+            while (it.hasNext()) {
+                long key = it.next();
+                int level = (int) (key >> 56);
+                double span = TILE_SIZE / Math.pow(2, level);
+                int tx = (int) (key >> 28) & 0xFFFFFFF;
+                int ty = (int) key & 0xFFFFFFF;
+                if (area.intersects(tx * span, ty * span, span, span)) {
+                    it.remove();
+                    frame.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the tile of a coarser level that covers tile (tx,ty) of level,
+     * and draw the part of it that lies in the panel rectangle from (x0,y0)
+     * to (x1,y1).
+     *
+     * @return false if no coarser level has the tile.
+     */
+    private boolean drawCoarser(Graphics2D g, int level, int tx, int ty,
+                                int x0, int y0, int x1, int y1) {
+        for (int up = 1; level - up >= MIN_LEVEL; up++) {
+            BufferedImage coarse = get(level - up, tx >> up, ty >> up);
+            if (coarse == null)
+                continue;
+            int part = TILE_SIZE >> up; // size of this tile in the coarse one
+            if (part == 0)
+                return false;
+            int sx = (tx - ((tx >> up) << up)) * part;
+            int sy = (ty - ((ty >> up) << up)) * part;
+            g.drawImage(coarse, x0, y0, x1, y1, sx, sy, sx + part, sy + part,
+                    null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return tile (tx,ty) of a level, or null if it is not kept. A tile that
+     * is found is kept at least until the next paint.
+     */
+    private BufferedImage get(int level, int tx, int ty) {
+        synchronized (tiles) {
+            BufferedImage tile = tiles.get(key(level, tx, ty));
+            if (tile != null)
+                frame.add(key(level, tx, ty));
+            return tile;
+        }
+    }
+
+    /**
+     * Render tile (tx,ty) of a level and keep it, at least until the next
+     * paint. The renderer's clip is set to the tile.
+     */
+    private BufferedImage render(int level, int tx, int ty) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(Color.GRAY);
+        g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        g.clipRect(0, 0, TILE_SIZE, TILE_SIZE);
+        g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+        double scale = Math.pow(2, level);
+        g.scale(scale, scale);
+        renderer.render(g, tile);
+        g.dispose();
+        synchronized (tiles) {
+            tiles.put(key(level, tx, ty), tile);
+            frame.add(key(level, tx, ty));
+            Iterator<Long> it = tiles.keySet().iterator();
+            while (tiles.size() > maxTiles && it.hasNext()) {
+                if (!frame.contains(it.next()))
+                    it.remove();
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Drop least recently used tiles, other than those of the most recent
+     * frame, until at least the given number of bytes has been freed, or
+     * none are left.
+     *
+     * @return the number of bytes freed.
+     */
+    private long evict(long bytes) {
+        long freed = 0;
+        synchronized (tiles) {
+            Iterator<Long> it = tiles.keySet().iterator();
+            while (freed < bytes && it.hasNext()) {
+                if (frame.contains(it.next()))
+                    continue;
+                it.remove();
+                freed += 4L * TILE_SIZE * TILE_SIZE;
+            }
+        }
+        return freed;
+    }
+
+    private static long key(int level, int tx, int ty) {
+        return ((long) level << 56) | ((long) (tx & 0xFFFFFFF) << 28)
+                | (ty & 0xFFFFFFF);
+    }
+
+    /**
+     * Return the number of tiles that are kept.
+     */
+    public int size() {
+        synchronized (tiles) {
+            return tiles.size();
+        }
+    }
+}
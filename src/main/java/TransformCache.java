@@ -0,0 +1,298 @@
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of pre-rendered, transformed copies of stamp images. Scales
+ * and angles are quantized into buckets, so that every stamp that uses the same
+ * image at (roughly) the same size and rotation can share one variant. Scales
+ * below one are produced from a chain of mip levels (each half the size of the
+ * one before), so that small stamps are still smooth. Variants are evicted in
+ * least-recently-used order once the total size of the cached rasters exceeds
+ * the byte budget. The shared cache is also tracked by the shared
+ * MemoryGovernor, which can make it give up variants early.
+ */
+public class TransformCache {
+
+    /**
+     * The number of scale buckets in each factor of two.
+     */
+    public static final int SCALE_STEPS_PER_OCTAVE = 4;
+
+    /**
+     * The number of rotation buckets in a full turn (5 degrees each).
+     */
+    public static final int ANGLE_BUCKETS = 72;
+
+    private static final int MIN_SCALE_BUCKET = -3 * SCALE_STEPS_PER_OCTAVE;
+    private static final int MAX_SCALE_BUCKET = 3 * SCALE_STEPS_PER_OCTAVE;
+
+    private static final TransformCache SHARED = new TransformCache(32L << 20);
+
+    static {
+        MemoryGovernor.getShared().register("stamp transforms",
+                MemoryGovernor.PRIORITY_RENDERED, new MemoryGovernor.Tracker() {
+                    public long getBytes() {
+                        return SHARED.getBytes();
+                    }
+
+                    public long reclaim(long bytes) {
+                        return SHARED.reclaim(bytes);
+                    }
+                });
+    }
+
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<Key, BufferedImage> variants = new LinkedHashMap<>(
+            64, 0.75f, true);
+
+    /**
+     * Create a cache that holds at most maxBytes bytes of pixel data.
+     */
+    public TransformCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cache that is shared by all ImageItems.
+     */
+    public static TransformCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Return the scale bucket closest to the given scale factor.
+     */
+    public static int scaleBucket(double scale) {
+        if (scale <= 0)
+            throw new IllegalArgumentException("Scale must be positive.");
+        int b = (int) Math.round(Math.log(scale) / Math.log(2)
+                * SCALE_STEPS_PER_OCTAVE);
+        return Math.max(MIN_SCALE_BUCKET, Math.min(MAX_SCALE_BUCKET, b));
+    }
+
+    /**
+     * Return the scale factor that is represented by a scale bucket.
+     */
+    public static double bucketScale(int scaleBucket) {
+        return Math.pow(2, (double) scaleBucket / SCALE_STEPS_PER_OCTAVE);
+    }
+
+    /**
+     * Return the rotation bucket closest to the given angle, in radians.
+     */
+    public static int angleBucket(double angle) {
+        int b = (int) Math.round(angle / (2 * Math.PI) * ANGLE_BUCKETS);
+        b %= ANGLE_BUCKETS;
+        return b < 0 ? b + ANGLE_BUCKETS : b;
+    }
+
+    /**
+     * Return the angle, in radians, that is represented by a rotation bucket.
+     */
+    public static double bucketAngle(int angleBucket) {
+        return angleBucket * 2 * Math.PI / ANGLE_BUCKETS;
+    }
+
+    /**
+     * Return a copy of image scaled and rotated about its center by the
+     * quantized values of scale and angle. The original image is returned
+     * when no transformation is needed.
+     */
+    public BufferedImage getVariant(BufferedImage image, double scale,
+                                    double angle) {
+        return getVariant(image, scaleBucket(scale), angleBucket(angle));
+    }
+
+    /**
+     * Return a copy of image transformed by the given scale and rotation
+     * buckets, rendering it and adding it to the cache if necessary.
+     */
+    public BufferedImage getVariant(BufferedImage image, int scaleBucket,
+                                    int angleBucket) {
+        if (scaleBucket == 0 && angleBucket == 0)
+            return image;
+        Key key = new Key(image, scaleBucket, angleBucket);
+        BufferedImage variant;
+        synchronized (this) {
+            variant = variants.get(key);
+            if (variant != null)
+                return variant;
+            variant = render(image, scaleBucket, angleBucket);
+            put(key, variant);
+        }
+        if (this == SHARED)
+            MemoryGovernor.getShared().check(); // not while holding the lock
+        return variant;
+    }
+
+    /**
+     * Evict least recently used variants until at least the given number of
+     * bytes has been freed, or the cache is empty.
+     *
+     * @return the number of bytes freed.
+     */
+    public synchronized long reclaim(long wanted) {
+        long freed = 0;
+        Iterator<BufferedImage> it = variants.values().iterator();
+        while (freed < wanted && it.hasNext()) {
+            freed += sizeOf(it.next());
+            it.remove();
+        }
+        bytes -= freed;
+        return freed;
+    }
+
+    /**
+     * Remove every variant from the cache.
+     */
+    public synchronized void clear() {
+        variants.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Return the estimated number of bytes of pixel data held by the cache.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private BufferedImage render(BufferedImage image, int scaleBucket,
+                                 int angleBucket) {
+        // Start from the smallest mip level that is still at least as large
+        // as the target, so that the final interpolation never has to shrink
+        // the image by more than a factor of two.
+        int level = 0;
+        while (scaleBucket + (level + 1) * SCALE_STEPS_PER_OCTAVE <= 0)
+            level++;
+        BufferedImage source = level == 0 ? image : mip(image, level);
+        double scale = bucketScale(scaleBucket + level * SCALE_STEPS_PER_OCTAVE);
+        double angle = bucketAngle(angleBucket);
+        if (angleBucket == 0 && scaleBucket + level * SCALE_STEPS_PER_OCTAVE == 0)
+            return source;
+        Dimension size = variantSize(image.getWidth(), image.getHeight(),
+                scaleBucket, angleBucket);
+        int outW = size.width;
+        int outH = size.height;
+        AffineTransform tx = new AffineTransform();
+        tx.translate(outW / 2.0, outH / 2.0);
+        tx.rotate(angle);
+        tx.scale(scale, scale);
+        tx.translate(-source.getWidth() / 2.0, -source.getHeight() / 2.0);
+        BufferedImage out = new BufferedImage(outW, outH,
+                BufferedImage.TYPE_INT_ARGB);
+        AffineTransformOp op = new AffineTransformOp(tx,
+                AffineTransformOp.TYPE_BILINEAR);
+        op.filter(toArgb(source), out);
+        return out;
+    }
+
+    /**
+     * Return the size of the variant of a width x height image for the
+     * given buckets, without rendering it.
+     */
+    public static Dimension variantSize(int width, int height, int scaleBucket,
+                                        int angleBucket) {
+        int level = 0;
+        while (scaleBucket + (level + 1) * SCALE_STEPS_PER_OCTAVE <= 0) {
+            level++;
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+        }
+        int steps = scaleBucket + level * SCALE_STEPS_PER_OCTAVE;
+        if (angleBucket == 0 && steps == 0)
+            return new Dimension(width, height);
+        double scale = bucketScale(steps);
+        double angle = bucketAngle(angleBucket);
+        double w = width * scale;
+        double h = height * scale;
+        double sin = Math.abs(Math.sin(angle));
+        double cos = Math.abs(Math.cos(angle));
+        return new Dimension(Math.max(1, (int) Math.ceil(w * cos + h * sin)),
+                Math.max(1, (int) Math.ceil(w * sin + h * cos)));
+    }
+
+    private BufferedImage mip(BufferedImage image, int level) {
+        Key key = new Key(image, -level * SCALE_STEPS_PER_OCTAVE, 0);
+        BufferedImage m = variants.get(key);
+        if (m == null) {
+            BufferedImage larger = level == 1 ? image : mip(image, level - 1);
+            int w = Math.max(1, larger.getWidth() / 2);
+            int h = Math.max(1, larger.getHeight() / 2);
+            m = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = m.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(larger, 0, 0, w, h, null);
+            g.dispose();
+            put(key, m);
+        }
+        return m;
+    }
+
+    private static BufferedImage toArgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB)
+            return image;
+        BufferedImage copy = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    private void put(Key key, BufferedImage variant) {
+        BufferedImage old = variants.put(key, variant);
+        if (old != null)
+            bytes -= sizeOf(old);
+        bytes += sizeOf(variant);
+        Iterator<Map.Entry<Key, BufferedImage>> it = variants.entrySet()
+                .iterator();
+        while (bytes > maxBytes && variants.size() > 1 && it.hasNext()) {
+            Map.Entry<Key, BufferedImage> eldest = it.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Identifies a variant by the identity of its source image and its
+     * quantized scale and rotation.
+     */
+    private static final class Key {
+        final BufferedImage IMAGE;
+        final int SCALE;
+        final int ANGLE;
+
+        Key(BufferedImage image, int scale, int angle) {
+            IMAGE = image;
+            SCALE = scale;
+            ANGLE = angle;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.IMAGE == IMAGE && k.SCALE == SCALE && k.ANGLE == ANGLE;
+        }
+
+        public int hashCode() {
+            return (System.identityHashCode(IMAGE) * 31 + SCALE) * 31 + ANGLE;
+        }
+    }
+}
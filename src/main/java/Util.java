@@ -4,6 +4,7 @@ import java.awt.Image;
 import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.net.URL;
 
 import javax.imageio.ImageIO;
@@ -53,13 +54,15 @@ public class Util {
     }
 
     /**
-     * Create an ImageIcon from an image that is stored as a resource.
+     * Create an ImageIcon from an image that is stored as a resource. The
+     * image comes from the shared StartupCache, so it is only decoded the
+     * first time the program uses it.
      *
      * @param pathToResource the path to the resource.
-     * @return the ImageIcon, or null if the resource can't be located.
+     * @return the ImageIcon, or null if the resource can't be loaded.
      */
     public static ImageIcon iconFromResource(String pathToResource) {
-        Image img = getImageResource(pathToResource);
+        Image img = StartupCache.getShared().getResourceImage(pathToResource);
         if (img == null)
             return null;
         else
@@ -136,4 +139,21 @@ public class Util {
         return Toolkit.getDefaultToolkit().createCustomCursor(image,
                 new Point(hotSpotX, hotSpotY), null);
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the directory where the program keeps its own files (journals,
+     * caches, logs), creating it if necessary. This is the directory
+     * ".sayings" in the user's home directory, unless the system property
+     * "sayings.dir" names a different one.
+     *
+     * @return the directory; it might not be writable.
+     */
+    public static File getAppDataDirectory() {
+        String dir = System.getProperty("sayings.dir");
+        File f = dir != null ? new File(dir)
+                : new File(System.getProperty("user.home"), ".sayings");
+        if (!f.isDirectory())
+            f.mkdirs();
+        return f;
+    }
+}
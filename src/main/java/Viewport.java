@@ -0,0 +1,109 @@
+/**
+ * The part of a picture that is shown in a DrawPanel: a zoom factor and the
+ * point of the picture that appears at the top left corner of the panel.
+ * Converts between panel coordinates, such as the position of the mouse, and
+ * picture coordinates, in which stamps are placed. The zoom changes in steps
+ * of ZOOM_STEP, between MIN_ZOOM and MAX_ZOOM.
+ */
+public class Viewport {
+
+    public static final double MIN_ZOOM = 1.0 / 16;
+    public static final double MAX_ZOOM = 16;
+
+    /**
+     * The factor by which one click of the mouse wheel changes the zoom.
+     */
+    public static final double ZOOM_STEP = Math.pow(2, 0.25);
+
+    private double zoom = 1;
+    private double originX; // picture point at the top left of the panel
+    private double originY;
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    /**
+     * Return true if picture coordinates are the same as panel coordinates.
+     */
+    public boolean isIdentity() {
+        return zoom == 1 && originX == 0 && originY == 0;
+    }
+
+    /**
+     * Show the picture at its actual size, from its top left corner.
+     */
+    public void reset() {
+        zoom = 1;
+        originX = 0;
+        originY = 0;
+    }
+
+    /**
+     * Show the picture at the given zoom, with the picture point
+     * (originX,originY) at the top left corner, as returned by the getters
+     * of another viewport. The zoom is limited to the allowed range.
+     */
+    public void set(double zoom, double originX, double originY) {
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    /**
+     * Change the zoom, keeping the picture point under the panel point
+     * (anchorX,anchorY) in place. The zoom is limited to the allowed range,
+     * and is snapped to a whole number of steps so that zooming in and out
+     * again returns exactly to the start.
+     */
+    public void setZoom(double newZoom, int anchorX, int anchorY) {
+        double steps = Math.round(Math.log(newZoom) / Math.log(ZOOM_STEP));
+        newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM,
+                Math.pow(ZOOM_STEP, steps)));
+        double px = toPictureX(anchorX);
+        double py = toPictureY(anchorY);
+        zoom = newZoom;
+        originX = px - anchorX / zoom;
+        originY = py - anchorY / zoom;
+    }
+
+    /**
+     * Zoom in (clicks < 0) or out (clicks > 0) by a number of steps around a
+     * point of the panel.
+     */
+    public void zoomBy(int clicks, int anchorX, int anchorY) {
+        setZoom(zoom * Math.pow(ZOOM_STEP, -clicks), anchorX, anchorY);
+    }
+
+    /**
+     * Move the picture by (dx,dy) panel pixels.
+     */
+    public void pan(int dx, int dy) {
+        originX -= dx / zoom;
+        originY -= dy / zoom;
+    }
+
+    public double toPictureX(int panelX) {
+        return originX + panelX / zoom;
+    }
+
+    public double toPictureY(int panelY) {
+        return originY + panelY / zoom;
+    }
+
+    public double toPanelX(double pictureX) {
+        return (pictureX - originX) * zoom;
+    }
+
+    public double toPanelY(double pictureY) {
+        return (pictureY - originY) * zoom;
+    }
+}